@@ -0,0 +1,306 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A commited job handler that delivers the commited jobs to another handler
+ * asynchronously. The commited jobs are put into a bounded queue that is
+ * drained by consumers running on an executor, so the time spent in the
+ * delegated handler is not included in the commit of a job.
+ * <p/>
+ * Ordering guarantees:
+ * <ul>
+ * <li>With a single consumer and the {@link Policy#BLOCK} policy, the jobs are
+ * delivered one at a time, in the order they were commited.</li>
+ * <li>With several consumers, the delegated handler is called concurrently and
+ * the jobs may be delivered out of order.</li>
+ * <li>With the {@link Policy#CALLER_RUNS} policy, a job that does not fit in the queue
+ * is delivered by the committing thread, possibly before the queued jobs. With a single consumer,
+ * it is never delivered concurrently with the consumer.</li>
+ * </ul>
+ * The consumers are daemon threads, so {@link #close(long)} must be called to deliver the
+ * queued jobs before exiting.
+ *
+ * @author Fabien Hermenier
+ */
+public class AsyncCommitedJobHandler implements CommitedJobHandler {
+
+    /**
+     * The policy to apply when the queue is full.
+     */
+    public static enum Policy {
+        /**
+         * The committing thread waits for a free slot in the queue.
+         */
+        BLOCK,
+        /**
+         * The committing thread delivers the job itself.
+         */
+        CALLER_RUNS
+    }
+
+    /**
+     * The default capacity of the queue.
+     */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /**
+     * The marker to stop a consumer.
+     */
+    private static final Job POISON = new Job(Integer.MIN_VALUE);
+
+    private final CommitedJobHandler delegate;
+
+    private final BlockingQueue<Job> queue;
+
+    private final Policy policy;
+
+    /**
+     * The executor if it was created by this handler.
+     */
+    private final ExecutorService ownExecutor;
+
+    private final CountDownLatch consumersDone;
+
+    /**
+     * Indicates the consumers are stopping. Guarded by {@link #closing}.
+     */
+    private boolean closed = false;
+
+    /**
+     * The number of poisons that remain to be queued to stop the consumers.
+     */
+    private final AtomicLong nbPoisons = new AtomicLong();
+
+    /**
+     * Taken in read mode to queue a job and in write mode to close the handler, so no job
+     * is queued after the consumers were asked to stop.
+     */
+    private final ReadWriteLock closing = new ReentrantReadWriteLock();
+
+    /**
+     * Serialize the deliveries when there is a single consumer. {@code null} otherwise.
+     */
+    private final Object serial;
+
+    /**
+     * The handler to notify once a job was delivered without error. May be {@code null}.
+     */
+    private volatile CommitedJobHandler deliveryListener;
+
+    /**
+     * Make a new handler with a single consumer, a queue of {@link #DEFAULT_CAPACITY} jobs
+     * and the {@link Policy#BLOCK} policy.
+     *
+     * @param h the handler to deliver the jobs to
+     */
+    public AsyncCommitedJobHandler(CommitedJobHandler h) {
+        this(h, DEFAULT_CAPACITY, Policy.BLOCK, null, 1);
+    }
+
+    /**
+     * Make a new handler.
+     *
+     * @param h           the handler to deliver the jobs to
+     * @param capacity    the maximum number of jobs waiting for a delivery
+     * @param p           the policy to apply when the queue is full
+     * @param e           the executor to run the consumers. If {@code null}, a dedicated thread is created per consumer
+     * @param nbConsumers the number of consumers
+     */
+    public AsyncCommitedJobHandler(CommitedJobHandler h, int capacity, Policy p, Executor e, int nbConsumers) {
+        this.delegate = h;
+        this.queue = new ArrayBlockingQueue<Job>(capacity);
+        this.policy = p;
+        this.consumersDone = new CountDownLatch(nbConsumers);
+        this.serial = nbConsumers == 1 ? new Object() : null;
+        if (e == null) {
+            ownExecutor = Executors.newFixedThreadPool(nbConsumers, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "commited-job-handler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            e = ownExecutor;
+        } else {
+            ownExecutor = null;
+        }
+        for (int i = 0; i < nbConsumers; i++) {
+            e.execute(new Consumer());
+        }
+    }
+
+    /**
+     * Queue a commited job for a delivery.
+     * Once the handler is closed, the jobs are delivered by the calling thread.
+     *
+     * @param j the commited job
+     */
+    @Override
+    public void jobCommited(Job j) {
+        closing.readLock().lock();
+        try {
+            if (!closed) {
+                if (policy == Policy.BLOCK) {
+                    try {
+                        queue.put(j);
+                        return;
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else if (queue.offer(j)) {
+                    return;
+                }
+            }
+        } finally {
+            closing.readLock().unlock();
+        }
+        deliver(j);
+    }
+
+    /**
+     * Get the number of jobs waiting for a delivery.
+     *
+     * @return a positive integer
+     */
+    public int getPendings() {
+        return queue.size();
+    }
+
+    /**
+     * Get the handler the jobs are delivered to.
+     *
+     * @return the handler given at instantiation
+     */
+    public CommitedJobHandler getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Set the handler to notify once a job was delivered to the delegated handler without error.
+     *
+     * @param l the handler to notify. {@code null} to notify nobody
+     */
+    void setDeliveryListener(CommitedJobHandler l) {
+        this.deliveryListener = l;
+    }
+
+    /**
+     * Stop the consumers once all the queued jobs have been delivered.
+     * The consumers are stopped by queuing one poison each behind the queued jobs. If the queue
+     * stays full until the timeout, the remaining poisons are queued by the next call.
+     * Once closed, the committing threads deliver the jobs themselves.
+     *
+     * @param timeout the maximum amount of milliseconds to wait for the deliveries
+     * @return {@code true} if all the queued jobs were delivered
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public boolean close(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        //A committing thread may hold the read lock while waiting for a free slot
+        if (!closing.writeLock().tryLock(timeout, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        try {
+            if (!closed) {
+                closed = true;
+                nbPoisons.set(consumersDone.getCount());
+            }
+        } finally {
+            closing.writeLock().unlock();
+        }
+        while (nbPoisons.get() > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (!queue.offer(POISON, Math.max(0, remaining), TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            nbPoisons.decrementAndGet();
+        }
+        boolean done = consumersDone.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+        return done;
+    }
+
+    /**
+     * Deliver a job to the delegated handler.
+     * With a single consumer, the deliveries are serialized so the delegated handler is never
+     * called concurrently, even by a committing thread.
+     * Errors are logged as they cannot be reported to the job handler anymore.
+     *
+     * @param j the job to deliver
+     */
+    private void deliver(Job j) {
+        if (serial == null) {
+            doDeliver(j);
+        } else {
+            synchronized (serial) {
+                doDeliver(j);
+            }
+        }
+    }
+
+    private void doDeliver(Job j) {
+        try {
+            delegate.jobCommited(j);
+        } catch (RuntimeException ex) {
+            JobDispatcher.getLogger().error("Error while handling the commited job " + j.getId(), ex);
+            return;
+        }
+        CommitedJobHandler l = deliveryListener;
+        if (l != null) {
+            l.jobCommited(j);
+        }
+    }
+
+    /**
+     * Deliver the queued jobs until a poison is received.
+     */
+    private class Consumer implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Job j = queue.take();
+                    if (j == POISON) {
+                        break;
+                    }
+                    deliver(j);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                consumersDone.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.eclipse.jetty.client.ContentExchange;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An exchange that parses its response once completed, without blocking a thread
+ * while the response is pending.
+ * The outcome is available through {@link #getResult()} and notified to an optional callback.
+ * The callback is executed by a thread of the HTTP client, so it must not block.
+ *
+ * @author Fabien Hermenier
+ * @see JobHandler.Callback
+ */
+abstract class AsyncExchange<T> extends ContentExchange {
+
+    private final Result<T> result;
+
+    /**
+     * The counter of connection failures to increment, may be {@code null}.
+     */
+    private AtomicLong connectionFailures;
+
+    /**
+     * Make a new exchange that caches the response headers.
+     *
+     * @param cb the callback to notify, may be {@code null}
+     */
+    public AsyncExchange(JobHandler.Callback<T> cb) {
+        super(true);
+        this.result = new Result<T>(this, cb);
+    }
+
+    /**
+     * Get the outcome of the exchange.
+     *
+     * @return a future
+     */
+    public Result<T> getResult() {
+        return result;
+    }
+
+    /**
+     * Set the counter to increment if the exchange fails to connect.
+     *
+     * @param c the counter
+     */
+    public void setConnectionFailures(AtomicLong c) {
+        this.connectionFailures = c;
+    }
+
+    /**
+     * Parse the completed response.
+     *
+     * @return the outcome of the exchange
+     * @throws Exception if the response reports an error or cannot be parsed
+     */
+    protected abstract T parse() throws Exception;
+
+    @Override
+    protected void onResponseComplete() throws IOException {
+        super.onResponseComplete();
+        T r;
+        try {
+            r = parse();
+        } catch (Exception e) {
+            result.fail(e);
+            return;
+        }
+        result.succeed(r);
+    }
+
+    @Override
+    protected void onConnectionFailed(Throwable x) {
+        super.onConnectionFailed(x);
+        if (connectionFailures != null) {
+            connectionFailures.incrementAndGet();
+        }
+        result.fail(new JobHandlerException("Unable to connect to the dispatcher: " + x.getMessage(), x));
+    }
+
+    @Override
+    protected void onException(Throwable x) {
+        super.onException(x);
+        result.fail(new JobHandlerException(x.getMessage(), x));
+    }
+
+    @Override
+    protected void onExpire() {
+        super.onExpire();
+        result.fail(new JobHandlerException("Error: request '" + getRequestURI() + "' expired"));
+    }
+
+    /**
+     * The outcome of an asynchronous operation.
+     */
+    static class Result<T> implements Future<T> {
+
+        private final AsyncExchange<T> exchange;
+
+        private final JobHandler.Callback<T> callback;
+
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile T value;
+
+        private volatile Throwable error;
+
+        private volatile boolean cancelled;
+
+        /**
+         * Make a new result.
+         *
+         * @param e  the exchange that computes the result, {@code null} if there is no exchange
+         * @param cb the callback to notify, may be {@code null}
+         */
+        public Result(AsyncExchange<T> e, JobHandler.Callback<T> cb) {
+            this.exchange = e;
+            this.callback = cb;
+        }
+
+        /**
+         * Complete successfully.
+         *
+         * @param v the result
+         * @return {@code true} if the result was not completed before
+         */
+        public boolean succeed(T v) {
+            if (!completed.compareAndSet(false, true)) {
+                return false;
+            }
+            value = v;
+            done.countDown();
+            if (callback != null) {
+                try {
+                    callback.completed(v);
+                } catch (RuntimeException e) {
+                    JobDispatcher.getLogger().error("Error in a callback: " + e.getMessage(), e);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Complete with an error.
+         *
+         * @param t the error
+         * @return {@code true} if the result was not completed before
+         */
+        public boolean fail(Throwable t) {
+            if (!completed.compareAndSet(false, true)) {
+                return false;
+            }
+            error = t;
+            done.countDown();
+            if (callback != null) {
+                try {
+                    callback.failed(t);
+                } catch (RuntimeException e) {
+                    JobDispatcher.getLogger().error("Error in a callback: " + e.getMessage(), e);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         * The exchange is aborted and the callback is notified with a {@link CancellationException}.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!completed.compareAndSet(false, true)) {
+                return false;
+            }
+            cancelled = true;
+            if (exchange != null) {
+                exchange.cancel();
+            }
+            done.countDown();
+            if (callback != null) {
+                try {
+                    callback.failed(new CancellationException());
+                } catch (RuntimeException e) {
+                    JobDispatcher.getLogger().error("Error in a callback: " + e.getMessage(), e);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            done.await();
+            return report();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return report();
+        }
+
+        private T report() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            } else if (error != null) {
+                throw new ExecutionException(error);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Collect the computed jobs of a JobHandler and commit them by batches.
+ * A batch is sent once it contains a given number of jobs or once its oldest job
+ * has been waiting for a given delay, whichever comes first.
+ * <p/>
+ * The jobs of a batch that failed to be sent are kept and sent again with the next batch.
+ * The error is reported by the next call to {@link #commit(Job)}, {@link #flush()} or {@link #close()}.
+ * The jobs the dispatcher refused, as they are not running anymore, are not sent again but
+ * counted by {@link #getNbRejected()}.
+ * The committer is thread-safe.
+ *
+ * @author Fabien Hermenier
+ * @see JobHandler#commit(java.util.Collection)
+ */
+public class BatchCommitter {
+
+    /**
+     * The default maximum number of jobs per batch.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * The default maximum delay in milliseconds before committing a job.
+     */
+    public static final long DEFAULT_MAX_DELAY = 1000;
+
+    private final JobHandler handler;
+
+    private final int maxJobs;
+
+    private final long maxDelay;
+
+    /**
+     * The jobs waiting to be commited.
+     */
+    private List<Job> pendings;
+
+    /**
+     * The moment the oldest pending job was added.
+     */
+    private long oldest;
+
+    /**
+     * The number of jobs the dispatcher refused to commit.
+     */
+    private int nbRejected;
+
+    /**
+     * The last error that occurred while flushing in background.
+     */
+    private Exception failure;
+
+    private final Timer timer;
+
+    /**
+     * Held by the background commits, so {@link #close()} waits for the one in progress.
+     */
+    private final Object background = new Object();
+
+    /**
+     * Indicates the background commits are stopped. Guarded by {@link #background}.
+     */
+    private boolean stopped = false;
+
+    /**
+     * Make a new committer with a batch size of {@link #DEFAULT_BATCH_SIZE} jobs
+     * and a maximum delay of {@link #DEFAULT_MAX_DELAY} milliseconds.
+     *
+     * @param h the handler to commit the jobs with
+     */
+    public BatchCommitter(JobHandler h) {
+        this(h, DEFAULT_BATCH_SIZE, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Make a new committer.
+     *
+     * @param h        the handler to commit the jobs with
+     * @param maxJobs  the number of jobs that triggers a commit
+     * @param maxDelay the maximum delay in milliseconds between the moment a job is added and its commit
+     */
+    public BatchCommitter(JobHandler h, int maxJobs, long maxDelay) {
+        this.handler = h;
+        this.maxJobs = maxJobs;
+        this.maxDelay = maxDelay;
+        this.pendings = new ArrayList<Job>(maxJobs);
+        this.timer = new Timer("batch-committer", true);
+        long period = Math.max(1, maxDelay / 2);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (background) {
+                    if (stopped) {
+                        return;
+                    }
+                    try {
+                        List<Job> batch = takeBatch(false);
+                        if (batch != null) {
+                            send(batch);
+                        }
+                    } catch (Exception e) {
+                        synchronized (BatchCommitter.this) {
+                            failure = e;
+                        }
+                    }
+                }
+            }
+        }, period, period);
+    }
+
+    /**
+     * Add a job to commit.
+     * If the batch is full, it is sent by the calling thread.
+     * The job is added even if an error that occurred in background is reported,
+     * so it must not be added again.
+     *
+     * @param j the computed job
+     * @throws IOException         if an error occurred while sending a batch
+     * @throws JobHandlerException if another error occurred
+     */
+    public void commit(Job j) throws IOException, JobHandlerException {
+        List<Job> batch;
+        synchronized (this) {
+            if (pendings.isEmpty()) {
+                oldest = System.currentTimeMillis();
+            }
+            pendings.add(j);
+            rethrow();
+            batch = pendings.size() >= maxJobs ? takeBatch(true) : null;
+        }
+        if (batch != null) {
+            send(batch);
+        }
+    }
+
+    /**
+     * Commit all the pending jobs now.
+     *
+     * @throws IOException         if an error occurred while sending the jobs
+     * @throws JobHandlerException if another error occurred
+     */
+    public void flush() throws IOException, JobHandlerException {
+        List<Job> batch;
+        synchronized (this) {
+            rethrow();
+            batch = takeBatch(true);
+        }
+        if (batch != null) {
+            send(batch);
+        }
+    }
+
+    /**
+     * Stop the background commits and commit the pending jobs.
+     * A background commit in progress is completed first.
+     *
+     * @throws IOException         if an error occurred while sending the jobs
+     * @throws JobHandlerException if another error occurred
+     */
+    public void close() throws IOException, JobHandlerException {
+        synchronized (background) {
+            stopped = true;
+        }
+        timer.cancel();
+        flush();
+    }
+
+    /**
+     * Get the number of jobs waiting to be commited.
+     *
+     * @return a positive integer
+     */
+    public synchronized int getPendings() {
+        return pendings.size();
+    }
+
+    /**
+     * Get the number of jobs the dispatcher refused to commit.
+     * A job is refused when it is not running for the attempt it was dequeued with anymore,
+     * for example once its lease expired and the job was dequeued by another worker.
+     *
+     * @return a positive integer
+     */
+    public synchronized int getNbRejected() {
+        return nbRejected;
+    }
+
+    /**
+     * Take the pending jobs.
+     *
+     * @param force {@code true} to take the jobs even if the oldest job has not reached the maximum delay
+     * @return the jobs to send or {@code null} if there is nothing to send
+     */
+    private synchronized List<Job> takeBatch(boolean force) {
+        if (pendings.isEmpty() || (!force && System.currentTimeMillis() - oldest < maxDelay)) {
+            return null;
+        }
+        List<Job> batch = pendings;
+        pendings = new ArrayList<Job>(maxJobs);
+        return batch;
+    }
+
+    /**
+     * Send a batch of jobs.
+     * If an error occurred, the jobs are put back into the pending jobs. The jobs the
+     * dispatcher refused are only counted.
+     *
+     * @param batch the jobs to send
+     * @throws IOException         if an error occurred while sending the jobs
+     * @throws JobHandlerException if another error occurred
+     */
+    private void send(List<Job> batch) throws IOException, JobHandlerException {
+        int nb;
+        try {
+            nb = handler.commit(batch);
+        } catch (IOException e) {
+            restore(batch);
+            throw e;
+        } catch (JobHandlerException e) {
+            restore(batch);
+            throw e;
+        }
+        if (nb < batch.size()) {
+            synchronized (this) {
+                nbRejected += batch.size() - nb;
+            }
+        }
+    }
+
+    /**
+     * Put back jobs that were not commited into the pending jobs.
+     *
+     * @param batch the jobs
+     */
+    private synchronized void restore(List<Job> batch) {
+        if (pendings.isEmpty()) {
+            oldest = System.currentTimeMillis();
+        }
+        pendings.addAll(batch);
+    }
+
+    /**
+     * Throw the last error that occurred in background, if any.
+     *
+     * @throws IOException         if the error was an IOException
+     * @throws JobHandlerException otherwise
+     */
+    private void rethrow() throws IOException, JobHandlerException {
+        Exception e = failure;
+        failure = null;
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof JobHandlerException) {
+            throw (JobHandlerException) e;
+        } else if (e != null) {
+            throw new JobHandlerException(e.getMessage(), e);
+        }
+    }
+}
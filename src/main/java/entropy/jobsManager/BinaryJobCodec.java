@@ -0,0 +1,210 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact, length-prefixed binary encoding of the jobs.
+ * It avoids the cost of the JSON encoding for the jobs having a lot of values.
+ * <p/>
+ * A message starts with a table of the keys used by its jobs, so each key is sent
+ * once per message and the values refer to their key by index:
+ * <pre>
+ * message := varint(nbKeys) string* varint(nbJobs) job*
+ * job     := zigzag(id) zigzag(enqueuedTime) zigzag(dequeuedTime) zigzag(commitedTime)
+ *            zigzag(priority) varint(attempts) varint(nbValues) (varint(key) string)*
+ * string  := varint(length) UTF-8 bytes
+ * </pre>
+ * A varint is written 7 bits at a time, least significant group first. The signed
+ * numbers are zigzag encoded so small negative values stay short.
+ *
+ * @author Fabien Hermenier
+ */
+public class BinaryJobCodec implements JobCodec {
+
+    /**
+     * The content type of the messages.
+     */
+    public static final String CONTENT_TYPE = "application/x-entropy-jobs";
+
+    /**
+     * The maximum number of keys or jobs in a message, or bytes in a string.
+     */
+    private static final int MAX_LENGTH = 1 << 26;
+
+    /**
+     * The number of bytes of a string read at once. The buffers grow with the
+     * bytes actually read, so a malformed length does not allocate a lot of memory.
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public void write(Job j, OutputStream out) throws IOException {
+        write(Collections.singletonList(j), out);
+    }
+
+    @Override
+    public void write(Collection<Job> js, OutputStream out) throws IOException {
+        Map<String, Integer> keys = new LinkedHashMap<String, Integer>();
+        for (Job j : js) {
+            for (String k : j.getKeys()) {
+                if (!keys.containsKey(k)) {
+                    keys.put(k, keys.size());
+                }
+            }
+        }
+        OutputStream o = new BufferedOutputStream(out);
+        writeVarLong(o, keys.size());
+        for (String k : keys.keySet()) {
+            writeString(o, k);
+        }
+        writeVarLong(o, js.size());
+        for (Job j : js) {
+            writeVarLong(o, zigzag(j.getId()));
+            writeVarLong(o, zigzag(j.getEnqueuedTime()));
+            writeVarLong(o, zigzag(j.getDequeuedTime()));
+            writeVarLong(o, zigzag(j.getCommitedTime()));
+            writeVarLong(o, zigzag(j.getPriority()));
+            writeVarLong(o, j.getAttempts());
+            writeVarLong(o, j.getKeys().size());
+            for (String k : j.getKeys()) {
+                writeVarLong(o, keys.get(k));
+                writeString(o, j.get(k));
+            }
+        }
+        o.flush();
+    }
+
+    @Override
+    public Job read(InputStream in) throws IOException {
+        List<Job> js = readAll(in);
+        if (js.size() != 1) {
+            throw new IOException("Expecting 1 job, got " + js.size());
+        }
+        return js.get(0);
+    }
+
+    @Override
+    public List<Job> readAll(InputStream in) throws IOException {
+        InputStream i = new BufferedInputStream(in);
+        int nbKeys = readLength(i);
+        List<String> keys = new ArrayList<String>(Math.min(nbKeys, 1024));
+        for (int x = 0; x < nbKeys; x++) {
+            keys.add(readString(i));
+        }
+        int nb = readLength(i);
+        List<Job> js = new ArrayList<Job>(Math.min(nb, 1024));
+        for (int x = 0; x < nb; x++) {
+            Job j = new Job((int) unzigzag(readVarLong(i)));
+            j.setEnqueuedTime(unzigzag(readVarLong(i)));
+            j.setDequeuedTime(unzigzag(readVarLong(i)));
+            j.setCommitedTime(unzigzag(readVarLong(i)));
+            j.setPriority((int) unzigzag(readVarLong(i)));
+            j.setAttempts((int) readVarLong(i));
+            int nbValues = readLength(i);
+            for (int y = 0; y < nbValues; y++) {
+                long k = readVarLong(i);
+                if (k < 0 || k >= keys.size()) {
+                    throw new IOException("Unknown key index " + k);
+                }
+                j.put(keys.get((int) k), readString(i));
+            }
+            js.add(j);
+        }
+        return js;
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeVarLong(OutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated message");
+            }
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int readLength(InputStream in) throws IOException {
+        long l = readVarLong(in);
+        if (l < 0 || l > MAX_LENGTH) {
+            throw new IOException("Invalid length " + l);
+        }
+        return (int) l;
+    }
+
+    private static void writeString(OutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        writeVarLong(out, b.length);
+        out.write(b);
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        int len = readLength(in);
+        byte[] buf = new byte[Math.min(len, CHUNK_SIZE)];
+        ByteArrayOutputStream b = new ByteArrayOutputStream(buf.length);
+        int n = 0;
+        while (n < len) {
+            int r = in.read(buf, 0, Math.min(buf.length, len - n));
+            if (r < 0) {
+                throw new EOFException("Truncated message");
+            }
+            b.write(buf, 0, r);
+            n += r;
+        }
+        return b.toString("UTF-8");
+    }
+}
@@ -0,0 +1,424 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.ResourceHandler;
+import org.eclipse.jetty.util.resource.Resource;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A resource handler that compresses the resources for the clients that accept it.
+ * <p/>
+ * If a resource has a pre-compressed sibling (the same name with a <b>.gz</b> suffix),
+ * the sibling is sent as is to the clients accepting gzip. Otherwise, the resources
+ * having a compressible content type are compressed while they are sent.
+ * <p/>
+ * The uncompressed resources have an <b>ETag</b> computed from their size and modification date.
+ * The handler supports the <b>If-None-Match</b> header and requests for a single range of bytes
+ * (<b>Range</b> and <b>If-Range</b> headers) so the clients can validate their copy of a resource
+ * or resume a download. A range is always sent uncompressed.
+ *
+ * @author Fabien Hermenier
+ */
+class CompressingResourceHandler extends ResourceHandler {
+
+    /**
+     * The suffix of the pre-compressed resources.
+     */
+    static final String GZ_SUFFIX = ".gz";
+
+    /**
+     * The resources smaller than this number of bytes are not compressed.
+     */
+    private static final int MIN_SIZE = 512;
+
+    /**
+     * The compressible content types, in addition to the textual ones.
+     * The binary formats, such as the protobuf resources, are already compact.
+     */
+    private final Set<String> compressibles = new HashSet<String>();
+
+    /**
+     * Make a new handler.
+     */
+    public CompressingResourceHandler() {
+        compressibles.add("application/json");
+        compressibles.add("application/xml");
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        String method = request.getMethod();
+        if (baseRequest.isHandled() || !("GET".equals(method) || "HEAD".equals(method))) {
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+        Resource rc = getResource(target);
+        if (rc == null || !rc.exists() || rc.isDirectory()) {
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+        String enc = Compression.accepted(request.getHeader("Accept-Encoding"));
+        String range = request.getHeader("Range");
+        if (enc == null || range != null) {
+            String tag = etag(rc);
+            String match = request.getHeader("If-None-Match");
+            if (match != null && (match.trim().equals("*") || match.contains(tag))) {
+                baseRequest.setHandled(true);
+                response.setHeader("ETag", tag);
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            if (range != null && sendRange(target, rc, tag, range, baseRequest, request, response)) {
+                return;
+            }
+            response.setHeader("ETag", tag);
+            response.setHeader("Accept-Ranges", "bytes");
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+        if (Compression.GZIP.equals(enc) && !target.endsWith(GZ_SUFFIX)) {
+            Resource gz = getResource(target + GZ_SUFFIX);
+            if (gz != null && gz.exists() && !gz.isDirectory()) {
+                sendPrecompressed(target, gz, baseRequest, request, response);
+                return;
+            }
+        }
+        CompressingResponse r = new CompressingResponse(response, enc);
+        try {
+            super.handle(target, baseRequest, request, r);
+            r.finish();
+        } finally {
+            r.end();
+        }
+    }
+
+    /**
+     * Get the entity tag of an uncompressed resource.
+     *
+     * @param rc the resource
+     * @return a strong entity tag, quoted
+     */
+    static String etag(Resource rc) {
+        return "\"" + Long.toHexString(rc.lastModified()) + "-" + Long.toHexString(rc.length()) + "\"";
+    }
+
+    /**
+     * Send a range of an uncompressed resource.
+     * Only the requests for a single range of bytes are supported.
+     *
+     * @param target      the requested resource
+     * @param rc          the resource
+     * @param tag         the entity tag of the resource
+     * @param range       the value of the <b>Range</b> header
+     * @param baseRequest the request
+     * @param request     the request
+     * @param response    the response
+     * @return {@code true} if the request was handled. {@code false} if the whole resource must be sent:
+     *         the range is not supported or the <b>If-Range</b> header does not match the resource
+     * @throws IOException if an error occurred while sending the range
+     */
+    private boolean sendRange(String target, Resource rc, String tag, String range, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange != null && !ifRange.trim().equals(tag)) {
+            return false;
+        }
+        String r = range.trim();
+        if (!r.startsWith("bytes=") || r.indexOf(',') >= 0) {
+            return false;
+        }
+        r = r.substring(6).trim();
+        int dash = r.indexOf('-');
+        if (dash < 0) {
+            return false;
+        }
+        long length = rc.length();
+        long from;
+        long to;
+        try {
+            if (dash == 0) {
+                //The last bytes
+                from = Math.max(0, length - Long.parseLong(r.substring(1).trim()));
+                to = length - 1;
+            } else {
+                from = Long.parseLong(r.substring(0, dash).trim());
+                String end = r.substring(dash + 1).trim();
+                to = end.length() == 0 ? length - 1 : Math.min(Long.parseLong(end), length - 1);
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        baseRequest.setHandled(true);
+        response.setHeader("ETag", tag);
+        response.setHeader("Accept-Ranges", "bytes");
+        if (from >= length || from > to) {
+            response.setHeader("Content-Range", "bytes */" + length);
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return true;
+        }
+        long nb = to - from + 1;
+        Buffer mime = getMimeTypes().getMimeByExtension(target);
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType(mime != null ? mime.toString() : "application/octet-stream");
+        response.setHeader("Content-Range", "bytes " + from + "-" + to + "/" + length);
+        response.setHeader("Content-Length", Long.toString(nb));
+        if ("HEAD".equals(request.getMethod())) {
+            return true;
+        }
+        OutputStream out = response.getOutputStream();
+        File f = rc.getFile();
+        if (f != null) {
+            //Let the kernel copy the range
+            FileInputStream in = new FileInputStream(f);
+            try {
+                FileChannel ch = in.getChannel();
+                WritableByteChannel dst = Channels.newChannel(out);
+                long pos = from;
+                while (pos <= to) {
+                    long n = ch.transferTo(pos, to - pos + 1, dst);
+                    if (n <= 0) {
+                        throw new EOFException("Resource '" + target + "' truncated");
+                    }
+                    pos += n;
+                }
+            } finally {
+                in.close();
+            }
+        } else {
+            InputStream in = rc.getInputStream();
+            try {
+                long skipped = 0;
+                while (skipped < from) {
+                    long n = in.skip(from - skipped);
+                    if (n <= 0) {
+                        throw new EOFException("Resource '" + target + "' truncated");
+                    }
+                    skipped += n;
+                }
+                byte[] buf = new byte[8192];
+                while (nb > 0) {
+                    int n = in.read(buf, 0, (int) Math.min(buf.length, nb));
+                    if (n < 0) {
+                        throw new EOFException("Resource '" + target + "' truncated");
+                    }
+                    out.write(buf, 0, n);
+                    nb -= n;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Send a pre-compressed resource.
+     *
+     * @param target      the requested resource
+     * @param gz          the compressed sibling of the resource
+     * @param baseRequest the request
+     * @param request     the request
+     * @param response    the response
+     * @throws IOException if an error occurred while sending the resource
+     */
+    private void sendPrecompressed(String target, Resource gz, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        baseRequest.setHandled(true);
+        long modified = gz.lastModified();
+        long since = request.getDateHeader("If-Modified-Since");
+        response.addHeader("Vary", "Accept-Encoding");
+        if (since > 0 && modified > 0 && modified / 1000 <= since / 1000) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        Buffer mime = getMimeTypes().getMimeByExtension(target);
+        response.setContentType(mime != null ? mime.toString() : "application/octet-stream");
+        response.setHeader("Content-Encoding", Compression.GZIP);
+        response.setHeader("Content-Length", Long.toString(gz.length()));
+        if (modified > 0) {
+            response.setDateHeader("Last-Modified", modified);
+        }
+        if ("HEAD".equals(request.getMethod())) {
+            return;
+        }
+        InputStream in = gz.getInputStream();
+        try {
+            OutputStream out = response.getOutputStream();
+            byte[] buf = new byte[8192];
+            int nb = in.read(buf);
+            while (nb > 0) {
+                out.write(buf, 0, nb);
+                nb = in.read(buf);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Indicates whether a content type is compressible.
+     *
+     * @param type the content type, may have parameters
+     * @return {@code true} if the content type is compressible
+     */
+    private boolean isCompressible(String type) {
+        if (type == null) {
+            return false;
+        }
+        int idx = type.indexOf(';');
+        String t = (idx < 0 ? type : type.substring(0, idx)).trim().toLowerCase();
+        return t.startsWith("text/") || compressibles.contains(t);
+    }
+
+    /**
+     * A response that compresses its content if its content type is compressible.
+     * The content length is not sent for a compressed content as it is not known in advance.
+     */
+    private class CompressingResponse extends HttpServletResponseWrapper {
+
+        private final String enc;
+
+        private String type;
+
+        private long length = -1;
+
+        private ServletOutputStream out;
+
+        private DeflaterOutputStream compressed;
+
+        private Deflater deflater;
+
+        private PrintWriter writer;
+
+        public CompressingResponse(HttpServletResponse r, String enc) {
+            super(r);
+            this.enc = enc;
+        }
+
+        @Override
+        public void setContentType(String t) {
+            this.type = t;
+            super.setContentType(t);
+        }
+
+        @Override
+        public void setContentLength(int l) {
+            this.length = l;
+        }
+
+        @Override
+        public void setHeader(String n, String v) {
+            if ("Content-Length".equalsIgnoreCase(n)) {
+                length = Long.parseLong(v);
+            } else {
+                super.setHeader(n, v);
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                final ServletOutputStream raw = super.getOutputStream();
+                if (isCompressible(type)) {
+                    super.addHeader("Vary", "Accept-Encoding");
+                }
+                if (isCompressible(type) && (length < 0 || length >= MIN_SIZE)) {
+                    super.setHeader("Content-Encoding", enc);
+                    deflater = Compression.deflater(enc);
+                    compressed = Compression.compress(raw, enc, deflater);
+                    out = new ServletOutputStream() {
+                        @Override
+                        public void write(int b) throws IOException {
+                            compressed.write(b);
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            compressed.write(b, off, len);
+                        }
+
+                        @Override
+                        public void flush() throws IOException {
+                            compressed.flush();
+                        }
+                    };
+                } else {
+                    if (length >= 0) {
+                        super.setHeader("Content-Length", Long.toString(length));
+                    }
+                    out = raw;
+                }
+            }
+            return out;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                String cs = getCharacterEncoding();
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), cs != null ? cs : "ISO-8859-1"));
+            }
+            return writer;
+        }
+
+        /**
+         * Terminate the compressed content, if any.
+         *
+         * @throws IOException if an error occurred while writing the end of the content
+         */
+        public void finish() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (compressed != null) {
+                compressed.finish();
+            }
+        }
+
+        /**
+         * Release the compressor, if any.
+         * Must be called once the response is finished or has failed.
+         */
+        public void end() {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Helpers to negotiate and apply the HTTP content encodings.
+ * The supported encodings are <b>gzip</b> and <b>deflate</b>, <b>gzip</b> is preferred.
+ * <p/>
+ * A {@link Deflater} or an {@link Inflater} holds native memory until it is ended, so the
+ * caller creates it using {@link #deflater(String)} or {@link #inflater(String)} and ends it
+ * once the stream is finished, without waiting for the finalizer.
+ *
+ * @author Fabien Hermenier
+ */
+final class Compression {
+
+    /**
+     * The gzip encoding.
+     */
+    static final String GZIP = "gzip";
+
+    /**
+     * The deflate encoding.
+     */
+    static final String DEFLATE = "deflate";
+
+    /**
+     * The value of the <b>Accept-Encoding</b> header sent by the handlers.
+     */
+    static final String ACCEPTED = GZIP + ", " + DEFLATE;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private Compression() {
+    }
+    /**
+     * Select the encoding to use for a response.
+     *
+     * @param accept the value of the <b>Accept-Encoding</b> header of the request. May be {@code null}
+     * @return {@link #GZIP}, {@link #DEFLATE} or {@code null} if the response must not be encoded
+     */
+    static String accepted(String accept) {
+        if (accept == null) {
+            return null;
+        }
+        boolean deflate = false;
+        for (String t : accept.split(",")) {
+            String[] params = t.split(";");
+            String enc = params[0].trim();
+            if (params.length > 1 && params[1].trim().matches("q\\s*=\\s*0(\\.0*)?")) {
+                continue;
+            }
+            if (GZIP.equalsIgnoreCase(enc) || "x-gzip".equalsIgnoreCase(enc) || "*".equals(enc)) {
+                return GZIP;
+            } else if (DEFLATE.equalsIgnoreCase(enc)) {
+                deflate = true;
+            }
+        }
+        return deflate ? DEFLATE : null;
+    }
+
+    /**
+     * Indicates whether a content encoding can be decoded.
+     *
+     * @param enc the value of the <b>Content-Encoding</b> header. May be {@code null}
+     * @return {@code true} if the content is not encoded or if the encoding is supported
+     */
+    static boolean isSupported(String enc) {
+        return enc == null || "identity".equalsIgnoreCase(enc) || GZIP.equalsIgnoreCase(enc)
+                || "x-gzip".equalsIgnoreCase(enc) || DEFLATE.equalsIgnoreCase(enc);
+    }
+
+    /**
+     * Indicates whether a content encoding is not the identity.
+     *
+     * @param enc the value of the <b>Content-Encoding</b> header. May be {@code null}
+     * @return {@code true} if the content must be decoded
+     */
+    static boolean isEncoded(String enc) {
+        return enc != null && !"identity".equalsIgnoreCase(enc);
+    }
+
+    /**
+     * Make the compressor of an encoding.
+     * It must be ended once the stream is finished.
+     *
+     * @param enc the encoding, either {@link #GZIP} or {@link #DEFLATE}
+     * @return the compressor
+     */
+    static Deflater deflater(String enc) {
+        //gzip wraps the raw deflate format with its own header and trailer
+        return new Deflater(Deflater.DEFAULT_COMPRESSION, !DEFLATE.equalsIgnoreCase(enc));
+    }
+
+    /**
+     * Make the decompressor of an encoding.
+     * It must be ended once the stream is read.
+     *
+     * @param enc the value of the <b>Content-Encoding</b> header. It must be supported
+     * @return the decompressor, {@code null} if the content is not encoded
+     * @see #isSupported(String)
+     */
+    static Inflater inflater(String enc) {
+        if (!isEncoded(enc)) {
+            return null;
+        }
+        return new Inflater(!DEFLATE.equalsIgnoreCase(enc));
+    }
+
+    /**
+     * Encode a stream.
+     *
+     * @param out the stream to encode
+     * @param enc the encoding, either {@link #GZIP} or {@link #DEFLATE}
+     * @param d   the compressor made by {@link #deflater(String)} for this encoding
+     * @return the encoding stream. It must be finished using {@link DeflaterOutputStream#finish()}
+     * @throws IOException if an error occurred while writing the header of the encoding
+     */
+    static DeflaterOutputStream compress(OutputStream out, String enc, Deflater d) throws IOException {
+        if (DEFLATE.equalsIgnoreCase(enc)) {
+            return new DeflaterOutputStream(out, d, BUFFER_SIZE);
+        }
+        return new GzipOutputStream(out, d);
+    }
+
+    /**
+     * Decode a stream.
+     *
+     * @param in  the stream to decode
+     * @param enc the value of the <b>Content-Encoding</b> header. It must be supported
+     * @param i   the decompressor made by {@link #inflater(String)} for this encoding
+     * @return the decoding stream, {@code in} if the stream is not encoded
+     * @throws IOException if an error occurred while reading the header of the encoding
+     * @see #isSupported(String)
+     */
+    static InputStream decompress(InputStream in, String enc, Inflater i) throws IOException {
+        if (!isEncoded(enc)) {
+            return in;
+        } else if (DEFLATE.equalsIgnoreCase(enc)) {
+            return new InflaterInputStream(in, i, BUFFER_SIZE);
+        }
+        return new GzipInputStream(in, i);
+    }
+
+    /**
+     * A gzip stream using a given compressor.
+     * The header is minimal: no name, no modification time.
+     */
+    private static final class GzipOutputStream extends DeflaterOutputStream {
+
+        private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+        private final CRC32 crc = new CRC32();
+
+        GzipOutputStream(OutputStream out, Deflater d) throws IOException {
+            super(out, d, BUFFER_SIZE);
+            out.write(HEADER);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            crc.update(b, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (!def.finished()) {
+                super.finish();
+                writeInt((int) crc.getValue());
+                writeInt((int) def.getBytesRead());
+            }
+        }
+
+        private void writeInt(int v) throws IOException {
+            out.write(v & 0xFF);
+            out.write((v >> 8) & 0xFF);
+            out.write((v >> 16) & 0xFF);
+            out.write((v >> 24) & 0xFF);
+        }
+    }
+
+    /**
+     * A gzip stream using a given decompressor.
+     * The trailer is checked once the compressed data are read. A single member is read.
+     */
+    private static final class GzipInputStream extends InflaterInputStream {
+
+        private static final int FHCRC = 2;
+
+        private static final int FEXTRA = 4;
+
+        private static final int FNAME = 8;
+
+        private static final int FCOMMENT = 16;
+
+        private final CRC32 crc = new CRC32();
+
+        private boolean eos = false;
+
+        GzipInputStream(InputStream in, Inflater i) throws IOException {
+            super(in, i, BUFFER_SIZE);
+            readHeader();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int l) throws IOException {
+            if (eos) {
+                return -1;
+            }
+            int n = super.read(b, off, l);
+            if (n < 0) {
+                eos = true;
+                readTrailer();
+            } else {
+                crc.update(b, off, n);
+            }
+            return n;
+        }
+
+        private void readHeader() throws IOException {
+            if (readByte(in) != 0x1f || readByte(in) != 0x8b) {
+                throw new ZipException("Not in GZIP format");
+            }
+            if (readByte(in) != Deflater.DEFLATED) {
+                throw new ZipException("Unsupported compression method");
+            }
+            int flags = readByte(in);
+            //Modification time, extra flags and operating system
+            skipBytes(6);
+            if ((flags & FEXTRA) != 0) {
+                skipBytes(readByte(in) | (readByte(in) << 8));
+            }
+            //The name and the comment are zero-terminated
+            if ((flags & FNAME) != 0) {
+                skipString();
+            }
+            if ((flags & FCOMMENT) != 0) {
+                skipString();
+            }
+            if ((flags & FHCRC) != 0) {
+                skipBytes(2);
+            }
+        }
+
+        private void readTrailer() throws IOException {
+            //The trailer may be partially read by the decompressor already
+            int r = inf.getRemaining();
+            InputStream t = new SequenceInputStream(new ByteArrayInputStream(buf, len - r, r), in);
+            long c = readInt(t);
+            long size = readInt(t);
+            if (c != crc.getValue() || size != (inf.getBytesWritten() & 0xFFFFFFFFL)) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+        }
+
+        private void skipString() throws IOException {
+            int b = readByte(in);
+            while (b != 0) {
+                b = readByte(in);
+            }
+        }
+
+        private void skipBytes(int n) throws IOException {
+            for (int x = 0; x < n; x++) {
+                readByte(in);
+            }
+        }
+
+        private static long readInt(InputStream t) throws IOException {
+            return readByte(t) | (readByte(t) << 8) | (readByte(t) << 16) | ((long) readByte(t) << 24);
+        }
+
+        private static int readByte(InputStream t) throws IOException {
+            int b = t.read();
+            if (b < 0) {
+                throw new EOFException("Unexpected end of GZIP input stream");
+            }
+            return b;
+        }
+    }
+}
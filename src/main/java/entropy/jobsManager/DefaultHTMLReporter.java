@@ -63,7 +63,7 @@ public class DefaultHTMLReporter implements HTMLReporter {
         r.getWriter().println("<style type=\"text/css\">");
         r.getWriter().println("table {\nborder-collapse: collapse; padding: 5px;\n border: solid black 1px;}");
         r.getWriter().println("td{border: solid black 1px; width: 20px; height: 20px; text-align: center; padding: 5px;}");
-        r.getWriter().println("td.completed{background-color: green;}\ntd.waiting{background-color: yellow;}\ntd.running{background-color: orange;}");
+        r.getWriter().println("td.completed{background-color: green;}\ntd.waiting{background-color: yellow;}\ntd.running{background-color: orange;}\ntd.failed{background-color: red;}");
         r.getWriter().println("textarea { width: 80%; height: 100px}");
         r.getWriter().println("h1 {text-align: center;}");
         r.getWriter().println("</style>");
@@ -98,7 +98,7 @@ public class DefaultHTMLReporter implements HTMLReporter {
         r.getWriter().println("<table>\n<tr>");
         while (i < jobs.size()) {
             int id = jobs.get(i);
-            Job j = dispatcher.getJob(id);
+            Job j = dispatcher.getJob(id, false);
             r.getWriter().println("<td class=\"" + getStatus(j) + "\"><a href=\"/?j=" + j.getId() + "&output=html\">" + j.getId() + "</a></td>");
             if (((i + 1) % getJobColumnsWidth() == 0)) {
                 r.getWriter().println("</tr><tr>");
@@ -109,12 +109,16 @@ public class DefaultHTMLReporter implements HTMLReporter {
     }
 
     private String getStatus(Job j) {
-        if (j.getCommitedTime() > 0) {
-            return "completed";
-        } else if (j.getDequeuedTime() > 0) {
-            return "running";
+        switch (j.getState()) {
+            case Job.COMMITED:
+                return "completed";
+            case Job.RUNNING:
+                return "running";
+            case Job.FAILED:
+                return "failed";
+            default:
+                return "waiting";
         }
-        return "waiting";
     }
 
     @Override
@@ -140,6 +144,12 @@ public class DefaultHTMLReporter implements HTMLReporter {
         long c = j.getCommitedTime();
         r.getWriter().println(c > 0 ? df.format(c) : "-");
         r.getWriter().println("</li>");
+        r.getWriter().println("<li>Attempts: ");
+        r.getWriter().println(j.getAttempts());
+        r.getWriter().println("</li>");
+        if (j.isEvicted()) {
+            r.getWriter().println("<li>Values: evicted (" + j.getEvictedSize() + " characters)</li>");
+        }
 
 
         r.getWriter().println("</ul>");
@@ -169,11 +179,14 @@ public class DefaultHTMLReporter implements HTMLReporter {
         TIntArrayList ws = dispatcher.getWaitings();
         TIntArrayList rs = dispatcher.getRunnings();
         TIntArrayList cs = dispatcher.getComitted();
+        TIntArrayList fs = dispatcher.getFailed();
         int nbWaitings = ws.size();
         int nbRunnings = rs.size();
         int nbCommited = cs.size();
-        r.getWriter().println((nbWaitings + nbCommited + nbRunnings) + " jobs: " + nbWaitings + " waitings; " + nbRunnings + " runnings; " + nbCommited + " commited<br/>");
-        TIntArrayList allJobs = new TIntArrayList(nbWaitings + nbCommited + nbRunnings);
+        int nbFailed = fs.size();
+        r.getWriter().println((nbWaitings + nbCommited + nbRunnings + nbFailed) + " jobs: " + nbWaitings + " waitings; " + nbRunnings + " runnings; " + nbCommited + " commited; " + nbFailed + " failed<br/>");
+        TIntArrayList allJobs = new TIntArrayList(nbWaitings + nbCommited + nbRunnings + nbFailed);
+        allJobs.add(fs.toNativeArray());
         allJobs.add(cs.toNativeArray());
         allJobs.add(rs.toNativeArray());
         allJobs.add(ws.toNativeArray());
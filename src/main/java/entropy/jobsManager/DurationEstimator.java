@@ -0,0 +1,117 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Estimate the duration of the jobs from the duration of the past jobs of the same class.
+ * The class of a job is the value associated to a given key. The estimated duration of a class is
+ * the average duration of its commited jobs, ie. the time between their dequeue and their commit.
+ * The estimator is thread-safe.
+ *
+ * @author Fabien Hermenier
+ * @see LPTWaitingQueue
+ */
+public class DurationEstimator {
+
+    /**
+     * The value returned for a class without any history.
+     */
+    public static final long UNKNOWN = -1L;
+
+    /**
+     * The key that indicates the class of a job.
+     */
+    private final String key;
+
+    /**
+     * For each class, the number of samples and their cumulated duration.
+     */
+    private final Map<String, long[]> stats;
+
+    /**
+     * Make a new estimator.
+     *
+     * @param k the key that indicates the class of a job
+     */
+    public DurationEstimator(String k) {
+        this.key = k;
+        this.stats = new HashMap<String, long[]>();
+    }
+
+    /**
+     * Get the key that indicates the class of a job.
+     *
+     * @return the key given at instantiation
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Get the class of a job.
+     *
+     * @param j the job
+     * @return the value associated to the key. An empty string if there is no value
+     */
+    public String classOf(Job j) {
+        String c = j.get(key);
+        return c == null ? "" : c;
+    }
+
+    /**
+     * Record the duration of a commited job.
+     *
+     * @param j the job
+     */
+    public void record(Job j) {
+        if (j.getDequeuedTime() > 0 && j.getCommitedTime() >= j.getDequeuedTime()) {
+            record(classOf(j), j.getCommitedTime() - j.getDequeuedTime());
+        }
+    }
+
+    /**
+     * Record a duration for a class of jobs.
+     * This allows to use the history of a previous campaign.
+     *
+     * @param c the class
+     * @param d the duration in milliseconds
+     */
+    public synchronized void record(String c, long d) {
+        long[] st = stats.get(c);
+        if (st == null) {
+            st = new long[2];
+            stats.put(c, st);
+        }
+        st[0]++;
+        st[1] += d;
+    }
+
+    /**
+     * Get the estimated duration of a class of jobs.
+     *
+     * @param c the class
+     * @return the average duration in milliseconds or {@link #UNKNOWN} if there is no history
+     */
+    public synchronized long estimate(String c) {
+        long[] st = stats.get(c);
+        return st == null ? UNKNOWN : st[1] / st[0];
+    }
+}
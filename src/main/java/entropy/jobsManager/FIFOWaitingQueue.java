@@ -0,0 +1,59 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A waiting queue that dequeues the jobs in their insertion order.
+ * This is the default queue of a JobDispatcher. It is lock-free.
+ *
+ * @author Fabien Hermenier
+ * @see IntQueue
+ */
+public class FIFOWaitingQueue implements WaitingQueue {
+
+    private final IntQueue queue = new IntQueue();
+
+    @Override
+    public void offer(Job j) {
+        queue.offer(j.getId());
+    }
+
+    @Override
+    public int drainTo(int[] dst, int max) {
+        return queue.drainTo(dst, max);
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * {@inheritDoc}
+     * The identifiers are ordered from the head to the tail of the queue.
+     */
+    @Override
+    public int[] toNativeArray() {
+        return queue.toNativeArray();
+    }
+}
@@ -0,0 +1,85 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A job store that keeps the jobs on the heap.
+ * The jobs are returned as is, so the modifications are visible without any update.
+ * This is the default store.
+ *
+ * @author Fabien Hermenier
+ */
+public class HeapJobStore implements JobStore {
+
+    private final ConcurrentMap<Integer, Job> jobs;
+
+    /**
+     * Make a new empty store.
+     */
+    public HeapJobStore() {
+        jobs = new ConcurrentHashMap<Integer, Job>();
+    }
+
+    @Override
+    public void put(Job j) {
+        jobs.put(j.getId(), j);
+    }
+
+    @Override
+    public Job get(int id) {
+        return jobs.get(id);
+    }
+
+    @Override
+    public int getState(int id) {
+        Job j = jobs.get(id);
+        return j == null ? Job.CREATED : j.getState();
+    }
+
+    @Override
+    public boolean compareAndSetState(Job j, int expect, int update) {
+        return j.compareAndSetState(expect, update);
+    }
+
+    @Override
+    public void update(Job j, boolean values) {
+        //The job is the stored one
+    }
+
+    @Override
+    public int size() {
+        return jobs.size();
+    }
+
+    @Override
+    public int[] ids() {
+        Integer[] keys = jobs.keySet().toArray(new Integer[0]);
+        int[] res = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            res[i] = keys[i];
+        }
+        return res;
+    }
+
+    @Override
+    public void close() {
+    }
+}
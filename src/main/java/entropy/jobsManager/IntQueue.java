@@ -0,0 +1,356 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A lock-free FIFO queue of primitive integers that supports multiple
+ * producers and multiple consumers.
+ * <p/>
+ * The elements are stored in a ring buffer where each slot carries a sequence number
+ * telling whether it is free or filled for the current lap. Producers and consumers
+ * reserve slots with a compare-and-set on the tail or the head index, so adding and
+ * removing an element are made in constant time, without any lock, and the ring is
+ * reused lap after lap without any allocation.
+ * <p/>
+ * When the ring is full, it is closed and a ring twice as large is linked after it.
+ * The producers continue in the new ring while the consumers drain the closed one
+ * before moving to the new one. So the queue only allocates while it grows.
+ *
+ * @author Fabien Hermenier
+ */
+public class IntQueue {
+
+    /**
+     * The number of slots of the first ring.
+     */
+    public static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * The maximum number of slots of a ring. Once reached, the queue grows by rings of that size.
+     */
+    public static final int MAX_CAPACITY = 1 << 16;
+
+    /**
+     * Marker for an empty ring. Not a valid integer.
+     */
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    /**
+     * The ring to consume from.
+     */
+    private final AtomicReference<Ring> head;
+
+    /**
+     * The ring to produce into.
+     */
+    private final AtomicReference<Ring> tail;
+
+    /**
+     * Make a new empty queue.
+     */
+    public IntQueue() {
+        Ring r = new Ring(INITIAL_CAPACITY);
+        head = new AtomicReference<Ring>(r);
+        tail = new AtomicReference<Ring>(r);
+    }
+
+    /**
+     * Add an element at the tail of the queue.
+     *
+     * @param v the element to add
+     */
+    public void offer(int v) {
+        while (true) {
+            Ring t = tail.get();
+            if (t.offer(v)) {
+                return;
+            }
+            //The ring is closed, produce in the next one
+            Ring n = t.next;
+            if (n == null) {
+                Ring r = new Ring(Math.min(t.capacity() << 1, MAX_CAPACITY));
+                n = Ring.NEXT.compareAndSet(t, null, r) ? r : t.next;
+            }
+            tail.compareAndSet(t, n);
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue.
+     * An element whose producer has not completed its addition yet is not visible, as in
+     * {@link #drainTo(int[], int)}.
+     *
+     * @return the removed element
+     * @throws NoSuchElementException if the queue is empty
+     */
+    public int poll() {
+        while (true) {
+            Ring h = head.get();
+            long x = h.poll();
+            if (x != EMPTY) {
+                return (int) x;
+            }
+            Ring next = h.next;
+            if (next == null || !h.isDrained()) {
+                throw new NoSuchElementException("Empty queue");
+            }
+            head.compareAndSet(h, next);
+        }
+    }
+
+    /**
+     * Remove at most {@code max} elements from the head of the queue.
+     * The slots of the head ring are reserved at once, so a batch
+     * costs a single atomic operation per ring it spans.
+     * An element whose producer has not completed its addition yet is not removed,
+     * nor the elements after it.
+     *
+     * @param dst the array to store the removed elements in
+     * @param max the maximum number of elements to remove
+     * @return the number of elements removed and stored at the beginning of {@code dst}
+     */
+    public int drainTo(int[] dst, int max) {
+        int n = 0;
+        while (n < max) {
+            Ring h = head.get();
+            int k = h.drainTo(dst, n, max - n);
+            if (k > 0) {
+                n += k;
+            } else {
+                Ring next = h.next;
+                if (next == null || !h.isDrained()) {
+                    break;
+                }
+                head.compareAndSet(h, next);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Get the number of elements in the queue.
+     * The value is exact when the queue is not modified concurrently.
+     *
+     * @return a positive integer
+     */
+    public int size() {
+        long nb = 0;
+        for (Ring r = head.get(); r != null; r = r.next) {
+            nb += r.size();
+        }
+        return (int) Math.min(nb, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Check if the queue is empty.
+     *
+     * @return {@code true} if there is no element in the queue
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Get a copy of the elements, from the head to the tail of the queue.
+     * The copy is weakly consistent: elements added or removed during the
+     * copy may be reported or not.
+     *
+     * @return an array that may be empty
+     */
+    public int[] toNativeArray() {
+        int[] res = new int[size() + 16];
+        int n = 0;
+        for (Ring r = head.get(); r != null; r = r.next) {
+            long to = r.tail.get() & Ring.CLOSED_MASK;
+            for (long p = r.head.get(); p < to; p++) {
+                int i = (int) p & r.mask;
+                if (r.seqs.get(i) == p + 1) {
+                    int v = r.values[i];
+                    if (r.seqs.get(i) == p + 1) {
+                        if (n == res.length) {
+                            int[] bigger = new int[res.length << 1];
+                            System.arraycopy(res, 0, bigger, 0, n);
+                            res = bigger;
+                        }
+                        res[n++] = v;
+                    }
+                }
+            }
+        }
+        int[] copy = new int[n];
+        System.arraycopy(res, 0, copy, 0, n);
+        return copy;
+    }
+
+    /**
+     * A bounded ring of slots.
+     * The slot of the position {@code p} is free for the lap of {@code p} when its sequence number
+     * is {@code p} and filled when it is {@code p + 1}. Once consumed, its sequence number is set
+     * to the position of the next lap.
+     */
+    private static final class Ring {
+
+        private static final AtomicReferenceFieldUpdater<Ring, Ring> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Ring.class, Ring.class, "next");
+
+        /**
+         * The flag set on the tail index once the ring is closed to the producers.
+         */
+        private static final long CLOSED = 1L << 62;
+
+        private static final long CLOSED_MASK = ~CLOSED;
+
+        private final int mask;
+
+        private final int[] values;
+
+        private final AtomicLongArray seqs;
+
+        private final AtomicLong head = new AtomicLong();
+
+        private final AtomicLong tail = new AtomicLong();
+
+        private volatile Ring next;
+
+        /**
+         * Make an empty ring.
+         *
+         * @param capacity the number of slots, a power of 2
+         */
+        Ring(int capacity) {
+            mask = capacity - 1;
+            values = new int[capacity];
+            seqs = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                seqs.set(i, i);
+            }
+        }
+
+        /**
+         * Get the number of slots.
+         *
+         * @return a power of 2
+         */
+        int capacity() {
+            return mask + 1;
+        }
+
+        /**
+         * Add an element, unless the ring is closed.
+         * A producer that finds the ring full closes it.
+         *
+         * @param v the element to add
+         * @return {@code true} if the element was added. {@code false} if the ring is closed
+         */
+        boolean offer(int v) {
+            while (true) {
+                long t = tail.get();
+                if ((t & CLOSED) != 0) {
+                    return false;
+                }
+                int i = (int) t & mask;
+                long s = seqs.get(i);
+                if (s == t) {
+                    if (tail.compareAndSet(t, t + 1)) {
+                        values[i] = v;
+                        seqs.set(i, t + 1);
+                        return true;
+                    }
+                } else if (s < t) {
+                    //The slot is not consumed since the previous lap: the ring is full
+                    tail.compareAndSet(t, t | CLOSED);
+                }
+            }
+        }
+
+        /**
+         * Remove the element at the head of the ring.
+         *
+         * @return the element or {@link IntQueue#EMPTY} if the head slot is not filled
+         */
+        long poll() {
+            while (true) {
+                long h = head.get();
+                int i = (int) h & mask;
+                if (seqs.get(i) != h + 1) {
+                    return EMPTY;
+                }
+                if (head.compareAndSet(h, h + 1)) {
+                    int v = values[i];
+                    seqs.set(i, h + mask + 1);
+                    return v;
+                }
+            }
+        }
+
+        /**
+         * Remove at most {@code max} consecutive filled slots.
+         *
+         * @param dst the array to store the removed elements in
+         * @param off the offset in {@code dst}
+         * @param max the maximum number of elements to remove
+         * @return the number of removed elements
+         */
+        int drainTo(int[] dst, int off, int max) {
+            while (true) {
+                long h = head.get();
+                int n = 0;
+                while (n < max && seqs.get((int) (h + n) & mask) == h + n + 1) {
+                    n++;
+                }
+                if (n == 0) {
+                    return 0;
+                }
+                if (head.compareAndSet(h, h + n)) {
+                    for (int k = 0; k < n; k++) {
+                        int i = (int) (h + k) & mask;
+                        dst[off + k] = values[i];
+                        seqs.set(i, h + k + mask + 1);
+                    }
+                    return n;
+                }
+            }
+        }
+
+        /**
+         * Check if the ring is closed and all its elements were removed.
+         *
+         * @return {@code true} if the ring will not contain any element anymore
+         */
+        boolean isDrained() {
+            long t = tail.get();
+            return (t & CLOSED) != 0 && head.get() == (t & CLOSED_MASK);
+        }
+
+        /**
+         * Get the number of reserved slots that are not consumed.
+         *
+         * @return a positive number
+         */
+        long size() {
+            long h = head.get();
+            return Math.max(0, (tail.get() & CLOSED_MASK) - h);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A codec that encodes the jobs in JSON, using UTF-8 unless another charset is specified.
+ * This is the historical protocol, used when the peer does not ask for another encoding.
+ *
+ * @author Fabien Hermenier
+ * @see Job#toJSON(java.io.Writer)
+ */
+public class JSONJobCodec implements JobCodec {
+
+    /**
+     * The content type of the messages.
+     */
+    public static final String CONTENT_TYPE = "text/json";
+
+    private final String charset;
+
+    /**
+     * Make a new codec that uses UTF-8.
+     */
+    public JSONJobCodec() {
+        this("UTF-8");
+    }
+
+    /**
+     * Make a new codec.
+     *
+     * @param cs the name of the charset to use
+     */
+    public JSONJobCodec(String cs) {
+        this.charset = cs;
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public void write(Job j, OutputStream out) throws IOException {
+        j.toJSON(new OutputStreamWriter(out, charset));
+    }
+
+    @Override
+    public void write(Collection<Job> js, OutputStream out) throws IOException {
+        Job.toJSON(js, new OutputStreamWriter(out, charset));
+    }
+
+    @Override
+    public Job read(InputStream in) throws IOException {
+        return Job.fromJSON(new InputStreamReader(in, charset));
+    }
+
+    @Override
+    public List<Job> readAll(InputStream in) throws IOException {
+        return Job.fromJSONArray(new InputStreamReader(in, charset));
+    }
+}
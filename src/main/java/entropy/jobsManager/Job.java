@@ -18,29 +18,95 @@ package entropy.jobsManager;
  *      along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * A job is the primary component exchanged by JobDispatcher and JobHandler.
  * It has an unique identifier and is composed by several pair of key/value.
+ * <p/>
+ * The keys are shared by the jobs of a dispatcher through a bounded dictionary, so the values of a job
+ * are stored in an array indexed by key. The values of the keys that do not fit in the dictionary are
+ * stored in a map. Associating a {@code null} value to a key removes the key.
+ * <p/>
+ * The jobs are serialized in JSON using a streaming writer and read using a streaming reader,
+ * so a job is never converted into an intermediate tree or string.
  *
  * @author Fabien Hermenier
  */
 public class Job {
 
+    /**
+     * State of a job that was not enqueued yet.
+     */
+    static final int CREATED = 0;
+
+    /**
+     * State of a job waiting in the queue of a dispatcher.
+     */
+    static final int WAITING = 1;
+
+    /**
+     * State of a job computed by a handler.
+     */
+    static final int RUNNING = 2;
+
+    /**
+     * State of a job that was commited by its handler.
+     */
+    static final int COMMITED = 3;
+
+    /**
+     * State of a job that was abandoned after too many attempts.
+     */
+    static final int FAILED = 4;
+
+    /**
+     * To update atomically the state of the job.
+     */
+    private static final AtomicIntegerFieldUpdater<Job> STATE = AtomicIntegerFieldUpdater.newUpdater(Job.class, "state");
+
+    private static final String[] NO_VALUES = new String[0];
+
     /**
      * The identifier of the job.
      */
     private int id;
 
     /**
-     * The key/value pairs of the job.
+     * The dictionary that indexes the keys of the job.
+     */
+    private transient KeyDictionary dict;
+
+    /**
+     * The values of the job, indexed by key.
+     *
+     * @see KeyDictionary
+     */
+    private String[] values;
+
+    /**
+     * The values of the keys that are not in the dictionary. {@code null} if there is none.
      */
-    private Map<String, String> values;
+    private Map<String, String> extra;
 
     /**
      * The moment the job was enqueued.
@@ -57,14 +123,65 @@ public class Job {
      */
     private long commitedTime = -1L;
 
+    /**
+     * The current state of the job inside the dispatcher.
+     * Not sent to the handlers.
+     */
+    private transient volatile int state = CREATED;
+
+    /**
+     * The priority of the job.
+     */
+    private int priority = 0;
+
+    /**
+     * The number of times the job was dequeued.
+     */
+    private int attempts = 0;
+
+    /**
+     * The moment the lease of the running job expires.
+     */
+    private transient volatile long leaseDeadline = -1L;
+
+    /**
+     * The number of characters of the evicted key/value pairs. {@code -1} if the pairs were not evicted.
+     */
+    private transient int evictedSize = -1;
+
+    /**
+     * The position of the evicted key/value pairs in the spill file. {@code -1} if they were not spilled.
+     */
+    private transient long spillOffset = -1L;
+
     /**
      * Make a new job using a specific ID. Must be unique!
      *
      * @param id the identifier of the job
      */
     public Job(int id) {
+        this(id, KeyDictionary.SHARED);
+    }
+
+    /**
+     * Make a new job that indexes its keys using a given dictionary.
+     *
+     * @param id   the identifier of the job
+     * @param dict the dictionary of the keys
+     */
+    Job(int id, KeyDictionary dict) {
         this.id = id;
-        this.values = new HashMap<String, String>();
+        this.dict = dict;
+        this.values = NO_VALUES;
+    }
+
+    /**
+     * Get the dictionary that indexes the keys of the job.
+     *
+     * @return the dictionary
+     */
+    KeyDictionary getDictionary() {
+        return dict;
     }
 
     /**
@@ -73,7 +190,28 @@ public class Job {
      * @return a set of keys, may be empty
      */
     public Set<String> getKeys() {
-        return values.keySet();
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new KeyIterator();
+            }
+
+            @Override
+            public int size() {
+                int n = extra == null ? 0 : extra.size();
+                for (String v : values) {
+                    if (v != null) {
+                        n++;
+                    }
+                }
+                return n;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof String && get((String) o) != null;
+            }
+        };
     }
 
     /**
@@ -83,7 +221,13 @@ public class Job {
      * @return the associated value or null
      */
     public String get(String k) {
-        return values.get(k);
+        int i = dict.lookup(k);
+        String[] vs = values;
+        String v = i >= 0 && i < vs.length ? vs[i] : null;
+        if (v == null && extra != null) {
+            v = extra.get(k);
+        }
+        return v;
     }
 
     /**
@@ -91,10 +235,35 @@ public class Job {
      * If the key already has a value, it is overwrittent.
      *
      * @param k the key
-     * @param v the value
+     * @param v the value. {@code null} to remove the key
      */
     public void put(String k, String v) {
-        values.put(k, v);
+        int i = dict.intern(k);
+        if (extra != null) {
+            //The key may have entered the dictionary since it was put
+            extra.remove(k);
+            if (extra.isEmpty()) {
+                extra = null;
+            }
+        }
+        if (i < 0) {
+            if (v != null) {
+                if (extra == null) {
+                    extra = new HashMap<String, String>(4);
+                }
+                extra.put(k, v);
+            }
+            return;
+        }
+        if (i >= values.length) {
+            if (v == null) {
+                return;
+            }
+            String[] bigger = new String[i + 1];
+            System.arraycopy(values, 0, bigger, 0, values.length);
+            values = bigger;
+        }
+        values[i] = v;
     }
 
     /**
@@ -107,12 +276,204 @@ public class Job {
     }
 
 
+    /**
+     * Serialize the job in JSON.
+     *
+     * @return a JSON object
+     */
     public String toJSON() {
-        return new Gson().toJson(this);
+        StringWriter out = new StringWriter();
+        try {
+            toJSON(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
     }
 
+    /**
+     * Serialize the job in JSON.
+     *
+     * @param out the writer to write the JSON object to. It is flushed but not closed
+     * @throws IOException if an error occurred while writing
+     */
+    public void toJSON(Writer out) throws IOException {
+        JsonWriter w = new JsonWriter(out);
+        write(w);
+        w.flush();
+    }
+
+    /**
+     * Deserialize a job.
+     *
+     * @param buffer the JSON object
+     * @return the job
+     * @throws JsonParseException if the JSON object is not a job
+     */
     public static Job fromJSON(String buffer) {
-        return new Gson().fromJson(buffer, Job.class);
+        try {
+            return fromJSON(new StringReader(buffer));
+        } catch (IOException e) {
+            throw new JsonParseException(e);
+        }
+    }
+
+    /**
+     * Deserialize a job.
+     *
+     * @param in the reader to read the JSON object from
+     * @return the job
+     * @throws IOException if an error occurred while reading or if the JSON object is not a job
+     */
+    public static Job fromJSON(Reader in) throws IOException {
+        return read(new JsonReader(in));
+    }
+
+    /**
+     * Serialize several jobs into a JSON array.
+     *
+     * @param jobs the jobs to serialize
+     * @return a JSON array
+     */
+    public static String toJSON(Collection<Job> jobs) {
+        StringWriter out = new StringWriter();
+        try {
+            toJSON(jobs, out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Serialize several jobs into a JSON array.
+     *
+     * @param jobs the jobs to serialize
+     * @param out  the writer to write the JSON array to. It is flushed but not closed
+     * @throws IOException if an error occurred while writing
+     */
+    public static void toJSON(Collection<Job> jobs, Writer out) throws IOException {
+        JsonWriter w = new JsonWriter(out);
+        w.beginArray();
+        for (Job j : jobs) {
+            j.write(w);
+        }
+        w.endArray();
+        w.flush();
+    }
+
+    /**
+     * Deserialize a JSON array of jobs.
+     *
+     * @param buffer the JSON array
+     * @return a list of jobs, may be empty
+     * @throws JsonParseException if the JSON array does not contain jobs
+     */
+    public static List<Job> fromJSONArray(String buffer) {
+        try {
+            return fromJSONArray(new StringReader(buffer));
+        } catch (IOException e) {
+            throw new JsonParseException(e);
+        }
+    }
+
+    /**
+     * Deserialize a JSON array of jobs.
+     *
+     * @param in the reader to read the JSON array from
+     * @return a list of jobs, may be empty
+     * @throws IOException if an error occurred while reading or if the JSON array does not contain jobs
+     */
+    public static List<Job> fromJSONArray(Reader in) throws IOException {
+        JsonReader r = new JsonReader(in);
+        List<Job> res = new ArrayList<Job>();
+        r.beginArray();
+        while (r.hasNext()) {
+            res.add(read(r));
+        }
+        r.endArray();
+        return res;
+    }
+
+    /**
+     * Write the job as a JSON object.
+     *
+     * @param w the writer
+     * @throws IOException if an error occurred while writing
+     */
+    private void write(JsonWriter w) throws IOException {
+        w.beginObject();
+        w.name("id").value(id);
+        w.name("values").beginObject();
+        String[] vs = values;
+        for (int i = 0; i < vs.length; i++) {
+            if (vs[i] != null) {
+                w.name(dict.key(i)).value(vs[i]);
+            }
+        }
+        if (extra != null) {
+            for (Map.Entry<String, String> e : extra.entrySet()) {
+                w.name(e.getKey()).value(e.getValue());
+            }
+        }
+        w.endObject();
+        w.name("enqueuedTime").value(enqueuedTime);
+        w.name("dequeuedTime").value(dequeuedTime);
+        w.name("commitedTime").value(commitedTime);
+        w.name("priority").value(priority);
+        w.name("attempts").value(attempts);
+        w.endObject();
+    }
+
+    /**
+     * Read a job from a JSON object.
+     * Unknown members are ignored.
+     *
+     * @param r the reader
+     * @return the job
+     * @throws IOException if an error occurred while reading or if the object is not a job
+     */
+    private static Job read(JsonReader r) throws IOException {
+        Job j = new Job(-1);
+        boolean hasId = false;
+        r.beginObject();
+        while (r.hasNext()) {
+            String n = r.nextName();
+            if (r.peek() == JsonToken.NULL) {
+                r.nextNull();
+            } else if ("id".equals(n)) {
+                j.id = r.nextInt();
+                hasId = true;
+            } else if ("values".equals(n)) {
+                r.beginObject();
+                while (r.hasNext()) {
+                    String k = r.nextName();
+                    if (r.peek() == JsonToken.NULL) {
+                        r.nextNull();
+                    } else {
+                        j.put(k, r.nextString());
+                    }
+                }
+                r.endObject();
+            } else if ("enqueuedTime".equals(n)) {
+                j.enqueuedTime = r.nextLong();
+            } else if ("dequeuedTime".equals(n)) {
+                j.dequeuedTime = r.nextLong();
+            } else if ("commitedTime".equals(n)) {
+                j.commitedTime = r.nextLong();
+            } else if ("priority".equals(n)) {
+                j.priority = r.nextInt();
+            } else if ("attempts".equals(n)) {
+                j.attempts = r.nextInt();
+            } else {
+                r.skipValue();
+            }
+        }
+        r.endObject();
+        if (!hasId) {
+            throw new IOException("Missing identifier for a job");
+        }
+        return j;
     }
 
     /**
@@ -121,7 +482,15 @@ public class Job {
      * @return a formatted string
      */
     public String toString() {
-        return "job(" + id + ", " + values + ")";
+        StringBuilder b = new StringBuilder("job(").append(id).append(", {");
+        for (Iterator<String> ite = new KeyIterator(); ite.hasNext(); ) {
+            String k = ite.next();
+            b.append(k).append('=').append(get(k));
+            if (ite.hasNext()) {
+                b.append(", ");
+            }
+        }
+        return b.append("})").toString();
     }
 
     /**
@@ -198,4 +567,258 @@ public class Job {
     void setCommitedTime(long commitedTime) {
         this.commitedTime = commitedTime;
     }
+
+    /**
+     * Get the state of the job inside the dispatcher.
+     *
+     * @return one of {@link #CREATED}, {@link #WAITING}, {@link #RUNNING}, {@link #COMMITED} or {@link #FAILED}
+     */
+    int getState() {
+        return state;
+    }
+
+    /**
+     * Set the state of the job inside the dispatcher.
+     *
+     * @param s the new state
+     */
+    void setState(int s) {
+        this.state = s;
+    }
+
+    /**
+     * Atomically change the state of the job if it is in the expected state.
+     *
+     * @param expect the expected state
+     * @param update the new state
+     * @return {@code true} if the state was changed
+     */
+    boolean compareAndSetState(int expect, int update) {
+        return STATE.compareAndSet(this, expect, update);
+    }
+
+    /**
+     * Get the priority of the job.
+     *
+     * @return the priority. {@code 0} by default
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Set the priority of the job.
+     * The priority is considered by a {@link PriorityWaitingQueue} when the job is enqueued.
+     * The higher the priority, the sooner the job is dequeued.
+     *
+     * @param p the priority
+     */
+    public void setPriority(int p) {
+        this.priority = p;
+    }
+
+    /**
+     * Get the number of times the job was dequeued.
+     *
+     * @return a positive integer
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Increment the number of times the job was dequeued.
+     * Must only be called by the dispatcher that owns the job in the running state.
+     *
+     * @return the new number of attempts
+     */
+    int incrementAttempts() {
+        return ++attempts;
+    }
+
+    /**
+     * Set the number of times the job was dequeued.
+     *
+     * @param n a positive integer
+     */
+    void setAttempts(int n) {
+        this.attempts = n;
+    }
+
+    /**
+     * Get the moment the lease of the running job expires.
+     *
+     * @return a time or {@code -1} if the job is not leased
+     */
+    long getLeaseDeadline() {
+        return leaseDeadline;
+    }
+
+    /**
+     * Set the moment the lease of the running job expires.
+     *
+     * @param t a time
+     */
+    void setLeaseDeadline(long t) {
+        this.leaseDeadline = t;
+    }
+
+    /**
+     * Check if the key/value pairs of the commited job were evicted from the dispatcher.
+     *
+     * @return {@code true} if the pairs were evicted
+     * @see JobDispatcher#setRetention(JobDispatcher.Retention, java.io.File)
+     */
+    public boolean isEvicted() {
+        return evictedSize >= 0;
+    }
+
+    /**
+     * Get the size of the key/value pairs that were evicted.
+     *
+     * @return a number of characters or {@code -1} if the pairs were not evicted
+     */
+    public int getEvictedSize() {
+        return evictedSize;
+    }
+
+    /**
+     * Mark the key/value pairs of a job restored without them as evicted.
+     *
+     * @param size the number of characters of the evicted pairs
+     */
+    void setEvictedSize(int size) {
+        this.evictedSize = size;
+    }
+
+    /**
+     * Get the position of the evicted key/value pairs in the spill file.
+     *
+     * @return a position or {@code -1} if the pairs were not spilled
+     */
+    long getSpillOffset() {
+        return spillOffset;
+    }
+
+    /**
+     * Remove the key/value pairs of the job.
+     *
+     * @param offset the position of the pairs in the spill file. {@code -1} if they were not spilled
+     */
+    void evict(long offset) {
+        int size = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                size += dict.key(i).length() + values[i].length();
+            }
+        }
+        if (extra != null) {
+            for (Map.Entry<String, String> e : extra.entrySet()) {
+                size += e.getKey().length() + e.getValue().length();
+            }
+        }
+        values = NO_VALUES;
+        extra = null;
+        evictedSize = size;
+        spillOffset = offset;
+    }
+
+    /**
+     * Make a copy of the job, without its key/value pairs.
+     *
+     * @return a new job
+     */
+    Job copyHeader() {
+        Job j = new Job(id);
+        j.dict = dict;
+        j.state = state;
+        j.priority = priority;
+        j.attempts = attempts;
+        j.enqueuedTime = enqueuedTime;
+        j.dequeuedTime = dequeuedTime;
+        j.commitedTime = commitedTime;
+        return j;
+    }
+
+    /**
+     * Index the keys of the job using another dictionary.
+     *
+     * @param d the dictionary to use
+     */
+    void rebind(KeyDictionary d) {
+        if (d == dict) {
+            return;
+        }
+        KeyDictionary old = dict;
+        String[] vs = values;
+        Map<String, String> ex = extra;
+        dict = d;
+        values = NO_VALUES;
+        extra = null;
+        for (int i = 0; i < vs.length; i++) {
+            if (vs[i] != null) {
+                put(old.key(i), vs[i]);
+            }
+        }
+        if (ex != null) {
+            for (Map.Entry<String, String> e : ex.entrySet()) {
+                put(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Iterate over the keys having a value: the keys of the dictionary, then the other keys.
+     */
+    private class KeyIterator implements Iterator<String> {
+
+        private int next = advance(0);
+
+        /**
+         * The index of the last key returned. {@code -1} if it cannot be removed, {@code -2} if it
+         * is not in the dictionary.
+         */
+        private int last = -1;
+
+        private final Iterator<String> others = extra == null ? null : extra.keySet().iterator();
+
+        private int advance(int from) {
+            int i = from;
+            while (i < values.length && values[i] == null) {
+                i++;
+            }
+            return i;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < values.length || (others != null && others.hasNext());
+        }
+
+        @Override
+        public String next() {
+            if (next < values.length) {
+                last = next;
+                next = advance(next + 1);
+                return dict.key(last);
+            } else if (others != null) {
+                String k = others.next();
+                last = -2;
+                return k;
+            }
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        public void remove() {
+            if (last == -2) {
+                others.remove();
+            } else if (last >= 0) {
+                values[last] = null;
+            } else {
+                throw new IllegalStateException();
+            }
+            last = -1;
+        }
+    }
 }
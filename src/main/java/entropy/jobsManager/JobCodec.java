@@ -0,0 +1,79 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An encoding of the jobs exchanged between a {@link JobDispatcher} and its {@link JobHandler}s.
+ * The encoding of a message is selected using its content type.
+ * A codec does not close the streams it reads from or writes to.
+ *
+ * @author Fabien Hermenier
+ * @see JSONJobCodec
+ * @see BinaryJobCodec
+ */
+public interface JobCodec {
+
+    /**
+     * Get the content type of the messages encoded with this codec.
+     *
+     * @return a MIME type
+     */
+    String getContentType();
+
+    /**
+     * Encode a job.
+     *
+     * @param j   the job to encode
+     * @param out the stream to write the message to. It is flushed
+     * @throws IOException if an error occurred while writing
+     */
+    void write(Job j, OutputStream out) throws IOException;
+
+    /**
+     * Encode several jobs in one message.
+     *
+     * @param js  the jobs to encode
+     * @param out the stream to write the message to. It is flushed
+     * @throws IOException if an error occurred while writing
+     */
+    void write(Collection<Job> js, OutputStream out) throws IOException;
+
+    /**
+     * Decode a job encoded with {@link #write(Job, java.io.OutputStream)}.
+     *
+     * @param in the stream to read the message from
+     * @return the job
+     * @throws IOException if an error occurred while reading or if the message is malformed
+     */
+    Job read(InputStream in) throws IOException;
+
+    /**
+     * Decode several jobs encoded with {@link #write(java.util.Collection, java.io.OutputStream)}.
+     *
+     * @param in the stream to read the message from
+     * @return the jobs, may be empty
+     * @throws IOException if an error occurred while reading or if the message is malformed
+     */
+    List<Job> readAll(InputStream in) throws IOException;
+}
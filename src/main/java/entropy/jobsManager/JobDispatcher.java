@@ -20,7 +20,8 @@
 package entropy.jobsManager;
 
 import gnu.trove.TIntArrayList;
-import gnu.trove.TIntObjectHashMap;
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.HandlerList;
@@ -28,10 +29,46 @@ import org.eclipse.jetty.server.handler.ResourceHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
 /**
  * A standalone service to dispatch a serie of Jobs to several job handler.
  * Communication between the dispatcher and the handlers is made through an HTTP server.
  * The dispatcher run in a separated thread.
+ * <p/>
+ * The transitions of the jobs between the waiting, running and commited states
+ * are lock-free: the waiting jobs are stored in a lock-free queue and each
+ * transition is an atomic compare-and-set on the state of the job.
+ * <p/>
+ * The jobs are kept by a {@link JobStore}, on the heap by default. A {@link MappedJobStore}
+ * keeps them outside of the heap for very large campaigns: only the running jobs stay on the heap.
+ * The key/value pairs of the commited jobs can also be evicted once they were delivered to
+ * the commited job handler, according to a {@link Retention} policy.
+ * <p/>
+ * When a lease duration is set, a running job must be commited or renewed by its handler
+ * before its lease expires. Otherwise, the job is put back into the waiting queue, unless
+ * it was already dequeued {@link #getMaxAttempts()} times. In that case, it is considered as failed.
+ * The number of attempts of a dequeued job identifies its assignment: a renew or a commit made for
+ * a previous attempt of a job that was dequeued again is rejected.
+ * <p/>
+ * When a journal is set, the transitions of the jobs are recorded on the disk so the jobs
+ * can be recovered after a crash. A commit is acknowledged once it is durable. Periodic snapshots
+ * of the jobs bound the duration of the recovery.
  *
  * @author Fabien Hermenier
  * @see JobHandler
@@ -39,8 +76,39 @@ import org.slf4j.LoggerFactory;
  */
 public class JobDispatcher {
 
+    /**
+     * What to keep of a commited job once it was delivered to the commited job handler.
+     */
+    public static enum Retention {
+        /**
+         * Keep the whole job.
+         */
+        KEEP,
+        /**
+         * Keep the identifier, the timestamps and the size of the key/value pairs of the job.
+         */
+        TOMBSTONE,
+        /**
+         * Write the key/value pairs of the job into a file. They are loaded back when the job is requested.
+         */
+        SPILL
+    }
+
     public static final int DEFAULT_PORT = 6758;
 
+    /**
+     * The maximum duration in milliseconds to wait for the pending deliveries of commited jobs
+     * when the server is stopped.
+     */
+    public static final long DELIVERY_TIMEOUT = 60000;
+
+    /**
+     * The default maximum number of times a job is dequeued before being considered as failed.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    private static final int NB_ATTEMPT_LOCKS = 64;
+
     /**
      * The ID of the next job.
      */
@@ -54,25 +122,103 @@ public class JobDispatcher {
     /**
      * The list of waiting jobs. Ie, jobs are are not handled.
      */
-    private final TIntArrayList waiting;
+    private volatile WaitingQueue waiting;
+
+    /**
+     * The number of jobs that are currently computed on a job handler.
+     */
+    private final AtomicInteger nbRunnings;
+
+    /**
+     * The number of jobs that was commited by their handler.
+     */
+    private final AtomicInteger nbCommited;
+
+    /**
+     * The number of jobs that failed too many times.
+     */
+    private final AtomicInteger nbFailed;
+
+    /**
+     * The duration of a lease in milliseconds. {@code 0} for no lease.
+     */
+    private volatile long leaseDuration = 0;
+
+    /**
+     * The maximum number of times a job is dequeued.
+     */
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /**
+     * The wheel to track the expiration of the leases.
+     */
+    private volatile LeaseWheel wheel;
 
     /**
-     * The list of jobs that are currently computed on a job handler.
+     * The thread that checks the expired leases.
      */
-    private final TIntArrayList running;
+    private ScheduledExecutorService leaseChecker;
 
     /**
-     * The list of jobs that was commited by their handler.
+     * The journal of the transitions. {@code null} if there is no journal.
      */
-    private final TIntArrayList commited;
+    private volatile Journal journal;
 
-    private TIntObjectHashMap<Job> jobs;
+    /**
+     * What to keep of the delivered commited jobs.
+     */
+    private volatile Retention retention = Retention.KEEP;
+
+    /**
+     * The file to spill the key/value pairs of the delivered commited jobs to. {@code null} if not used.
+     */
+    private volatile SpillFile spill;
+
+    /**
+     * The thread that writes the periodic snapshots.
+     */
+    private ScheduledExecutorService snapshotWriter;
+
+    /**
+     * The jobs, whatever their state.
+     */
+    private volatile JobStore store;
+
+    /**
+     * The running jobs. They are kept on the heap to track their lease.
+     */
+    private final ConcurrentMap<Integer, Job> runnings;
+
+    /**
+     * The striped locks that make the start of an attempt and the commit of a job exclusive.
+     */
+    private final Object[] attemptLocks;
+
+    /**
+     * The dictionary of the keys of the jobs of the dispatcher.
+     */
+    private final KeyDictionary keys;
+
+    /**
+     * The suspended dequeue requests that wait for a job.
+     */
+    private final Queue<Continuation> pollers;
+
+    /**
+     * Indicates the server is stopping so the dequeue requests must not wait anymore.
+     */
+    private volatile boolean stopping = false;
 
     /**
      * The server-side handler that intercept commited job.
      */
     private CommitedJobHandler commitedHandler;
 
+    /**
+     * The handler that delivers the commited jobs to {@link #commitedHandler} asynchronously.
+     */
+    private final AsyncCommitedJobHandler notifier;
+
     /**
      * The handler to manager the HTTP requests.
      */
@@ -87,18 +233,40 @@ public class JobDispatcher {
 
     /**
      * Make a new job dispatcher with a custom commited job handler.
+     * The commited jobs are delivered to the handler asynchronously. Unless {@code h}
+     * is already an {@link AsyncCommitedJobHandler}, it is wrapped into one having a single consumer
+     * so the handler is never called concurrently and receives the jobs in their commit order.
      *
      * @param p the listening port
      * @param h the handler to manage commited jobs.
      */
     public JobDispatcher(int p, String rcBase, CommitedJobHandler h) {
         this.commitedHandler = h;
-        this.waiting = new TIntArrayList();
-        this.running = new TIntArrayList();
-        this.commited = new TIntArrayList();
-        this.jobs = new TIntObjectHashMap<Job>();
+        if (h instanceof AsyncCommitedJobHandler) {
+            this.notifier = (AsyncCommitedJobHandler) h;
+        } else {
+            this.notifier = new AsyncCommitedJobHandler(h);
+        }
+        this.notifier.setDeliveryListener(new CommitedJobHandler() {
+            @Override
+            public void jobCommited(Job j) {
+                delivered(j);
+            }
+        });
+        this.waiting = new FIFOWaitingQueue();
+        this.nbRunnings = new AtomicInteger();
+        this.nbCommited = new AtomicInteger();
+        this.nbFailed = new AtomicInteger();
+        this.store = new HeapJobStore();
+        this.runnings = new ConcurrentHashMap<Integer, Job>();
+        this.pollers = new ConcurrentLinkedQueue<Continuation>();
+        this.attemptLocks = new Object[NB_ATTEMPT_LOCKS];
+        this.keys = new KeyDictionary(KeyDictionary.DEFAULT_CAPACITY);
+        for (int i = 0; i < NB_ATTEMPT_LOCKS; i++) {
+            attemptLocks[i] = new Object();
+        }
 
-        ResourceHandler rcHandler = new ResourceHandler();
+        ResourceHandler rcHandler = new CompressingResourceHandler();
         rcHandler.setResourceBase(rcBase);
         rcHandler.getMimeTypes().addMimeMapping("pbd", "application/x-protobuf");
 
@@ -137,11 +305,7 @@ public class JobDispatcher {
      * @return a list of jobs, may be empty
      */
     public TIntArrayList getWaitings() {
-        TIntArrayList clone = null;
-        synchronized (waiting) {
-            clone = (TIntArrayList) waiting.clone();
-        }
-        return clone;
+        return new TIntArrayList(waiting.toNativeArray());
     }
 
     /**
@@ -150,11 +314,7 @@ public class JobDispatcher {
      * @return a list of jobs, may be empty
      */
     public TIntArrayList getRunnings() {
-        TIntArrayList clone = null;
-        synchronized (running) {
-            clone = (TIntArrayList) running.clone();
-        }
-        return clone;
+        return select(Job.RUNNING);
     }
 
     /**
@@ -163,11 +323,483 @@ public class JobDispatcher {
      * @return a list of jobs, may be empty
      */
     public TIntArrayList getComitted() {
-        TIntArrayList clone = null;
-        synchronized (commited) {
-            clone = (TIntArrayList) commited.clone();
+        return select(Job.COMMITED);
+    }
+
+    /**
+     * Return a copy of the jobs that failed too many times.
+     *
+     * @return a list of jobs, may be empty
+     */
+    public TIntArrayList getFailed() {
+        return select(Job.FAILED);
+    }
+
+    /**
+     * Get the identifier of the jobs in a given state.
+     * The store is scanned so the method should not be used on a hot path.
+     *
+     * @param st the state of the jobs to select
+     * @return a list of jobs sorted by identifier, may be empty
+     */
+    private TIntArrayList select(int st) {
+        TIntArrayList res = new TIntArrayList();
+        JobStore s = store;
+        for (int id : s.ids()) {
+            if (s.getState(id) == st) {
+                res.add(id);
+            }
+        }
+        res.sort();
+        return res;
+    }
+
+    /**
+     * Get the number of jobs that are waiting for computation.
+     *
+     * @return a positive integer
+     */
+    public int getNbWaitings() {
+        return waiting.size();
+    }
+
+    /**
+     * Get the number of jobs that are currently computed by an handler.
+     *
+     * @return a positive integer
+     */
+    public int getNbRunnings() {
+        return nbRunnings.get();
+    }
+
+    /**
+     * Get the number of jobs that are commited.
+     *
+     * @return a positive integer
+     */
+    public int getNbCommited() {
+        return nbCommited.get();
+    }
+
+    /**
+     * Get the number of jobs that failed too many times.
+     *
+     * @return a positive integer
+     */
+    public int getNbFailed() {
+        return nbFailed.get();
+    }
+
+    /**
+     * Set the queue that stores the waiting jobs, to customize the order the jobs are dequeued in.
+     * By default, the jobs are dequeued in their insertion order.
+     *
+     * @param q the queue to use
+     * @throws IllegalStateException if jobs were already enqueued
+     * @see PriorityWaitingQueue
+     * @see LPTWaitingQueue
+     */
+    public synchronized void setWaitingQueue(WaitingQueue q) {
+        if (store.size() > 0) {
+            throw new IllegalStateException("The waiting queue cannot be changed once jobs were enqueued");
+        }
+        this.waiting = q;
+    }
+
+    /**
+     * Get the queue that stores the waiting jobs.
+     *
+     * @return the queue in use
+     */
+    public WaitingQueue getWaitingQueue() {
+        return waiting;
+    }
+
+    /**
+     * Set the store that keeps the jobs.
+     * By default, the jobs are kept on the heap. When a journal is used, the store must be set
+     * before the journal.
+     *
+     * @param s the store to use, either a {@link HeapJobStore} or a {@link MappedJobStore}
+     * @throws IllegalStateException if jobs were already enqueued
+     * @see MappedJobStore
+     */
+    public synchronized void setJobStore(JobStore s) {
+        if (store.size() > 0) {
+            throw new IllegalStateException("The job store cannot be changed once jobs were enqueued");
         }
-        return clone;
+        this.store = s;
+    }
+
+    /**
+     * Get the store that keeps the jobs.
+     *
+     * @return the store in use
+     */
+    JobStore getJobStore() {
+        return store;
+    }
+
+    /**
+     * Set what to keep of a commited job once it was delivered to the commited job handler.
+     * By default, the whole job is kept. When a journal is used, the policy must be set before the journal
+     * to apply to the recovered jobs. With a {@link MappedJobStore}, the key/value pairs are already
+     * outside of the heap so {@link Retention#SPILL} keeps them in the store.
+     *
+     * @param r the policy
+     * @param f the file to spill the key/value pairs to. Only used with {@link Retention#SPILL}
+     * @throws IOException              if the spill file cannot be created
+     * @throws IllegalArgumentException if no file is given to spill the key/value pairs
+     */
+    public synchronized void setRetention(Retention r, File f) throws IOException {
+        if (r == Retention.SPILL && spill == null) {
+            if (f == null) {
+                throw new IllegalArgumentException("A file is required to spill the commited jobs");
+            }
+            spill = new SpillFile(f);
+        }
+        this.retention = r;
+    }
+
+    /**
+     * Get what is kept of a commited job once it was delivered to the commited job handler.
+     *
+     * @return the policy in use
+     */
+    public Retention getRetention() {
+        return retention;
+    }
+
+    /**
+     * Record the delivery of a commited job then apply the retention policy.
+     *
+     * @param j the delivered job
+     */
+    private void delivered(Job j) {
+        Journal jn = journal;
+        if (jn != null) {
+            try {
+                jn.logDeliver(j.getId());
+            } catch (IOException e) {
+                logger.error("Unable to journal the delivery of job " + j.getId(), e);
+            }
+        }
+        retain(j);
+    }
+
+    /**
+     * Apply the retention policy on a commited job that was delivered.
+     *
+     * @param j the job
+     */
+    private void retain(Job j) {
+        Retention r = retention;
+        JobStore s = store;
+        if (r == Retention.KEEP || (r == Retention.SPILL && !(s instanceof HeapJobStore))) {
+            return;
+        }
+        long off = -1;
+        if (r == Retention.SPILL) {
+            try {
+                off = spill.write(j);
+            } catch (IOException e) {
+                logger.error("Unable to spill the job " + j.getId(), e);
+                return;
+            }
+        }
+        synchronized (j) {
+            j.evict(off);
+        }
+        s.update(j, true);
+    }
+
+    /**
+     * Set the directory of the journal that records the transitions of the jobs.
+     * The jobs recorded by a previous journal in this directory are recovered first: the jobs that were
+     * running are put back into the waiting queue, and the commited jobs are restored. The commited jobs
+     * whose delivery to the commited job handler was not recorded are delivered again, so the handler
+     * may receive a job twice. The retention policy applies to a recovered job once it was delivered.
+     * The jobs to enqueue after a recovery should be checked using {@link #getJob(int)}
+     * to not enqueue them twice.
+     *
+     * @param dir the directory of the journal
+     * @return the number of jobs that were recovered
+     * @throws IOException           if an error occurred while reading or opening the journal
+     * @throws IllegalStateException if jobs were already enqueued or a journal is already set
+     */
+    public synchronized int setJournal(File dir) throws IOException {
+        if (store.size() > 0 || journal != null) {
+            throw new IllegalStateException("The journal must be set before enqueuing jobs");
+        }
+        Journal jn = new Journal(dir);
+        List<Job> recovered = jn.replay();
+        List<Job> undelivered = new ArrayList<Job>();
+        for (Job j : recovered) {
+            j.rebind(keys);
+            store.put(j);
+            if (j.getState() == Job.WAITING) {
+                waiting.offer(j);
+            } else if (j.getState() == Job.COMMITED) {
+                nbCommited.incrementAndGet();
+                if (jn.isDelivered(j.getId())) {
+                    retain(j);
+                } else {
+                    undelivered.add(j);
+                }
+            } else if (j.getState() == Job.FAILED) {
+                nbFailed.incrementAndGet();
+            }
+        }
+        jn.open();
+        journal = jn;
+        logger.info(recovered.size() + " job(s) recovered from '" + dir + "'. " + undelivered.size() + " commited job(s) to deliver again");
+        for (Job j : undelivered) {
+            notifier.jobCommited(j);
+        }
+        return recovered.size();
+    }
+
+    /**
+     * Write a snapshot of the jobs into the journal.
+     * The jobs can be dequeued and commited while the snapshot is written. Once written, the recovery
+     * starts from the snapshot and only replays the transitions that were recorded after it.
+     *
+     * @return the number of jobs in the snapshot
+     * @throws IOException           if an error occurred while writing the snapshot
+     * @throws IllegalStateException if there is no journal
+     */
+    public int snapshot() throws IOException {
+        Journal jn = journal;
+        if (jn == null) {
+            throw new IllegalStateException("No journal");
+        }
+        long st = System.currentTimeMillis();
+        int nb = jn.snapshot(store, spill);
+        logger.info("Snapshot of " + nb + " job(s) written in " + (System.currentTimeMillis() - st) + " ms");
+        return nb;
+    }
+
+    /**
+     * Write a snapshot of the jobs periodically, in background.
+     *
+     * @param ms the delay in milliseconds between the end of a snapshot and the start of the next one
+     * @throws IllegalStateException if there is no journal or if the snapshots are already scheduled
+     * @see #snapshot()
+     */
+    public synchronized void setSnapshotPeriod(long ms) {
+        if (journal == null || snapshotWriter != null) {
+            throw new IllegalStateException("A journal must be set and the snapshots not scheduled yet");
+        }
+        snapshotWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "snapshot-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        snapshotWriter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot();
+                } catch (IOException e) {
+                    logger.error("Unable to write a snapshot", e);
+                } catch (RuntimeException e) {
+                    logger.error("Unable to write a snapshot", e);
+                }
+            }
+        }, ms, ms, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set the duration of the lease given to the dequeued jobs.
+     * The duration applies to the jobs dequeued after the call.
+     *
+     * @param ms the duration in milliseconds. {@code 0} to not lease the jobs
+     */
+    public synchronized void setLeaseDuration(long ms) {
+        this.leaseDuration = ms;
+        if (ms > 0 && wheel == null) {
+            long tick = Math.max(1, ms / (LeaseWheel.NB_BUCKETS / 2));
+            wheel = new LeaseWheel(tick, System.currentTimeMillis());
+            leaseChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "lease-checker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            leaseChecker.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        checkLeases();
+                    } catch (RuntimeException e) {
+                        logger.error("Error while checking the leases", e);
+                    }
+                }
+            }, tick, tick, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Get the duration of the lease given to the dequeued jobs.
+     *
+     * @return a duration in milliseconds. {@code 0} if the jobs are not leased
+     */
+    public long getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    /**
+     * Set the maximum number of times a job can be dequeued.
+     * Once reached, a job with an expired lease is considered as failed.
+     *
+     * @param n the maximum number of attempts. {@code 0} for no limit
+     */
+    public void setMaxAttempts(int n) {
+        this.maxAttempts = n;
+    }
+
+    /**
+     * Get the maximum number of times a job can be dequeued.
+     *
+     * @return a positive integer. {@code 0} for no limit
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Renew the lease of a running job.
+     *
+     * @param id      the identifier of the job
+     * @param attempt the number of attempts of the job when it was dequeued by the handler
+     * @return {@code true} if the job is still running. {@code false} if the job is not
+     *         assigned to the handler anymore
+     */
+    public boolean renew(int id, int attempt) {
+        Job j = runnings.get(id);
+        if (j == null || j.getAttempts() != attempt || j.getState() != Job.RUNNING) {
+            return false;
+        }
+        long d = leaseDuration;
+        if (d > 0) {
+            j.setLeaseDeadline(System.currentTimeMillis() + d);
+        }
+        return true;
+    }
+
+    private Object attemptLock(int id) {
+        return attemptLocks[id & (NB_ATTEMPT_LOCKS - 1)];
+    }
+
+    /**
+     * Lease a job that was just dequeued.
+     *
+     * @param j   the job
+     * @param now the moment the job was dequeued
+     */
+    private void lease(Job j, long now) {
+        long d = leaseDuration;
+        LeaseWheel w = wheel;
+        if (d > 0 && w != null) {
+            j.setLeaseDeadline(now + d);
+            w.schedule(j.getId(), now + d);
+        }
+    }
+
+    /**
+     * Requeue or fail the running jobs having an expired lease.
+     * A renewed lease is scheduled again.
+     */
+    private void checkLeases() {
+        long now = System.currentTimeMillis();
+        TIntArrayList expired = new TIntArrayList();
+        wheel.advance(now, expired);
+        int nbRequeued = 0;
+        for (int i = 0; i < expired.size(); i++) {
+            Job j = runnings.get(expired.get(i));
+            if (j == null || j.getState() != Job.RUNNING) {
+                continue;
+            }
+            long deadline = j.getLeaseDeadline();
+            if (deadline > now) {
+                wheel.schedule(j.getId(), deadline);
+            } else if (abandon(j, "Lease of job " + j.getId() + " expired")) {
+                nbRequeued++;
+            }
+        }
+        wakeUp(nbRequeued);
+    }
+
+    /**
+     * Report that a handler failed to compute a running job.
+     * The job is requeued, or failed if it reached the maximum number of attempts, as if its lease expired.
+     *
+     * @param id      the identifier of the job
+     * @param attempt the number of attempts of the job when it was dequeued by the handler
+     * @return {@code true} if the job was requeued or failed. {@code false} if the job is not
+     *         assigned to the handler anymore
+     */
+    public boolean fail(int id, int attempt) {
+        Job j = runnings.get(id);
+        if (j == null) {
+            return false;
+        }
+        boolean requeued;
+        synchronized (attemptLock(id)) {
+            if (j.getAttempts() != attempt || j.getState() != Job.RUNNING) {
+                return false;
+            }
+            requeued = abandon(j, "Job " + id + " failed on its handler");
+        }
+        if (requeued) {
+            wakeUp(1);
+        }
+        return true;
+    }
+
+    /**
+     * Requeue a running job, or fail it if it reached the maximum number of attempts.
+     *
+     * @param j      the running job
+     * @param reason the reason, for the log
+     * @return {@code true} if the job was requeued
+     */
+    private boolean abandon(Job j, String reason) {
+        Journal jn = journal;
+        if (maxAttempts > 0 && j.getAttempts() >= maxAttempts) {
+            if (store.compareAndSetState(j, Job.RUNNING, Job.FAILED)) {
+                runnings.remove(j.getId(), j);
+                if (jn != null) {
+                    try {
+                        jn.logFail(j.getId());
+                    } catch (IOException e) {
+                        logger.error("Unable to journal the failure of job " + j.getId(), e);
+                    }
+                }
+                nbRunnings.decrementAndGet();
+                nbFailed.incrementAndGet();
+                logger.warn(reason + ". Failed after " + j.getAttempts() + " attempt(s)");
+            }
+        } else if (store.compareAndSetState(j, Job.RUNNING, Job.WAITING)) {
+            runnings.remove(j.getId(), j);
+            if (jn != null) {
+                try {
+                    jn.logRequeue(j.getId());
+                } catch (IOException e) {
+                    logger.error("Unable to journal the requeue of job " + j.getId(), e);
+                }
+            }
+            nbRunnings.decrementAndGet();
+            waiting.offer(j);
+            logger.warn(reason + ". Requeued");
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -177,7 +809,29 @@ public class JobDispatcher {
      * @return a job or null if the id does not fit with a job.
      */
     public Job getJob(int id) {
-        return jobs.get(id);
+        return getJob(id, true);
+    }
+
+    /**
+     * Get a job by its id.
+     *
+     * @param id   the identifier of the job
+     * @param load {@code true} to load the key/value pairs of a job that were spilled
+     * @return a job or null if the id does not fit with a job.
+     */
+    Job getJob(int id, boolean load) {
+        Job j = runnings.get(id);
+        if (j == null) {
+            j = store.get(id);
+        }
+        if (load && j != null && j.getSpillOffset() >= 0) {
+            try {
+                return spill.load(j);
+            } catch (IOException e) {
+                logger.error("Unable to load the spilled job " + id, e);
+            }
+        }
+        return j;
     }
 
     /**
@@ -191,49 +845,175 @@ public class JobDispatcher {
 
     /**
      * Dequeue a waiting job.
-     * The job is assigned to a specific handler, set into the running state and put
-     * into the running queue.
+     * The job is assigned to a specific handler and set into the running state.
      * The method is thread-safe
      *
      * @return the dequeued job
      */
     public Job dequeue() {
-        Job j = null;
-        synchronized (this.waiting) {
-            if (!waiting.isEmpty()) {
-                int id = waiting.remove(0);
-                j = jobs.get(id);
-                if (j != null) {
-                    synchronized (this.running) {
-                        running.add(id);
-                        j.setDequeuedTime(System.currentTimeMillis());
+        List<Job> l = dequeue(1);
+        return l.isEmpty() ? null : l.get(0);
+    }
+
+    /**
+     * Dequeue several waiting jobs at once.
+     * The jobs are removed from the waiting queue in a single operation, then
+     * assigned to a specific handler and set into the running state.
+     * The method is thread-safe
+     *
+     * @param max the maximum number of jobs to dequeue
+     * @return the dequeued jobs, may be empty
+     */
+    public List<Job> dequeue(int max) {
+        List<Job> res = new ArrayList<Job>(max);
+        int[] ids = new int[max];
+        long now = System.currentTimeMillis();
+        int nb = waiting.drainTo(ids, max);
+        while (nb > 0) {
+            for (int i = 0; i < nb; i++) {
+                Job j = store.get(ids[i]);
+                if (j == null) {
+                    continue;
+                }
+                //Starts the attempt atomically with respect to a commit of the previous one
+                synchronized (attemptLock(j.getId())) {
+                    if (!store.compareAndSetState(j, Job.WAITING, Job.RUNNING)) {
+                        continue;
                     }
-                    logger.info("Job " + id + " dequeued");
+                    j.setDequeuedTime(now);
+                    j.incrementAttempts();
                 }
+                store.update(j, false);
+                runnings.put(j.getId(), j);
+                lease(j, now);
+                res.add(j);
             }
+            nb = res.size() < max ? waiting.drainTo(ids, max - res.size()) : 0;
         }
-        return j;
+        if (!res.isEmpty()) {
+            Journal jn = journal;
+            if (jn != null) {
+                try {
+                    jn.logDequeue(res);
+                } catch (IOException e) {
+                    //Only the number of attempts is lost, a recovered running job is requeued anyway
+                    logger.error("Unable to journal the dequeue of " + res.size() + " job(s)", e);
+                }
+            }
+            nbRunnings.addAndGet(res.size());
+            if (res.size() == 1) {
+                logger.info("Job " + res.get(0).getId() + " dequeued");
+            } else {
+                logger.info(res.size() + " jobs dequeued");
+            }
+        }
+        return res;
     }
 
     /**
      * Commit a running job
-     * The job is put into the commited queue and set to the completed state.
-     * The method is thread-safe
+     * The job is set to the completed state in constant time.
+     * A job that is not running is ignored.
+     * The method is thread-safe. The job is then queued for an asynchronous delivery
+     * to the commited job handler.
      *
      * @param j2 the job
+     * @throws IOException              if the commit cannot be journaled. The job is still running
+     * @throws IllegalArgumentException if the values of the job are too large to be journaled
+     */
+    public void commit(Job j2) throws IOException {
+        commit(Collections.singletonList(j2));
+    }
+
+    /**
+     * Commit several running jobs in one pass.
+     * Each job is set to the completed state in constant time.
+     * The jobs that are not running are ignored, as the jobs having a number of attempts that differs
+     * from the running job: they were computed for an assignment that expired.
+     * The method is thread-safe. The jobs are then queued for an asynchronous delivery
+     * to the commited job handler. When the jobs are scheduled using a {@link LPTWaitingQueue},
+     * the durations of the commited jobs are recorded by its estimator.
+     * When a journal is set, the method returns once the commits are durable. The commits
+     * of concurrent calls are forced to the disk together. If the commits cannot be made durable,
+     * the jobs are put back into the running state so their handler can commit them again.
+     *
+     * @param js the jobs
+     * @return the number of jobs that were commited
+     * @throws IOException              if the commits cannot be journaled
+     * @throws IllegalArgumentException if the values of a job are too large to be journaled
      */
-    public void commit(Job j2) {
-        synchronized (this.running) {
-            Job j = jobs.get(j2.getId());
+    public int commit(Collection<Job> js) throws IOException {
+        long now = System.currentTimeMillis();
+        WaitingQueue q = waiting;
+        DurationEstimator estimator = q instanceof LPTWaitingQueue ? ((LPTWaitingQueue) q).getEstimator() : null;
+        List<Job> commited = new ArrayList<Job>(js.size());
+        List<Job> values = new ArrayList<Job>(js.size());
+        for (Job j2 : js) {
             int id = j2.getId();
-            for (String k : j2.getKeys()) {
-                j.put(k, j2.get(k));
+            Job j = runnings.get(id);
+            if (j == null) {
+                logger.warn("Job " + id + " is not running. Commit ignored");
+                continue;
             }
-            running.remove(running.indexOf(id));
-            synchronized (this.commited) {
-                this.commited.add(id);
-                j.setCommitedTime(System.currentTimeMillis());
-                commitedHandler.jobCommited(j);
+            //The lock prevents a new attempt from starting between the check and the transition
+            synchronized (attemptLock(id)) {
+                if (j.getAttempts() != j2.getAttempts()) {
+                    logger.warn("Attempt " + j2.getAttempts() + " of job " + id + " expired. Commit ignored");
+                    continue;
+                }
+                if (!store.compareAndSetState(j, Job.RUNNING, Job.COMMITED)) {
+                    logger.warn("Job " + id + " is not running. Commit ignored");
+                    continue;
+                }
+            }
+            synchronized (j) {
+                for (String k : j2.getKeys()) {
+                    j.put(k, j2.get(k));
+                }
+                j.setCommitedTime(now);
+            }
+            store.update(j, true);
+            runnings.remove(id, j);
+            commited.add(j);
+            values.add(j2);
+        }
+        int nb = commited.size();
+        Journal jn = journal;
+        if (jn != null && nb > 0) {
+            try {
+                jn.sync(jn.logCommit(commited, values));
+            } catch (IOException e) {
+                logger.error("Unable to journal the commit of " + nb + " job(s). Commit rejected", e);
+                uncommit(commited);
+                throw e;
+            } catch (IllegalArgumentException e) {
+                logger.warn("Commit of " + nb + " job(s) rejected: " + e.getMessage());
+                uncommit(commited);
+                throw e;
+            }
+        }
+        for (Job j : commited) {
+            if (estimator != null) {
+                estimator.record(j);
+            }
+            notifier.jobCommited(j);
+        }
+        nbRunnings.addAndGet(-nb);
+        nbCommited.addAndGet(nb);
+        return nb;
+    }
+
+    /**
+     * Put jobs that were not commited back into the running state.
+     *
+     * @param js the jobs
+     */
+    private void uncommit(List<Job> js) {
+        long now = System.currentTimeMillis();
+        for (Job j : js) {
+            if (store.compareAndSetState(j, Job.COMMITED, Job.RUNNING)) {
+                runnings.put(j.getId(), j);
+                lease(j, now);
             }
         }
     }
@@ -245,13 +1025,87 @@ public class JobDispatcher {
      * the waiting queue. The method is thread-safe
      *
      * @param j the job to enqueue
-     * @return the enqueue job
+     * @throws IllegalStateException    if the enqueue cannot be journaled
+     * @throws IllegalArgumentException if the values of the job are too large to be journaled
      */
-    public synchronized void enqueue(Job j) {
+    public void enqueue(Job j) {
+        j.rebind(keys);
         j.setEnqueuedTime(System.currentTimeMillis());
-        this.jobs.put(j.getId(), j);
-        synchronized (this.waiting) {
-            this.waiting.add(j.getId());
+        j.setState(Job.WAITING);
+        Journal jn = journal;
+        if (jn == null) {
+            store.put(j);
+        } else {
+            //A snapshot must not start between the record and the store
+            Lock l = jn.enqueueLock();
+            l.lock();
+            try {
+                try {
+                    jn.logEnqueue(j);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to journal the enqueue of job " + j.getId(), e);
+                }
+                store.put(j);
+            } finally {
+                l.unlock();
+            }
+        }
+        this.waiting.offer(j);
+        wakeUp(1);
+    }
+
+    /**
+     * Suspend a dequeue request until a job is enqueued.
+     * The continuation is resumed by the next call to {@link #enqueue(Job)}, or
+     * expires according to its timeout.
+     *
+     * @param c the continuation of the request. Its timeout must be set
+     * @return {@code true} if the request was suspended. {@code false} if the dispatcher is stopping
+     */
+    public boolean park(Continuation c) {
+        if (stopping) {
+            return false;
+        }
+        c.suspend();
+        if (c.isInitial()) {
+            c.addContinuationListener(new ContinuationListener() {
+                @Override
+                public void onComplete(Continuation c) {
+                }
+
+                @Override
+                public void onTimeout(Continuation c) {
+                    pollers.remove(c);
+                }
+            });
+        }
+        pollers.add(c);
+        //A job may have been enqueued before the request was registered
+        if (!waiting.isEmpty()) {
+            wakeUp(1);
+        }
+        return true;
+    }
+
+    /**
+     * Resume suspended dequeue requests.
+     *
+     * @param n the number of requests to resume
+     */
+    private void wakeUp(int n) {
+        while (n > 0) {
+            Continuation c = pollers.poll();
+            if (c == null) {
+                break;
+            }
+            if (c.isSuspended()) {
+                try {
+                    c.resume();
+                    n--;
+                } catch (IllegalStateException e) {
+                    //The request expired in the meantime
+                }
+            }
         }
     }
 
@@ -275,13 +1129,52 @@ public class JobDispatcher {
 
     /**
      * Stop the service.
+     * The pending deliveries of commited jobs are completed before returning.
      */
     public void stopServer() {
+        stopping = true;
+        wakeUp(Integer.MAX_VALUE);
+        synchronized (this) {
+            if (leaseChecker != null) {
+                leaseChecker.shutdownNow();
+            }
+            if (snapshotWriter != null) {
+                snapshotWriter.shutdown();
+                try {
+                    snapshotWriter.awaitTermination(DELIVERY_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
         try {
             server.stop();
         } catch (Exception e) {
             logger.error(e.getMessage());
         }
+        try {
+            if (!notifier.close(DELIVERY_TIMEOUT)) {
+                logger.warn(notifier.getPendings() + " commited job(s) not delivered");
+            }
+        } catch (InterruptedException e) {
+            logger.error(e.getMessage());
+        }
+        Journal jn = journal;
+        if (jn != null) {
+            try {
+                jn.close();
+            } catch (IOException e) {
+                logger.error("Error while closing the journal", e);
+            }
+        }
+        try {
+            store.close();
+            if (spill != null) {
+                spill.close();
+            }
+        } catch (IOException e) {
+            logger.error("Error while closing the job store", e);
+        }
         logger.info("JobDispatcher stopped");
     }
 
@@ -20,19 +20,41 @@ package entropy.jobsManager;/*
 import org.eclipse.jetty.client.Address;
 import org.eclipse.jetty.client.ContentExchange;
 import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.ByteArrayBuffer;
 
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.LinkedHashMap;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 
 /**
  * A job handler is a client of a JobDispatcher.
  * Using HTTP request, it get jobs and commit then once computed.
+ * <p/>
+ * Each operation has an asynchronous variant that returns once the request is sent. Its outcome
+ * is available through a {@link Future} and an optional {@link Callback}, so a few threads can keep
+ * many requests in flight. A handler can be shared by several threads.
  *
  * @author Fabien Hermenier
  * @see JobDispatcher
@@ -40,6 +62,27 @@ import java.util.Map;
  */
 public class JobHandler {
 
+    /**
+     * A callback to notify the outcome of an asynchronous operation.
+     * The callbacks are executed by the threads of the HTTP client, so they must not block.
+     */
+    public interface Callback<T> {
+
+        /**
+         * The operation succeeded.
+         *
+         * @param result the result of the operation
+         */
+        void completed(T result);
+
+        /**
+         * The operation failed or was cancelled.
+         *
+         * @param t the error. A {@link java.util.concurrent.CancellationException} if the operation was cancelled
+         */
+        void failed(Throwable t);
+    }
+
     /**
      * The HTTP client to get the jobs
      */
@@ -50,12 +93,125 @@ public class JobHandler {
      */
     private Address addr;
 
+    /**
+     * The former default number of resources in the cache.
+     *
+     * @deprecated the resource cache is now bounded in bytes, see {@link #DEFAULT_CACHE_CAPACITY}
+     */
+    @Deprecated
     public static final int DEFAULT_CACHE_SIZE = 200;
 
-    private Map<String, byte[]> rcCache;
+    /**
+     * The default capacity of the resource cache, in bytes.
+     */
+    public static final long DEFAULT_CACHE_CAPACITY = 64L * 1024 * 1024;
+
+    /**
+     * The delay added to the poll timeout to compute the timeout of a waiting dequeue request.
+     */
+    private static final long WAIT_MARGIN = 30000;
+
+    /**
+     * The maximum duration of a download, in milliseconds.
+     */
+    private static final long DOWNLOAD_TIMEOUT = 3600000;
+
+    /**
+     * The directory of the downloaded resources.
+     */
+    private volatile File diskCache = new File(System.getProperty("java.io.tmpdir"), "jobsManager-resources");
+
+    /**
+     * The cached resources.
+     */
+    private final ResourceCache rcCache;
+
+    /**
+     * Load the resources that are not cached.
+     */
+    private final ResourceCache.Loader rcLoader = new ResourceCache.Loader() {
+        @Override
+        public byte[] load(String rc) throws IOException {
+            return loadResource(rc);
+        }
+    };
+
+    /**
+     * The maximum duration in milliseconds a dequeue waits for a job.
+     */
+    private long pollTimeout = 0;
+
+    /**
+     * The codec used to exchange the jobs.
+     */
+    private JobCodec codec = new BinaryJobCodec();
+
+    /**
+     * The codec to exchange the jobs with a dispatcher that ignores the requested encoding.
+     */
+    private static final JobCodec FALLBACK = new JSONJobCodec();
+
+    /**
+     * Indicates whether the last response of the dispatcher used {@link #codec}.
+     * Until then, the jobs are commited using {@link #FALLBACK}.
+     */
+    private volatile boolean codecAccepted = false;
+
+    /**
+     * Indicates whether the dispatcher compressed a response, so it supports the compression.
+     * Until then, the commited jobs are not compressed.
+     */
+    private volatile boolean compressionAccepted = false;
+
+    /**
+     * The commited jobs encoded in fewer bytes are not compressed.
+     */
+    private static final int COMPRESSION_THRESHOLD = 1024;
+
+    /**
+     * Indicates whether the exchanges with the dispatcher are compressed.
+     */
+    private boolean compression = true;
+
+    /**
+     * The number of requests sent.
+     */
+    private final AtomicLong nbRequests = new AtomicLong();
+
+    /**
+     * The number of requests that failed to connect to the dispatcher.
+     */
+    private final AtomicLong nbConnectionFailures = new AtomicLong();
 
     public JobHandler(String serverName) throws Exception {
-        this(serverName, JobDispatcher.DEFAULT_PORT, DEFAULT_CACHE_SIZE);
+        this(serverName, JobDispatcher.DEFAULT_PORT, DEFAULT_CACHE_CAPACITY);
+    }
+
+    /**
+     * Make a new JobHandler having a resource cache bounded by a number of resources.
+     *
+     * @param serverName the name of the job dispatcher
+     * @param p          the listening port of the job dispatcher
+     * @param cacheSize  the maximum number of resources in the cache
+     * @throws Exception if an error occurred
+     * @deprecated the cache should be bounded in bytes, use {@link #JobHandler(String, int, long)}
+     */
+    @Deprecated
+    public JobHandler(String serverName, int p, int cacheSize) throws Exception {
+        this(serverName, p, new ResourceCache(Long.MAX_VALUE, cacheSize), new TransportConfig());
+    }
+
+    /**
+     * Make a new JobHandler.
+     *
+     * @param serverName the name of the job dispatcher
+     * @param p          the listening port of the job dispatcher
+     * @param cacheSize  the capacity of the resource cache, in bytes. An {@code int} argument selects
+     *                   {@link #JobHandler(String, int, int)}, which bounds the number of resources
+     * @throws Exception if an error occurred
+     */
+    public JobHandler(String serverName, int p, long cacheSize) throws Exception {
+        this(serverName, p, cacheSize, new TransportConfig());
     }
 
     /**
@@ -63,65 +219,643 @@ public class JobHandler {
      *
      * @param serverName the name of the job dispatcher
      * @param p          the listening port of the job dispatcher
+     * @param cacheSize  the capacity of the resource cache, in bytes
+     * @param cfg        the configuration of the HTTP transport
      * @throws Exception if an error occurred
      */
-    public JobHandler(String serverName, int p, final int cacheSize) throws Exception {
+    public JobHandler(String serverName, int p, long cacheSize, TransportConfig cfg) throws Exception {
+        this(serverName, p, new ResourceCache(cacheSize), cfg);
+    }
+
+    private JobHandler(String serverName, int p, ResourceCache cache, TransportConfig cfg) throws Exception {
         client = new HttpClient();
+        cfg.configure(client);
         client.start();
         addr = new Address(serverName, p);
-        this.rcCache = new LinkedHashMap<String, byte[]>(cacheSize) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<String, byte[]> entry) {
-                return size() == cacheSize;
+        this.rcCache = cache;
+    }
+
+    /**
+     * Set the maximum duration a dequeue waits for a job when the dispatcher has no waiting jobs.
+     * The request is suspended on the dispatcher side until a job is enqueued or the duration expires.
+     *
+     * @param ms a duration in milliseconds. {@code 0} to not wait
+     */
+    public void setPollTimeout(long ms) {
+        this.pollTimeout = ms;
+    }
+
+    /**
+     * Get the maximum duration a dequeue waits for a job.
+     *
+     * @return a duration in milliseconds. {@code 0} to not wait
+     */
+    public long getPollTimeout() {
+        return pollTimeout;
+    }
+
+    /**
+     * Set the codec used to exchange the jobs with the dispatcher.
+     * By default, the jobs are exchanged using a {@link BinaryJobCodec}.
+     * The jobs are commited using JSON until the dispatcher answers a dequeue using the codec,
+     * so a dispatcher that does not support the codec still receives the commits.
+     *
+     * @param c the codec to use
+     */
+    public void setCodec(JobCodec c) {
+        this.codec = c;
+        this.codecAccepted = false;
+    }
+
+    /**
+     * Get the codec used to exchange the jobs with the dispatcher.
+     *
+     * @return the codec
+     */
+    public JobCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Get the number of connections to the dispatcher.
+     *
+     * @return the number of open connections, idle or not
+     * @throws IOException if an error occurred while getting the connections
+     */
+    public int getNbConnections() throws IOException {
+        return client.getDestination(addr, false).getConnections();
+    }
+
+    /**
+     * Get the number of idle connections to the dispatcher.
+     * These connections are reused by the next requests.
+     *
+     * @return a positive number
+     * @throws IOException if an error occurred while getting the connections
+     */
+    public int getNbIdleConnections() throws IOException {
+        return client.getDestination(addr, false).getIdleConnections();
+    }
+
+    /**
+     * Get the number of requests sent to the dispatcher.
+     *
+     * @return a positive number
+     */
+    public long getNbRequests() {
+        return nbRequests.get();
+    }
+
+    /**
+     * Get the number of requests that failed to connect to the dispatcher.
+     *
+     * @return a positive number
+     */
+    public long getNbConnectionFailures() {
+        return nbConnectionFailures.get();
+    }
+
+    /**
+     * Enable or disable the compression of the exchanges with the dispatcher.
+     * When enabled, the handler accepts compressed jobs and resources, and compresses
+     * the large commits once the dispatcher has sent a compressed response. Enabled by default.
+     *
+     * @param b {@code true} to compress the exchanges
+     */
+    public void setCompression(boolean b) {
+        this.compression = b;
+    }
+
+    /**
+     * Indicates whether the exchanges with the dispatcher are compressed.
+     *
+     * @return {@code true} if the exchanges are compressed
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * Get the query parameter to make a dequeue request wait for a job.
+     * The timeout of the exchange is extended accordingly.
+     *
+     * @param e the exchange of the dequeue request
+     * @return the parameter, may be empty
+     */
+    private String waitParameter(ContentExchange e) {
+        if (pollTimeout <= 0) {
+            return "";
+        }
+        e.setTimeout(pollTimeout + WAIT_MARGIN);
+        return "&w=" + pollTimeout;
+    }
+
+    /**
+     * Get the codec to decode the content of a response.
+     * The commits then use the same codec.
+     *
+     * @param e the completed exchange
+     * @return the codec associated to the content type of the response
+     */
+    private JobCodec decoder(ContentExchange e) {
+        String t = e.getResponseFields().getStringField("Content-Type");
+        JobCodec c = codec;
+        boolean accepted = t != null && t.startsWith(c.getContentType());
+        if (accepted != codecAccepted) {
+            codecAccepted = accepted;
+        }
+        return accepted ? c : FALLBACK;
+    }
+
+    /**
+     * Get the codec to encode the commited jobs.
+     * The dispatcher may not support the codec, so it is used once the dispatcher answered using it.
+     *
+     * @return the codec
+     */
+    private JobCodec encoder() {
+        return codecAccepted ? codec : FALLBACK;
+    }
+
+    /**
+     * Ask the dispatcher to compress the content of a response, if compression is enabled.
+     *
+     * @param e the exchange
+     */
+    private void acceptCompression(ContentExchange e) {
+        if (compression) {
+            e.setRequestHeader("Accept-Encoding", Compression.ACCEPTED);
+        }
+    }
+
+    /**
+     * Get the content of a response, decompressed.
+     * The exchange must cache the response headers.
+     *
+     * @param e the completed exchange
+     * @return the content
+     * @throws IOException if the content encoding is not supported or if an error occurred while decompressing
+     */
+    private byte[] content(ContentExchange e) throws IOException {
+        byte[] content = e.getResponseContentBytes();
+        String enc = e.getResponseFields().getStringField("Content-Encoding");
+        if (!Compression.isSupported(enc)) {
+            throw new IOException("Unsupported content encoding '" + enc + "'");
+        }
+        Inflater inf = Compression.inflater(enc);
+        if (inf == null) {
+            return content;
+        }
+        if (!compressionAccepted) {
+            compressionAccepted = true;
+        }
+        try {
+            InputStream in = Compression.decompress(new ByteArrayInputStream(content), enc, inf);
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(content.length * 4);
+            byte[] buf = new byte[8192];
+            int nb = in.read(buf);
+            while (nb > 0) {
+                bout.write(buf, 0, nb);
+                nb = in.read(buf);
             }
-        };
+            return bout.toByteArray();
+        } finally {
+            inf.end();
+        }
+    }
+
+    /**
+     * Set the content of a commit request, compressed if it is large enough and
+     * the dispatcher is known to support the compression.
+     *
+     * @param e    the exchange
+     * @param c    the codec that encoded the jobs
+     * @param bout the encoded jobs
+     * @throws IOException if an error occurred while compressing
+     */
+    private void setContent(ContentExchange e, JobCodec c, ByteArrayOutputStream bout) throws IOException {
+        e.setRequestContentType(c.getContentType());
+        if (compression && compressionAccepted && bout.size() >= COMPRESSION_THRESHOLD) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(bout.size() / 4);
+            Deflater d = Compression.deflater(Compression.GZIP);
+            try {
+                DeflaterOutputStream out = Compression.compress(compressed, Compression.GZIP, d);
+                bout.writeTo(out);
+                out.finish();
+            } finally {
+                d.end();
+            }
+            e.setRequestHeader("Content-Encoding", Compression.GZIP);
+            e.setRequestContent(new ByteArrayBuffer(compressed.toByteArray()));
+        } else {
+            e.setRequestContent(new ByteArrayBuffer(bout.toByteArray()));
+        }
+    }
+
+    /**
+     * Get the cache of the resources retrieved from the dispatcher.
+     * The cache is shared by all the threads using this handler.
+     *
+     * @return the cache
+     */
+    public ResourceCache getResourceCache() {
+        return rcCache;
     }
 
     public void flushCache() {
         this.rcCache.clear();
     }
 
+    /**
+     * Set the directory that stores the resources downloaded by {@link #storeResource(String)}.
+     * By default, the directory {@code jobsManager-resources} of the temporary directory.
+     *
+     * @param dir the directory, created if needed. It can be shared by several handlers
+     */
+    public void setDiskCache(File dir) {
+        this.diskCache = dir;
+    }
+
+    /**
+     * Get the directory that stores the resources downloaded by {@link #storeResource(String)}.
+     *
+     * @return the directory
+     */
+    public File getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * Download a resource into the disk cache.
+     * The resource is streamed to the disk, so it is never loaded in memory nor put in the resource cache.
+     * <p/>
+     * A downloaded resource is kept with its entity tag, so the next calls, even from another process,
+     * only check the resource has not changed on the dispatcher. A download that failed is resumed
+     * from where it stopped by the next call, if the resource has not changed in the meantime.
+     * Otherwise, or if the dispatcher cannot serve the missing range, the resource is downloaded again
+     * from the start.
+     *
+     * @param rc the path of the resource
+     * @return the file that contains the resource, {@code null} if the resource is not available anymore.
+     *         The file belongs to the cache so it must not be modified
+     * @throws Exception if an error occurred while downloading the resource
+     */
     public File storeResource(String rc) throws Exception {
-        String name = rc.substring(rc.lastIndexOf('/') + 1, rc.length());
-        File f = File.createTempFile("vjob", name);
-        byte[] content = getResource(rc);
-        FileOutputStream out = new FileOutputStream(f);
-        out.write(content);
-        out.close();
-        return f;
+        File dir = diskCache;
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Unable to create the directory '" + dir + "'");
+        }
+        String key = URLEncoder.encode(rc, "UTF-8");
+        File data = new File(dir, key);
+        File tag = new File(dir, key + ".etag");
+        File part = new File(dir, key + ".part");
+        File partTag = new File(dir, key + ".part.etag");
+        //The cache directory may be shared by several handlers of this JVM
+        DownloadLock dl = DownloadLock.acquire(data.getCanonicalPath());
+        try {
+            synchronized (dl) {
+                //Exclude the other processes sharing the cache
+                RandomAccessFile lock = new RandomAccessFile(new File(dir, key + ".lock"), "rw");
+                try {
+                    lock.getChannel().lock();
+                    String valid = data.isFile() ? readTag(tag) : null;
+                    String resumable = valid == null && part.length() > 0 ? readTag(partTag) : null;
+                    int status;
+                    while (true) {
+                        RandomAccessFile out = new RandomAccessFile(part, "rw");
+                        Download d;
+                        try {
+                            d = new Download(out.getChannel(), resumable != null ? part.length() : 0, partTag);
+                            d.setMethod("GET");
+                            d.setRequestURI("/" + rc);
+                            d.setAddress(addr);
+                            d.setTimeout(DOWNLOAD_TIMEOUT);
+                            if (valid != null) {
+                                d.setRequestHeader("If-None-Match", valid);
+                            } else if (resumable != null) {
+                                d.setRequestHeader("Range", "bytes=" + part.length() + "-");
+                                d.setRequestHeader("If-Range", resumable);
+                            }
+                            status = await(send(d));
+                        } finally {
+                            out.close();
+                        }
+                        if (!d.isMismatch()) {
+                            break;
+                        }
+                        //The partial download cannot be resumed, download the resource from the start
+                        part.delete();
+                        partTag.delete();
+                        resumable = null;
+                    }
+                    if (status == HttpServletResponse.SC_NOT_MODIFIED) {
+                        part.delete();
+                        return data;
+                    } else if (status == HttpServletResponse.SC_GONE) {
+                        part.delete();
+                        partTag.delete();
+                        return null;
+                    }
+                    tag.delete();
+                    data.delete();
+                    if (!part.renameTo(data)) {
+                        throw new IOException("Unable to rename '" + part + "' to '" + data + "'");
+                    }
+                    if (partTag.exists() && !partTag.renameTo(tag)) {
+                        throw new IOException("Unable to rename '" + partTag + "' to '" + tag + "'");
+                    }
+                    return data;
+                } finally {
+                    lock.close();
+                }
+            }
+        } finally {
+            dl.release();
+        }
+    }
+
+    /**
+     * Read an entity tag stored in a file.
+     *
+     * @param f the file
+     * @return the entity tag, {@code null} if the file does not exist or is empty
+     * @throws IOException if an error occurred while reading the file
+     */
+    private static String readTag(File f) throws IOException {
+        if (!f.isFile()) {
+            return null;
+        }
+        byte[] b = new byte[(int) f.length()];
+        RandomAccessFile in = new RandomAccessFile(f, "r");
+        try {
+            in.readFully(b);
+        } finally {
+            in.close();
+        }
+        String t = new String(b, "UTF-8").trim();
+        return t.length() == 0 ? null : t;
+    }
+
+    /**
+     * The lock of a resource being downloaded into a disk cache, shared by all the handlers of the JVM.
+     * The lock of the file only excludes the other processes: two handlers of a same JVM locking
+     * the same file would fail instead of waiting. A lock is forgotten once no download uses it.
+     */
+    private static final class DownloadLock {
+
+        /**
+         * The locks in use, by canonical path of the resource.
+         */
+        private static final Map<String, DownloadLock> LOCKS = new HashMap<String, DownloadLock>();
+
+        private final String path;
+
+        /**
+         * The number of downloads using the lock. Guarded by {@link #LOCKS}.
+         */
+        private int users;
+
+        private DownloadLock(String path) {
+            this.path = path;
+        }
+
+        /**
+         * Get the lock of a resource.
+         * The lock must be released once the download is over.
+         *
+         * @param path the canonical path of the resource in the disk cache
+         * @return the lock
+         */
+        static DownloadLock acquire(String path) {
+            synchronized (LOCKS) {
+                DownloadLock l = LOCKS.get(path);
+                if (l == null) {
+                    l = new DownloadLock(path);
+                    LOCKS.put(path, l);
+                }
+                l.users++;
+                return l;
+            }
+        }
+
+        /**
+         * Stop using the lock.
+         */
+        void release() {
+            synchronized (LOCKS) {
+                if (--users == 0) {
+                    LOCKS.remove(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * An exchange that streams the content of a resource into a file.
+     * The outcome is the status code of the response.
+     */
+    private class Download extends AsyncExchange<Integer> {
+
+        private final FileChannel channel;
+
+        private final OutputStream out;
+
+        /**
+         * The position of the first byte to download.
+         */
+        private final long offset;
+
+        /**
+         * The file that stores the entity tag of the downloaded content.
+         */
+        private final File tag;
+
+        private boolean writing;
+
+        private long expected = -1;
+
+        private long written;
+
+        /**
+         * Indicates whether the dispatcher is unable to resume the download at {@link #offset}.
+         */
+        private boolean mismatch;
+
+        public Download(FileChannel ch, long offset, File tag) {
+            super(null);
+            this.channel = ch;
+            this.out = Channels.newOutputStream(ch);
+            this.offset = offset;
+            this.tag = tag;
+        }
+
+        @Override
+        protected void onResponseHeaderComplete() throws IOException {
+            super.onResponseHeaderComplete();
+            int st = getResponseStatus();
+            if (st == HttpServletResponse.SC_PARTIAL_CONTENT) {
+                String range = getResponseFields().getStringField("Content-Range");
+                if (range == null || !range.startsWith("bytes " + offset + "-")) {
+                    if (offset == 0) {
+                        throw new IOException("Unexpected range '" + range + "'");
+                    }
+                    mismatch = true;
+                } else {
+                    channel.position(offset);
+                    writing = true;
+                }
+            } else if (st == HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE && offset > 0) {
+                //The resource is now shorter than the partial download
+                mismatch = true;
+            } else if (st == HttpServletResponse.SC_OK) {
+                channel.truncate(0);
+                channel.position(0);
+                String etag = getResponseFields().getStringField("ETag");
+                if (etag == null) {
+                    tag.delete();
+                } else {
+                    FileOutputStream t = new FileOutputStream(tag);
+                    try {
+                        t.write(etag.getBytes("UTF-8"));
+                    } finally {
+                        t.close();
+                    }
+                }
+                writing = true;
+            }
+            if (writing) {
+                expected = getResponseFields().getLongField("Content-Length");
+            }
+        }
+
+        @Override
+        protected void onResponseContent(Buffer content) throws IOException {
+            if (writing) {
+                written += content.length();
+                content.writeTo(out);
+            } else if (!mismatch) {
+                super.onResponseContent(content);
+            }
+        }
+
+        /**
+         * Indicates whether the download must be restarted from the first byte, as the dispatcher
+         * answered the range request with a status or a range that does not resume the partial download.
+         *
+         * @return {@code true} to restart the download
+         */
+        public boolean isMismatch() {
+            return mismatch;
+        }
+
+        @Override
+        protected Integer parse() throws IOException, JobHandlerException {
+            int st = getResponseStatus();
+            if (mismatch) {
+                return st;
+            } else if (writing) {
+                if (expected >= 0 && written != expected) {
+                    throw new EOFException("Download truncated after " + written + " bytes instead of " + expected);
+                }
+            } else if (st != HttpServletResponse.SC_NOT_MODIFIED && st != HttpServletResponse.SC_GONE) {
+                throw new JobHandlerException("Error : server status code '" + st + "' for request " + getURI());
+            }
+            return st;
+        }
     }
 
     public String getResourceAsString(String rc) throws IOException {
         return new String(getResource(rc));
     }
 
+    /**
+     * Get a resource, from the cache if possible.
+     *
+     * @param rc the path of the resource
+     * @return the content of the resource, {@code null} if it is not available anymore
+     * @throws IOException if an error occurred while retrieving the resource
+     */
     public byte[] getResource(String rc) throws IOException {
+        return rcCache.get(rc, rcLoader);
+    }
+
+    /**
+     * Get a resource asynchronously, from the cache if possible.
+     * If the resource is cached, the returned future is already completed.
+     * Unlike {@link #getResource(String)}, concurrent misses for a same resource are not coalesced.
+     *
+     * @param rc the path of the resource
+     * @param cb the callback to notify once the resource is retrieved, may be {@code null}
+     * @return the content of the resource, {@code null} if it is not available anymore
+     * @throws IOException if an error occurred while sending the request
+     */
+    public Future<byte[]> getResourceAsync(final String rc, final Callback<byte[]> cb) throws IOException {
+        byte[] content = rcCache.lookup(rc);
+        if (content != null) {
+            AsyncExchange.Result<byte[]> r = new AsyncExchange.Result<byte[]>(null, cb);
+            r.succeed(content);
+            return r;
+        }
+        return fetchResource(rc, new Callback<byte[]>() {
+            @Override
+            public void completed(byte[] res) {
+                if (res != null) {
+                    rcCache.put(rc, res);
+                }
+                if (cb != null) {
+                    cb.completed(res);
+                }
+            }
+
+            @Override
+            public void failed(Throwable t) {
+                if (cb != null) {
+                    cb.failed(t);
+                }
+            }
+        });
+    }
 
-        if (rcCache.containsKey(rc)) {
-            return rcCache.get(rc);
+    /**
+     * Retrieve a resource from the dispatcher.
+     *
+     * @param rc the path of the resource
+     * @return the content of the resource, {@code null} if it is not available anymore
+     * @throws IOException if an error occurred while retrieving the resource
+     */
+    private byte[] loadResource(String rc) throws IOException {
+        try {
+            return await(fetchResource(rc, null));
+        } catch (JobHandlerException e) {
+            throw new IOException(e.getMessage(), e);
         }
-        ContentExchange e = new ContentExchange();
+    }
+
+    /**
+     * Send a request to retrieve a resource from the dispatcher.
+     *
+     * @param rc the path of the resource
+     * @param cb the callback to notify, may be {@code null}
+     * @return the content of the resource, {@code null} if it is not available anymore
+     * @throws IOException if an error occurred while sending the request
+     */
+    private Future<byte[]> fetchResource(String rc, Callback<byte[]> cb) throws IOException {
+        AsyncExchange<byte[]> e = new AsyncExchange<byte[]>(cb) {
+            @Override
+            protected byte[] parse() throws IOException {
+                if (getResponseStatus() == HttpServletResponse.SC_OK) {
+                    return content(this);
+                } else if (getResponseStatus() != HttpServletResponse.SC_GONE) {
+                    throw new IOException("Error: server returns status code '" + getResponseStatus() + "' instead of '" + HttpServletResponse.SC_OK);
+                }
+                return null;
+            }
+        };
         e.setMethod("GET");
         e.setRequestURI("/" + rc);
         e.setAddress(addr);
-        client.send(e);
-        try {
-            int exchangeState = e.waitForDone();
-            if (exchangeState == HttpExchange.STATUS_COMPLETED) {
-                if (e.getResponseStatus() == HttpServletResponse.SC_OK) {
-                    byte[] content = e.getResponseContentBytes();
-                    rcCache.put(rc, content);
-                    return content;
-                } else if (e.getResponseStatus() != HttpServletResponse.SC_GONE) {
-                    throw new IOException("Error: server returns status code '" + e.getResponseStatus() + "' instead of '" + HttpServletResponse.SC_OK);
-                }
-            } else {
-                throw new IOException("Error: exchange code '" + exchangeState + "' instead of '" + HttpExchange.STATUS_COMPLETED);
-            }
-        } catch (InterruptedException ex) {
-            throw new IOException(ex.getMessage(), ex);
-        }
-        return null;
+        acceptCompression(e);
+        return send(e);
     }
 
     /**
@@ -132,54 +866,310 @@ public class JobHandler {
      * @throws JobHandlerException if another error occurred
      */
     public Job dequeue() throws IOException, JobHandlerException {
-        Job j = null;
-        ContentExchange e = new ContentExchange();
+        return await(dequeueAsync(null));
+    }
+
+    /**
+     * Dequeue a job asynchronously.
+     *
+     * @param cb the callback to notify once the job is dequeued, may be {@code null}
+     * @return the dequeued job, it is null when there is no more jobs to compute
+     * @throws java.io.IOException if an error occurred while sending the request
+     * @see #dequeue()
+     */
+    public Future<Job> dequeueAsync(Callback<Job> cb) throws IOException {
+        AsyncExchange<Job> e = new AsyncExchange<Job>(cb) {
+            @Override
+            protected Job parse() throws IOException {
+                if (getResponseStatus() == HttpServletResponse.SC_OK) {
+                    return decoder(this).read(new ByteArrayInputStream(content(this)));
+                }
+                return null;
+            }
+        };
         e.setMethod("GET");
-        e.setRequestURI("/?a=dequeue");
+        e.setRequestURI("/?a=dequeue" + waitParameter(e));
+        e.setRequestHeader("Accept", codec.getContentType());
+        acceptCompression(e);
         e.setAddress(addr);
-        client.send(e);
-        try {
+        return send(e);
+    }
+
+    /**
+     * Dequeue several jobs in one request.
+     *
+     * @param max the maximum number of jobs to dequeue
+     * @return the dequeued jobs, the list is empty when there is no more jobs to compute
+     * @throws java.io.IOException if an error occurred while reading the jobs
+     * @throws JobHandlerException if another error occurred
+     */
+    public List<Job> dequeue(int max) throws IOException, JobHandlerException {
+        return await(dequeueAsync(max, null));
+    }
 
-            int exchangeState = e.waitForDone();
-            if (exchangeState == HttpExchange.STATUS_COMPLETED) {
-                if (e.getResponseStatus() == HttpServletResponse.SC_OK) {
-                    j = Job.fromJSON(e.getResponseContent());
+    /**
+     * Dequeue several jobs in one request, asynchronously.
+     *
+     * @param max the maximum number of jobs to dequeue
+     * @param cb  the callback to notify once the jobs are dequeued, may be {@code null}
+     * @return the dequeued jobs, the list is empty when there is no more jobs to compute
+     * @throws java.io.IOException if an error occurred while sending the request
+     * @see #dequeue(int)
+     */
+    public Future<List<Job>> dequeueAsync(int max, Callback<List<Job>> cb) throws IOException {
+        AsyncExchange<List<Job>> e = new AsyncExchange<List<Job>>(cb) {
+            @Override
+            protected List<Job> parse() throws IOException, JobHandlerException {
+                if (getResponseStatus() == HttpServletResponse.SC_OK) {
+                    return decoder(this).readAll(new ByteArrayInputStream(content(this)));
+                } else if (getResponseStatus() != HttpServletResponse.SC_GONE) {
+                    throw new JobHandlerException("Error : server status code '" + getResponseStatus() + " for request " + getURI());
                 }
-            } else {
-                throw new JobHandlerException("Error: exchange code '" + exchangeState + "' instead of '" + HttpExchange.STATUS_COMPLETED);
+                return Collections.emptyList();
             }
-        } catch (InterruptedException ex) {
-            throw new JobHandlerException(ex.getMessage(), ex);
-        }
-        return j;
+        };
+        e.setMethod("GET");
+        e.setRequestURI("/?a=dequeueBatch&n=" + max + waitParameter(e));
+        e.setRequestHeader("Accept", codec.getContentType());
+        acceptCompression(e);
+        e.setAddress(addr);
+        return send(e);
+    }
+
+    /**
+     * Renew the lease of a running job.
+     * Must be called periodically while computing a job if the dispatcher leases the jobs.
+     * The job must be the one that was dequeued, as its number of attempts identifies the assignment.
+     *
+     * @param j the job being computed
+     * @return {@code true} if the lease was renewed. {@code false} if the job is not assigned to
+     *         this handler anymore, so its computation can be abandoned
+     * @throws java.io.IOException if an error occurred while sending the request
+     * @throws JobHandlerException if another error occurred
+     */
+    public boolean renew(Job j) throws IOException, JobHandlerException {
+        return await(renewAsync(j, null));
+    }
+
+    /**
+     * Renew the lease of a running job asynchronously.
+     *
+     * @param j  the job being computed
+     * @param cb the callback to notify once the lease is renewed, may be {@code null}
+     * @return {@code true} if the lease was renewed. {@code false} if the job is not assigned to
+     *         this handler anymore
+     * @throws java.io.IOException if an error occurred while sending the request
+     * @see #renew(Job)
+     */
+    public Future<Boolean> renewAsync(Job j, Callback<Boolean> cb) throws IOException {
+        AsyncExchange<Boolean> e = new AsyncExchange<Boolean>(cb) {
+            @Override
+            protected Boolean parse() throws JobHandlerException {
+                if (getResponseStatus() == HttpServletResponse.SC_OK) {
+                    return Boolean.TRUE;
+                } else if (getResponseStatus() == HttpServletResponse.SC_GONE) {
+                    return Boolean.FALSE;
+                }
+                throw new JobHandlerException("Error : server status code '" + getResponseStatus() + " for request " + getURI());
+            }
+        };
+        e.setMethod("GET");
+        e.setRequestURI("/?a=renew&j=" + j.getId() + "&t=" + j.getAttempts());
+        e.setAddress(addr);
+        return send(e);
+    }
+
+    /**
+     * Report that a dequeued job cannot be computed.
+     * The dispatcher requeues the job, or fails it once it reached the maximum number of attempts.
+     * The job must be the one that was dequeued, as its number of attempts identifies the assignment.
+     *
+     * @param j the job that cannot be computed
+     * @return {@code true} if the failure was accepted. {@code false} if the job is not assigned to
+     *         this handler anymore
+     * @throws java.io.IOException if an error occurred while sending the request
+     * @throws JobHandlerException if another error occurred
+     */
+    public boolean fail(Job j) throws IOException, JobHandlerException {
+        return await(failAsync(j, null));
+    }
+
+    /**
+     * Report asynchronously that a dequeued job cannot be computed.
+     *
+     * @param j  the job that cannot be computed
+     * @param cb the callback to notify once the failure is reported, may be {@code null}
+     * @return {@code true} if the failure was accepted. {@code false} if the job is not assigned to
+     *         this handler anymore
+     * @throws java.io.IOException if an error occurred while sending the request
+     * @see #fail(Job)
+     */
+    public Future<Boolean> failAsync(Job j, Callback<Boolean> cb) throws IOException {
+        AsyncExchange<Boolean> e = new AsyncExchange<Boolean>(cb) {
+            @Override
+            protected Boolean parse() throws JobHandlerException {
+                if (getResponseStatus() == HttpServletResponse.SC_OK) {
+                    return Boolean.TRUE;
+                } else if (getResponseStatus() == HttpServletResponse.SC_GONE) {
+                    return Boolean.FALSE;
+                }
+                throw new JobHandlerException("Error : server status code '" + getResponseStatus() + " for request " + getURI());
+            }
+        };
+        e.setMethod("GET");
+        e.setRequestURI("/?a=fail&j=" + j.getId() + "&t=" + j.getAttempts());
+        e.setAddress(addr);
+        return send(e);
     }
 
     /**
      * commit a job using a POST request.
+     * The job must keep the number of attempts it was dequeued with, otherwise the dispatcher
+     * ignores the commit.
      *
      * @param j the job to commit
+     * @return {@code true} if the job was commited. {@code false} if the job is not running for
+     *         this attempt anymore, so it must not be commited again
      * @throws java.io.IOException if an error occurred while reading the job
      * @throws JobHandlerException if another error occurred
      */
-    public void commit(Job j) throws IOException, JobHandlerException {
-        ContentExchange e = new ContentExchange();
+    public boolean commit(Job j) throws IOException, JobHandlerException {
+        return await(commitAsync(j, null));
+    }
+
+    /**
+     * Commit a job asynchronously.
+     *
+     * @param j  the job to commit
+     * @param cb the callback to notify once the job is commited, may be {@code null}
+     * @return a future to wait for the commit
+     * @throws java.io.IOException if an error occurred while encoding the job or sending the request
+     * @see #commit(Job)
+     */
+    public Future<Boolean> commitAsync(Job j, Callback<Boolean> cb) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        JobCodec c = encoder();
+        c.write(j, bout);
+        AsyncExchange<Boolean> e = new AsyncExchange<Boolean>(cb) {
+            @Override
+            protected Boolean parse() throws JobHandlerException {
+                if (getResponseStatus() == HttpServletResponse.SC_OK) {
+                    return Boolean.TRUE;
+                } else if (getResponseStatus() == HttpServletResponse.SC_GONE) {
+                    return Boolean.FALSE;
+                }
+                throw new JobHandlerException("Error : server status code '" + getResponseStatus() + " for request " + getURI());
+            }
+        };
+        return sendCommit(e, "/?a=commit&j=" + j.getId(), c, bout);
+    }
+
+    /**
+     * Commit several jobs in one POST request.
+     * The jobs that are not running for the attempt they were dequeued with anymore are ignored.
+     *
+     * @param js the jobs to commit
+     * @return the number of commited jobs
+     * @throws java.io.IOException if an error occurred while sending the jobs
+     * @throws JobHandlerException if another error occurred
+     * @see BatchCommitter
+     */
+    public int commit(Collection<Job> js) throws IOException, JobHandlerException {
+        return await(commitAsync(js, null));
+    }
+
+    /**
+     * Commit several jobs in one POST request, asynchronously.
+     *
+     * @param js the jobs to commit
+     * @param cb the callback to notify with the number of commited jobs, may be {@code null}
+     * @return a future to wait for the number of commited jobs
+     * @throws java.io.IOException if an error occurred while encoding the jobs or sending the request
+     * @see #commit(java.util.Collection)
+     */
+    public Future<Integer> commitAsync(final Collection<Job> js, Callback<Integer> cb) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        JobCodec c = encoder();
+        c.write(js, bout);
+        AsyncExchange<Integer> e = new AsyncExchange<Integer>(cb) {
+            @Override
+            protected Integer parse() throws IOException, JobHandlerException {
+                if (getResponseStatus() == HttpServletResponse.SC_GONE) {
+                    return 0;
+                } else if (getResponseStatus() != HttpServletResponse.SC_OK) {
+                    throw new JobHandlerException("Error : server status code '" + getResponseStatus() + " for request " + getURI());
+                }
+                String nb = new String(content(this), "US-ASCII").trim();
+                if (nb.length() == 0) {
+                    //A dispatcher that does not report the number of commited jobs
+                    return js.size();
+                }
+                try {
+                    return Integer.parseInt(nb);
+                } catch (NumberFormatException ex) {
+                    throw new JobHandlerException("Error : unexpected response '" + nb + "' for request " + getURI(), ex);
+                }
+            }
+        };
+        return sendCommit(e, "/?a=commitBatch", c, bout);
+    }
+
+    /**
+     * Send a commit request.
+     *
+     * @param e    the exchange to send
+     * @param uri  the URI of the request
+     * @param c    the codec that encoded the jobs
+     * @param bout the encoded jobs
+     * @return a future to wait for the commit
+     * @throws IOException if an error occurred while sending the request
+     */
+    private <T> Future<T> sendCommit(AsyncExchange<T> e, String uri, JobCodec c, ByteArrayOutputStream bout) throws IOException {
         e.setAddress(addr);
         e.setMethod("POST");
-        e.setRequestURI("/?a=commit&j=" + j.getId());
-        e.setRequestContentType("text/json");
-        e.setRequestContent(new ByteArrayBuffer(j.toJSON().getBytes("UTF-8")));
+        e.setRequestURI(uri);
+        setContent(e, c, bout);
+        return send(e);
+    }
+
+    /**
+     * Send an exchange.
+     *
+     * @param e the exchange to send
+     * @return the outcome of the exchange
+     * @throws IOException if an error occurred while sending the exchange
+     */
+    private <T> Future<T> send(AsyncExchange<T> e) throws IOException {
+        e.setConnectionFailures(nbConnectionFailures);
+        nbRequests.incrementAndGet();
         client.send(e);
+        return e.getResult();
+    }
+
+    /**
+     * Wait for the outcome of an asynchronous operation.
+     *
+     * @param f the operation
+     * @return its result
+     * @throws IOException         if the operation failed due to an I/O error
+     * @throws JobHandlerException if the operation failed for another reason or if the thread was interrupted
+     */
+    private static <T> T await(Future<T> f) throws IOException, JobHandlerException {
         try {
-            int exchangeState = e.waitForDone();
-            if (exchangeState == HttpExchange.STATUS_COMPLETED) {
-                if (e.getResponseStatus() != HttpServletResponse.SC_OK) {
-                    throw new JobHandlerException("Error : server status code '" + e.getResponseStatus() + " for request " + e.getURI());
-                }
-            } else {
-                throw new JobHandlerException("Error: exchange code '" + exchangeState + "' instead of '" + HttpExchange.STATUS_COMPLETED);
-            }
+            return f.get();
         } catch (InterruptedException ex) {
+            f.cancel(true);
             throw new JobHandlerException(ex.getMessage(), ex);
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            } else if (t instanceof JobHandlerException) {
+                throw (JobHandlerException) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            throw new JobHandlerException(t.getMessage(), t);
         }
     }
 
@@ -0,0 +1,492 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A worker-side pipeline that hides the network round-trips of a {@link JobHandler}.
+ * While the jobs are computed, the next jobs are dequeued in advance into a small buffer and
+ * the computed jobs are commited in background, so the computing threads do not wait on the network.
+ * <p/>
+ * The depth of the buffer adapts to the measured durations: it holds enough jobs to cover
+ * the round-trip of a dequeue request for all the threads taking jobs, plus one job per thread, and never
+ * more than a maximum depth. So a worker computing long jobs only keeps one job in advance per thread and
+ * does not hoard jobs other workers could compute.
+ * The prefetched jobs that are never computed are requeued by the dispatcher once their lease expires.
+ * <p/>
+ * The commits that failed are sent again with the next commit. The error is reported by the next call
+ * to {@link #commit(Job)} or {@link #close()}. The jobs the dispatcher refused, as they are not running
+ * anymore, are not sent again but counted by {@link #getNbRejected()}. A job that cannot be computed is reported to the dispatcher
+ * using {@link #fail(Job)}, so it is requeued without waiting for its lease to expire.
+ * The pipeline is thread-safe.
+ *
+ * @author Fabien Hermenier
+ * @see JobHandler#dequeueAsync(int, JobHandler.Callback)
+ * @see JobHandler#commitAsync(java.util.Collection, JobHandler.Callback)
+ */
+public class JobPipeline {
+
+    /**
+     * The default maximum number of prefetched jobs.
+     */
+    public static final int DEFAULT_MAX_DEPTH = 16;
+
+    /**
+     * The weight of a new measure in the moving averages, as a divisor.
+     */
+    private static final int SMOOTHING = 8;
+
+    private final JobHandler handler;
+
+    private final int maxDepth;
+
+    /**
+     * The number of threads taking jobs.
+     */
+    private final int nbConsumers;
+
+    /**
+     * The prefetched jobs.
+     */
+    private final LinkedList<Job> buffer;
+
+    /**
+     * The moment each job was taken for computation, by identifier.
+     */
+    private final Map<Integer, Long> started;
+
+    /**
+     * The jobs whose commit failed, to send again.
+     */
+    private final List<Job> uncommited;
+
+    /**
+     * Indicates whether a dequeue request is in flight.
+     */
+    private boolean fetching;
+
+    /**
+     * Indicates whether the dispatcher has no more jobs to compute.
+     */
+    private boolean exhausted;
+
+    private boolean closed;
+
+    /**
+     * The number of commit or failure requests in flight.
+     */
+    private int nbCommits;
+
+    /**
+     * The number of computed jobs the dispatcher refused as they were not running anymore.
+     */
+    private int nbRejected;
+
+    /**
+     * The moving average of the duration of a dequeue request, in milliseconds. {@code -1} if unknown.
+     */
+    private long rtt = -1;
+
+    /**
+     * The moving average of the computation time of a job, in milliseconds. {@code -1} if unknown.
+     */
+    private long duration = -1;
+
+    /**
+     * The last error that occurred in background.
+     */
+    private Exception failure;
+
+    /**
+     * Make a new pipeline having a maximum depth of {@link #DEFAULT_MAX_DEPTH} jobs.
+     *
+     * @param h the handler to use
+     */
+    public JobPipeline(JobHandler h) {
+        this(h, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Make a new pipeline for a single thread.
+     *
+     * @param h        the handler to use
+     * @param maxDepth the maximum number of prefetched jobs
+     */
+    public JobPipeline(JobHandler h, int maxDepth) {
+        this(h, maxDepth, 1);
+    }
+
+    /**
+     * Make a new pipeline.
+     *
+     * @param h           the handler to use
+     * @param maxDepth    the maximum number of prefetched jobs
+     * @param nbConsumers the number of threads taking jobs
+     */
+    public JobPipeline(JobHandler h, int maxDepth, int nbConsumers) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("The maximum depth must be strictly positive");
+        }
+        if (nbConsumers < 1) {
+            throw new IllegalArgumentException("The number of consumers must be strictly positive");
+        }
+        this.handler = h;
+        this.maxDepth = maxDepth;
+        this.nbConsumers = nbConsumers;
+        this.buffer = new LinkedList<Job>();
+        this.started = new HashMap<Integer, Long>();
+        this.uncommited = new ArrayList<Job>();
+    }
+
+    /**
+     * Take the next job to compute.
+     * Wait for a job if the buffer is empty.
+     *
+     * @return the job, {@code null} if there is no more jobs to compute
+     * @throws IOException          if an error occurred while dequeuing jobs
+     * @throws JobHandlerException  if another error occurred
+     * @throws InterruptedException if the thread was interrupted while waiting for a job
+     */
+    public synchronized Job take() throws IOException, JobHandlerException, InterruptedException {
+        while (true) {
+            rethrow();
+            if (closed) {
+                return null;
+            }
+            Job j = buffer.poll();
+            if (j != null) {
+                started.put(j.getId(), System.currentTimeMillis());
+                fill();
+                return j;
+            }
+            if (exhausted && !fetching) {
+                return null;
+            }
+            //A dequeue request in flight may still bring jobs, even once drained
+            fill();
+            if (fetching) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Commit a computed job in background.
+     * The jobs whose commit previously failed are sent too. The job is sent even if a previous
+     * request failed, the error is reported once it is sent.
+     *
+     * @param j the computed job
+     * @throws IOException         if an error occurred while sending the job, or a previous request
+     * @throws JobHandlerException if another error occurred
+     */
+    public void commit(Job j) throws IOException, JobHandlerException {
+        final List<Job> batch;
+        Exception previous;
+        synchronized (this) {
+            previous = failure;
+            failure = null;
+            Long st = started.remove(j.getId());
+            if (st != null) {
+                duration = average(duration, System.currentTimeMillis() - st);
+            }
+            batch = new ArrayList<Job>(uncommited);
+            batch.add(j);
+            uncommited.clear();
+            nbCommits++;
+        }
+        final JobHandler.Callback<Integer> cb = new JobHandler.Callback<Integer>() {
+            @Override
+            public void completed(Integer nb) {
+                synchronized (JobPipeline.this) {
+                    nbCommits--;
+                    nbRejected += batch.size() - nb;
+                    JobPipeline.this.notifyAll();
+                }
+            }
+
+            @Override
+            public void failed(Throwable t) {
+                synchronized (JobPipeline.this) {
+                    nbCommits--;
+                    uncommited.addAll(batch);
+                    failure = t instanceof Exception ? (Exception) t : new JobHandlerException(t.getMessage(), t);
+                    JobPipeline.this.notifyAll();
+                }
+            }
+        };
+        try {
+            if (batch.size() == 1) {
+                handler.commitAsync(j, new JobHandler.Callback<Boolean>() {
+                    @Override
+                    public void completed(Boolean commited) {
+                        cb.completed(commited ? 1 : 0);
+                    }
+
+                    @Override
+                    public void failed(Throwable t) {
+                        cb.failed(t);
+                    }
+                });
+            } else {
+                handler.commitAsync(batch, cb);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                nbCommits--;
+                uncommited.addAll(batch);
+            }
+            throw e;
+        }
+        rethrow(previous);
+    }
+
+    /**
+     * Report in background that a taken job cannot be computed.
+     * The dispatcher requeues the job, or fails it once it reached its maximum number of attempts.
+     *
+     * @param j the job taken using {@link #take()}
+     * @throws IOException         if an error occurred while sending the report, or a previous request
+     * @throws JobHandlerException if another error occurred
+     */
+    public void fail(Job j) throws IOException, JobHandlerException {
+        Exception previous;
+        synchronized (this) {
+            previous = failure;
+            failure = null;
+            started.remove(j.getId());
+            nbCommits++;
+        }
+        JobHandler.Callback<Boolean> cb = new JobHandler.Callback<Boolean>() {
+            @Override
+            public void completed(Boolean result) {
+                synchronized (JobPipeline.this) {
+                    nbCommits--;
+                    JobPipeline.this.notifyAll();
+                }
+            }
+
+            @Override
+            public void failed(Throwable t) {
+                synchronized (JobPipeline.this) {
+                    nbCommits--;
+                    failure = t instanceof Exception ? (Exception) t : new JobHandlerException(t.getMessage(), t);
+                    JobPipeline.this.notifyAll();
+                }
+            }
+        };
+        try {
+            handler.failAsync(j, cb);
+        } catch (IOException e) {
+            synchronized (this) {
+                nbCommits--;
+            }
+            throw e;
+        }
+        rethrow(previous);
+    }
+
+    /**
+     * Stop dequeuing jobs. The prefetched jobs, including the ones of a dequeue request in flight,
+     * can still be taken, then {@link #take()} returns {@code null}.
+     */
+    public synchronized void drain() {
+        exhausted = true;
+        notifyAll();
+    }
+
+    /**
+     * Stop prefetching jobs and wait for the commits and the dequeue request in flight.
+     * The jobs whose commit failed are sent a last time.
+     * The prefetched jobs that were not taken are handed back: they are assigned to this worker
+     * until the dispatcher requeues them once their lease expires. Call {@link #drain()} and
+     * take the jobs until {@link #take()} returns {@code null} to compute all of them.
+     *
+     * @return the prefetched jobs that were not taken, the list may be empty
+     * @throws IOException          if an error occurred while commiting jobs
+     * @throws JobHandlerException  if another error occurred
+     * @throws InterruptedException if the thread was interrupted while waiting for the requests
+     */
+    public List<Job> close() throws IOException, JobHandlerException, InterruptedException {
+        List<Job> batch;
+        List<Job> left;
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            while (nbCommits > 0 || fetching) {
+                wait();
+            }
+            batch = new ArrayList<Job>(uncommited);
+            uncommited.clear();
+            left = new ArrayList<Job>(buffer);
+            buffer.clear();
+            failure = null;
+        }
+        if (!batch.isEmpty()) {
+            int nb = handler.commit(batch);
+            synchronized (this) {
+                nbRejected += batch.size() - nb;
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Get the current depth of the buffer.
+     * The consumers take jobs {@code nbConsumers} times faster than a single one, so the depth is
+     * one job per consumer plus the jobs they consume during a round-trip.
+     *
+     * @return the number of jobs the pipeline tries to keep in advance
+     */
+    public synchronized int getDepth() {
+        if (rtt < 0 || duration < 0) {
+            return Math.min(nbConsumers, maxDepth);
+        } else if (duration == 0) {
+            return maxDepth;
+        }
+        long d = nbConsumers + (nbConsumers * rtt + duration - 1) / duration;
+        return (int) Math.min(d, maxDepth);
+    }
+
+    /**
+     * Get the number of prefetched jobs.
+     *
+     * @return a positive number
+     */
+    public synchronized int getNbBuffered() {
+        return buffer.size();
+    }
+
+    /**
+     * Get the number of computed jobs the dispatcher refused to commit.
+     * A job is refused when it is not running for the attempt it was dequeued with anymore, for example
+     * once its lease expired and the job was dequeued by another worker. Refused jobs are not sent again.
+     *
+     * @return a positive number
+     */
+    public synchronized int getNbRejected() {
+        return nbRejected;
+    }
+
+    /**
+     * Get the average computation time of a job, as measured between {@link #take()} and {@link #commit(Job)}.
+     *
+     * @return a duration in milliseconds. {@code -1} if unknown
+     */
+    public synchronized long getAverageDuration() {
+        return duration;
+    }
+
+    /**
+     * Get the average duration of a dequeue request.
+     *
+     * @return a duration in milliseconds. {@code -1} if unknown
+     */
+    public synchronized long getAverageRoundTrip() {
+        return rtt;
+    }
+
+    /**
+     * Send a dequeue request if the buffer is below its depth and no request is in flight.
+     *
+     * @throws IOException if an error occurred while sending the request
+     */
+    private synchronized void fill() throws IOException {
+        int missing = getDepth() - buffer.size();
+        if (fetching || exhausted || closed || missing <= 0) {
+            return;
+        }
+        fetching = true;
+        final long st = System.currentTimeMillis();
+        try {
+            handler.dequeueAsync(missing, new JobHandler.Callback<List<Job>>() {
+                @Override
+                public void completed(List<Job> js) {
+                    synchronized (JobPipeline.this) {
+                        fetching = false;
+                        if (js.isEmpty()) {
+                            exhausted = true;
+                        } else {
+                            //An empty response may have waited for jobs, so it is not a round-trip
+                            rtt = average(rtt, System.currentTimeMillis() - st);
+                        }
+                        buffer.addAll(js);
+                        JobPipeline.this.notifyAll();
+                    }
+                }
+
+                @Override
+                public void failed(Throwable t) {
+                    synchronized (JobPipeline.this) {
+                        fetching = false;
+                        failure = t instanceof Exception ? (Exception) t : new JobHandlerException(t.getMessage(), t);
+                        JobPipeline.this.notifyAll();
+                    }
+                }
+            });
+        } catch (IOException e) {
+            fetching = false;
+            throw e;
+        }
+    }
+
+    /**
+     * Update a moving average.
+     *
+     * @param avg the current average, {@code -1} if there is no measure yet
+     * @param v   the new measure
+     * @return the new average
+     */
+    private static long average(long avg, long v) {
+        return avg < 0 ? v : avg + (v - avg) / SMOOTHING;
+    }
+
+    /**
+     * Throw the last error that occurred in background, if any.
+     *
+     * @throws IOException         if the error was an IOException
+     * @throws JobHandlerException otherwise
+     */
+    private void rethrow() throws IOException, JobHandlerException {
+        Exception e = failure;
+        failure = null;
+        rethrow(e);
+    }
+
+    /**
+     * Throw an error that occurred in background, if any.
+     *
+     * @param e the error, may be {@code null}
+     * @throws IOException         if the error was an IOException
+     * @throws JobHandlerException otherwise
+     */
+    private static void rethrow(Exception e) throws IOException, JobHandlerException {
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof JobHandlerException) {
+            throw (JobHandlerException) e;
+        } else if (e != null) {
+            throw new JobHandlerException(e.getMessage(), e);
+        }
+    }
+}
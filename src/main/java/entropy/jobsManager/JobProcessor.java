@@ -0,0 +1,38 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The computation of a job by a worker.
+ * A processor is shared by all the threads of a {@link WorkerRuntime} so it must be thread-safe.
+ *
+ * @author Fabien Hermenier
+ * @see WorkerRuntime
+ */
+public interface JobProcessor {
+
+    /**
+     * Compute a job.
+     * The results are stored into the job, which is commited once the method returns.
+     *
+     * @param j the job to compute
+     * @param h the handler of the worker, to retrieve resources or renew the lease of the job
+     * @throws Exception if the job cannot be computed. The job is not commited
+     */
+    void process(Job j, JobHandler h) throws Exception;
+}
@@ -0,0 +1,101 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+
+/**
+ * The interface to specify where a JobDispatcher stores its jobs.
+ * The state of a job is managed by the store so each transition is atomic.
+ * Implementations must be thread-safe.
+ * <p/>
+ * The states of the jobs are internal to the package, so the interface is not
+ * meant to be implemented outside of it. The available stores are {@link HeapJobStore}
+ * and {@link MappedJobStore}.
+ *
+ * @author Fabien Hermenier
+ * @see JobDispatcher#setJobStore(JobStore)
+ */
+interface JobStore {
+
+    /**
+     * Add a new job.
+     * The state of the job must already be set.
+     *
+     * @param j the job to add
+     */
+    void put(Job j);
+
+    /**
+     * Get a job.
+     * A store that does not keep the jobs on the heap returns a copy
+     * that reflects the job at the moment of the call.
+     *
+     * @param id the identifier of the job
+     * @return the job or {@code null} if there is no job with this identifier
+     */
+    Job get(int id);
+
+    /**
+     * Get the current state of a job.
+     *
+     * @param id the identifier of the job
+     * @return the state of the job. The state of a created job if the job is unknown
+     */
+    int getState(int id);
+
+    /**
+     * Change atomically the state of a job.
+     * On success, the state of {@code j} is also updated.
+     *
+     * @param j      the job
+     * @param expect the expected current state
+     * @param update the new state
+     * @return {@code true} if the job was in the expected state
+     */
+    boolean compareAndSetState(Job j, int expect, int update);
+
+    /**
+     * Store the modifications of a job.
+     *
+     * @param j      the modified job
+     * @param values {@code true} if the key/value pairs of the job were modified
+     */
+    void update(Job j, boolean values);
+
+    /**
+     * Get the number of jobs.
+     *
+     * @return a positive integer
+     */
+    int size();
+
+    /**
+     * Get the identifier of the jobs.
+     *
+     * @return an array that may be empty
+     */
+    int[] ids();
+
+    /**
+     * Release the resources of the store.
+     *
+     * @throws IOException if an error occurred while releasing the resources
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,1024 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import gnu.trove.TIntHashSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * An append-only journal of the transitions of the jobs inside a dispatcher.
+ * <p/>
+ * The journal is a directory of segments. A new segment is started each time the journal is opened,
+ * so a record torn by a crash can only be at the end of a segment. Each record is made of its length,
+ * the CRC32 of its payload and its payload. A record that is incomplete or corrupted ends the replay
+ * of its segment.
+ * <p/>
+ * The records are appended to a memory buffer and written by a dedicated thread. The thread writes
+ * all the records appended since its last write then forces them to the disk, so the records appended
+ * during a synchronization are made durable together by the next one (group commit).
+ * <p/>
+ * A snapshot of the jobs bounds the number of records to replay. The snapshot starts a new segment
+ * then walks the jobs while they are still modified, so it contains the effects of all the records
+ * of the previous segments and some effects of the records of the new segment. The records are
+ * idempotent, so the replay of the new segment on top of the snapshot rebuilds the exact state. Once
+ * the snapshot is written, the previous segments and snapshots are deleted.
+ * <p/>
+ * The journal also records the commited jobs that were delivered to the commited job handler, so
+ * the recovery can tell the commited jobs that must be delivered again.
+ *
+ * @author Fabien Hermenier
+ */
+class Journal {
+
+    /**
+     * The prefix of the segment files.
+     */
+    public static final String SEGMENT_PREFIX = "journal-";
+
+    /**
+     * The suffix of the segment files.
+     */
+    public static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * The prefix of the snapshot files.
+     */
+    public static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    /**
+     * The suffix of the snapshot files.
+     */
+    public static final String SNAPSHOT_SUFFIX = ".snap";
+
+    /**
+     * The first bytes of a snapshot.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x4a4d5331;
+
+    /**
+     * The maximum size of a record, to detect corrupted lengths. Larger records are rejected.
+     */
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    private static final byte ENQUEUE = 1;
+
+    private static final byte DEQUEUE = 2;
+
+    private static final byte COMMIT = 3;
+
+    private static final byte REQUEUE = 4;
+
+    private static final byte FAIL = 5;
+
+    private static final byte DELIVER = 6;
+
+    private final File dir;
+
+    /**
+     * The identifier of the commited jobs that were delivered.
+     */
+    private final TIntHashSet delivered = new TIntHashSet();
+
+    /**
+     * The records waiting to be written.
+     */
+    private Buffer pendings;
+
+    /**
+     * The buffer being written by the flusher.
+     */
+    private Buffer spare;
+
+    /**
+     * The number of bytes appended since the journal was opened.
+     */
+    private long appended = 0;
+
+    /**
+     * The number of bytes forced to the disk since the journal was opened.
+     */
+    private long durable = 0;
+
+    /**
+     * The error that stopped the flusher, if any.
+     */
+    private IOException failure;
+
+    private boolean closed = false;
+
+    private FileChannel channel;
+
+    /**
+     * The sequence number of the segment to append the records to.
+     */
+    private long seq;
+
+    /**
+     * The records to write before switching to the next segment. {@code null} if no switch is pending.
+     */
+    private Buffer sealed;
+
+    /**
+     * The number of bytes appended up to the end of {@link #sealed}.
+     */
+    private long sealedTarget;
+
+    /**
+     * The segment to switch to once {@link #sealed} is written.
+     */
+    private FileChannel nextChannel;
+
+    private Thread flusher;
+
+    /**
+     * To prevent concurrent snapshots.
+     */
+    private final Object snapshotLock = new Object();
+
+    /**
+     * Exclude the rotation of the segments while a job is journaled then stored.
+     * Otherwise, a snapshot may miss a job whose enqueue is in a replaced segment.
+     */
+    private final ReadWriteLock rotation = new ReentrantReadWriteLock();
+
+    /**
+     * Make a new journal.
+     *
+     * @param d the directory of the segments. Created if needed
+     * @throws IOException if the directory cannot be created
+     */
+    public Journal(File d) throws IOException {
+        this.dir = d;
+        if (!d.isDirectory() && !d.mkdirs()) {
+            throw new IOException("Unable to create the journal directory '" + d + "'");
+        }
+        this.pendings = new Buffer();
+        this.spare = new Buffer();
+    }
+
+    /**
+     * Get the directory of the segments.
+     *
+     * @return the directory given at instantiation
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Get the files of the journal having a given prefix and suffix, in their sequence order.
+     *
+     * @param prefix the prefix of the files
+     * @param suffix the suffix of the files
+     * @return an array that may be empty
+     */
+    private File[] files(String prefix, String suffix) {
+        File[] fs = dir.listFiles();
+        List<File> res = new ArrayList<File>();
+        if (fs != null) {
+            for (File f : fs) {
+                if (f.getName().startsWith(prefix) && f.getName().endsWith(suffix)) {
+                    res.add(f);
+                }
+            }
+        }
+        File[] segs = res.toArray(new File[res.size()]);
+        Arrays.sort(segs);
+        return segs;
+    }
+
+    /**
+     * Get the sequence number of a file of the journal.
+     *
+     * @param f      the file
+     * @param prefix the prefix of the file
+     * @param suffix the suffix of the file
+     * @return the sequence number
+     */
+    private static long sequence(File f, String prefix, String suffix) {
+        String n = f.getName();
+        return Long.parseLong(n.substring(prefix.length(), n.length() - suffix.length()));
+    }
+
+    private File segment(long s) {
+        return new File(dir, String.format("%s%016d%s", SEGMENT_PREFIX, s, SEGMENT_SUFFIX));
+    }
+
+    private File snapshot(long s) {
+        return new File(dir, String.format("%s%016d%s", SNAPSHOT_PREFIX, s, SNAPSHOT_SUFFIX));
+    }
+
+    /**
+     * Get the sequence number of the first segment that is not covered by the latest snapshot.
+     *
+     * @return a sequence number. {@code 0} if there is no snapshot
+     */
+    private long snapshotSequence() {
+        File[] snaps = files(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        return snaps.length == 0 ? 0 : sequence(snaps[snaps.length - 1], SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * Rebuild the jobs from the latest snapshot and the records that follow it.
+     * The jobs that were running are put back into the waiting state.
+     *
+     * @return the jobs of the snapshot by identifier, then the jobs enqueued after, in their enqueue order
+     * @throws IOException if an error occurred while reading the journal
+     */
+    public List<Job> replay() throws IOException {
+        Map<Integer, Job> jobs = new LinkedHashMap<Integer, Job>();
+        long from = snapshotSequence();
+        if (from > 0) {
+            File f = snapshot(from);
+            loadSnapshot(f, jobs, delivered);
+            JobDispatcher.getLogger().info(jobs.size() + " job(s) loaded from '" + f.getName() + "'");
+        }
+        for (File f : files(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (sequence(f, SEGMENT_PREFIX, SEGMENT_SUFFIX) >= from) {
+                int nb = replay(f, jobs);
+                JobDispatcher.getLogger().info(nb + " record(s) replayed from '" + f.getName() + "'");
+            }
+        }
+        List<Job> res = new ArrayList<Job>(jobs.values());
+        for (Job j : res) {
+            if (j.getState() == Job.RUNNING) {
+                j.setState(Job.WAITING);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Replay the records of a segment.
+     *
+     * @param f    the segment
+     * @param jobs the jobs to update
+     * @return the number of records replayed
+     * @throws IOException if an error occurred while reading the segment
+     */
+    private int replay(File f, Map<Integer, Job> jobs) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        int nb = 0;
+        CRC32 crc = new CRC32();
+        try {
+            while (true) {
+                int len;
+                try {
+                    len = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (len <= 0 || len > MAX_RECORD_SIZE) {
+                    JobDispatcher.getLogger().warn("Corrupted record in '" + f.getName() + "'. Remaining records ignored");
+                    break;
+                }
+                byte[] payload = new byte[len];
+                int sum;
+                try {
+                    sum = in.readInt();
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    JobDispatcher.getLogger().warn("Incomplete record at the end of '" + f.getName() + "'. Ignored");
+                    break;
+                }
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != sum) {
+                    JobDispatcher.getLogger().warn("Corrupted record in '" + f.getName() + "'. Remaining records ignored");
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(payload)), jobs, delivered);
+                nb++;
+            }
+        } finally {
+            in.close();
+        }
+        return nb;
+    }
+
+    /**
+     * Apply a record.
+     * A job that was commited or that failed keeps its state whatever the records that follow, as
+     * the records of concurrent transitions may be appended in a different order.
+     * Applying a record whose effect is already in the snapshot does not change the job.
+     *
+     * @param in        the payload of the record
+     * @param jobs      the jobs to update
+     * @param delivered the identifier of the delivered jobs, to update
+     * @throws IOException if the payload cannot be read
+     */
+    private static void apply(DataInputStream in, Map<Integer, Job> jobs, TIntHashSet delivered) throws IOException {
+        byte type = in.readByte();
+        int id = in.readInt();
+        Job j = jobs.get(id);
+        if (type == ENQUEUE) {
+            if (j != null) {
+                return;
+            }
+            j = new Job(id);
+            j.setEnqueuedTime(in.readLong());
+            j.setPriority(in.readInt());
+            readValues(in, j);
+            j.setState(Job.WAITING);
+            jobs.put(id, j);
+            return;
+        }
+        if (j == null) {
+            JobDispatcher.getLogger().warn("Record for the unknown job " + id + ". Ignored");
+            return;
+        }
+        boolean done = j.getState() == Job.COMMITED || j.getState() == Job.FAILED;
+        switch (type) {
+            case DEQUEUE:
+                //The attempt number identifies the dequeue, two dequeues may be made the same millisecond
+                int a = in.readInt();
+                long t = in.readLong();
+                if (a <= j.getAttempts()) {
+                    break;
+                }
+                j.setAttempts(a);
+                j.setDequeuedTime(t);
+                if (!done) {
+                    j.setState(Job.RUNNING);
+                }
+                break;
+            case COMMIT:
+                j.setCommitedTime(in.readLong());
+                readValues(in, j);
+                j.setState(Job.COMMITED);
+                break;
+            case REQUEUE:
+                if (!done) {
+                    j.setState(Job.WAITING);
+                }
+                break;
+            case FAIL:
+                if (!done) {
+                    j.setState(Job.FAILED);
+                }
+                break;
+            case DELIVER:
+                delivered.add(id);
+                break;
+            default:
+                throw new IOException("Unknown record type: " + type);
+        }
+    }
+
+    /**
+     * Start a new segment to append the records.
+     *
+     * @throws IOException if the segment cannot be created
+     */
+    public void open() throws IOException {
+        File[] segs = files(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        seq = snapshotSequence();
+        if (segs.length > 0) {
+            seq = Math.max(seq, sequence(segs[segs.length - 1], SEGMENT_PREFIX, SEGMENT_SUFFIX) + 1);
+        }
+        channel = new FileOutputStream(segment(seq)).getChannel();
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Get the lock to hold while a job is journaled by {@link #logEnqueue(Job)} then stored.
+     * A snapshot waits for the lock to be released before starting a new segment.
+     *
+     * @return the lock
+     */
+    Lock enqueueLock() {
+        return rotation.readLock();
+    }
+
+    /**
+     * Append the enqueue of a job.
+     *
+     * @param j the job
+     * @return the position to wait for to make the record durable
+     * @throws IOException              if the journal failed or is closed
+     * @throws IllegalArgumentException if the record exceeds the maximum size of a record
+     * @see #sync(long)
+     */
+    public long logEnqueue(Job j) throws IOException {
+        Record r = new Record();
+        try {
+            r.begin(ENQUEUE, j.getId());
+            r.out.writeLong(j.getEnqueuedTime());
+            r.out.writeInt(j.getPriority());
+            writeValues(r.out, j);
+            r.end();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return append(r);
+    }
+
+    /**
+     * Append the dequeue of jobs.
+     * A record contains the attempt number of the job, so replaying it twice does not count the attempt twice.
+     *
+     * @param js the jobs
+     * @return the position to wait for to make the records durable
+     * @throws IOException if the journal failed or is closed
+     */
+    public long logDequeue(Collection<Job> js) throws IOException {
+        Record r = new Record();
+        try {
+            for (Job j : js) {
+                r.begin(DEQUEUE, j.getId());
+                r.out.writeInt(j.getAttempts());
+                r.out.writeLong(j.getDequeuedTime());
+                r.end();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return append(r);
+    }
+
+    /**
+     * Append the commit of jobs.
+     *
+     * @param js     the commited jobs
+     * @param values the values sent by the handler, for each commited job
+     * @return the position to wait for to make the records durable
+     * @throws IOException              if the journal failed or is closed
+     * @throws IllegalArgumentException if the record of a job exceeds the maximum size of a record.
+     *                                  No record is appended
+     */
+    public long logCommit(List<Job> js, List<Job> values) throws IOException {
+        Record r = new Record();
+        try {
+            for (int i = 0; i < js.size(); i++) {
+                Job j = js.get(i);
+                r.begin(COMMIT, j.getId());
+                r.out.writeLong(j.getCommitedTime());
+                writeValues(r.out, values.get(i));
+                r.end();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return append(r);
+    }
+
+    /**
+     * Append the requeue of a job that was running.
+     *
+     * @param id the identifier of the job
+     * @return the position to wait for to make the record durable
+     * @throws IOException if the journal failed or is closed
+     */
+    public long logRequeue(int id) throws IOException {
+        return logTransition(REQUEUE, id);
+    }
+
+    /**
+     * Append the failure of a job.
+     *
+     * @param id the identifier of the job
+     * @return the position to wait for to make the record durable
+     * @throws IOException if the journal failed or is closed
+     */
+    public long logFail(int id) throws IOException {
+        return logTransition(FAIL, id);
+    }
+
+    /**
+     * Append the delivery of a commited job to the commited job handler.
+     * The record is not forced to the disk: a delivery that is lost by a crash is made again.
+     *
+     * @param id the identifier of the job
+     * @return the position to wait for to make the record durable
+     * @throws IOException if the journal failed or is closed
+     */
+    public long logDeliver(int id) throws IOException {
+        synchronized (delivered) {
+            delivered.add(id);
+        }
+        return logTransition(DELIVER, id);
+    }
+
+    /**
+     * Check if a commited job was delivered to the commited job handler.
+     *
+     * @param id the identifier of the job
+     * @return {@code true} if the delivery was recorded
+     */
+    public boolean isDelivered(int id) {
+        synchronized (delivered) {
+            return delivered.contains(id);
+        }
+    }
+
+    private long logTransition(byte type, int id) throws IOException {
+        Record r = new Record();
+        try {
+            r.begin(type, id);
+            r.end();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return append(r);
+    }
+
+    /**
+     * Append records to the pending buffer and wake up the flusher.
+     * The records are rejected once the flusher stopped, as they would never be written.
+     *
+     * @param r the records
+     * @return the position of the end of the records
+     * @throws IOException if the journal failed or is closed
+     */
+    private synchronized long append(Record r) throws IOException {
+        if (failure != null) {
+            throw new IOException("Journal failed: " + failure.getMessage(), failure);
+        } else if (closed) {
+            throw new IOException("Journal closed");
+        }
+        r.writeTo(pendings);
+        appended += r.size();
+        notifyAll();
+        return appended;
+    }
+
+    /**
+     * Wait for the records up to a given position to be durable.
+     *
+     * @param pos the position returned when the last record of interest was appended
+     * @throws IOException if the records cannot be written
+     */
+    public synchronized void sync(long pos) throws IOException {
+        boolean interrupted = false;
+        while (durable < pos && failure == null && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (durable < pos) {
+            throw failure != null ? failure : new IOException("Journal closed");
+        }
+    }
+
+    /**
+     * Write the pending records until the journal is closed.
+     */
+    private void flushLoop() {
+        while (true) {
+            Buffer b;
+            long target;
+            FileChannel next = null;
+            synchronized (this) {
+                while (pendings.size() == 0 && sealed == null && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        //Only closing stops the flusher
+                    }
+                }
+                if (sealed != null) {
+                    b = sealed;
+                    target = sealedTarget;
+                    next = nextChannel;
+                } else if (pendings.size() == 0) {
+                    return;
+                } else {
+                    b = pendings;
+                    pendings = spare;
+                    spare = b;
+                    target = appended;
+                }
+            }
+            try {
+                ByteBuffer buf = b.toByteBuffer();
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+                channel.force(false);
+                b.reset();
+                if (next != null) {
+                    channel.close();
+                    channel = next;
+                }
+                synchronized (this) {
+                    durable = target;
+                    if (next != null) {
+                        sealed = null;
+                        nextChannel = null;
+                    }
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                JobDispatcher.getLogger().error("Unable to write the journal", e);
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start a new segment. The records appended before the call are written in the previous segments,
+     * the records appended after the call are written in the new segment.
+     *
+     * @return the sequence number of the new segment
+     * @throws IOException if the segment cannot be created
+     */
+    private synchronized long rotate() throws IOException {
+        boolean interrupted = false;
+        while (sealed != null && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("Journal closed");
+        }
+        nextChannel = new FileOutputStream(segment(seq + 1)).getChannel();
+        seq++;
+        sealed = pendings;
+        sealedTarget = appended;
+        pendings = new Buffer();
+        notifyAll();
+        return seq;
+    }
+
+    /**
+     * Write a snapshot of the jobs then delete the segments and the snapshots it replaces.
+     * The jobs may be modified during the snapshot, their values must only be modified while
+     * holding their lock.
+     *
+     * @param jobs  the jobs of the dispatcher
+     * @param spill the file that contains the spilled key/value pairs. May be {@code null}
+     * @return the number of jobs in the snapshot
+     * @throws IOException if an error occurred while writing the snapshot
+     */
+    public int snapshot(JobStore jobs, SpillFile spill) throws IOException {
+        synchronized (snapshotLock) {
+            long from;
+            int[] ids;
+            rotation.writeLock().lock();
+            try {
+                from = rotate();
+                ids = jobs.ids();
+            } finally {
+                rotation.writeLock().unlock();
+            }
+            Arrays.sort(ids);
+            File tmp = new File(dir, SNAPSHOT_PREFIX + from + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            int nb = 0;
+            try {
+                CheckedOutputStream cos = new CheckedOutputStream(new BufferedOutputStream(fos, 1 << 16), new CRC32());
+                DataOutputStream out = new DataOutputStream(cos);
+                out.writeInt(SNAPSHOT_MAGIC);
+                for (int id : ids) {
+                    Job j = jobs.get(id);
+                    if (j != null && spill != null && j.getSpillOffset() >= 0) {
+                        j = spill.load(j);
+                    }
+                    if (j != null) {
+                        writeJob(out, j);
+                        nb++;
+                    }
+                }
+                out.writeInt(-1);
+                int[] ds;
+                synchronized (delivered) {
+                    ds = delivered.toArray();
+                }
+                writeIds(out, ds);
+                out.writeInt(nb);
+                out.flush();
+                out.writeInt((int) cos.getChecksum().getValue());
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            File f = snapshot(from);
+            if (!tmp.renameTo(f)) {
+                tmp.delete();
+                throw new IOException("Unable to rename '" + tmp + "' to '" + f + "'");
+            }
+            for (File old : files(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+                if (sequence(old, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX) < from) {
+                    old.delete();
+                }
+            }
+            for (File old : files(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+                if (sequence(old, SEGMENT_PREFIX, SEGMENT_SUFFIX) < from) {
+                    old.delete();
+                }
+            }
+            return nb;
+        }
+    }
+
+    /**
+     * Write a job into a snapshot.
+     * The job is read under its lock to get a consistent copy of its values.
+     *
+     * @param out the stream to write to
+     * @param j   the job
+     * @throws IOException if an error occurred while writing
+     */
+    private static void writeJob(DataOutputStream out, Job j) throws IOException {
+        synchronized (j) {
+            out.writeInt(j.getId());
+            out.writeByte(j.getState());
+            out.writeInt(j.getPriority());
+            out.writeInt(j.getAttempts());
+            out.writeLong(j.getEnqueuedTime());
+            out.writeLong(j.getDequeuedTime());
+            out.writeLong(j.getCommitedTime());
+            writeValues(out, j);
+        }
+    }
+
+    /**
+     * Load the jobs of a snapshot.
+     *
+     * @param f         the snapshot
+     * @param jobs      the map to store the jobs in
+     * @param delivered the set to store the identifier of the delivered jobs in
+     * @throws IOException if an error occurred while reading the snapshot or if the snapshot is corrupted
+     */
+    private static void loadSnapshot(File f, Map<Integer, Job> jobs, TIntHashSet delivered) throws IOException {
+        CheckedInputStream cis = new CheckedInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16), new CRC32());
+        DataInputStream in = new DataInputStream(cis);
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("'" + f + "' is not a snapshot");
+            }
+            int id = in.readInt();
+            while (id != -1) {
+                Job j = new Job(id);
+                j.setState(in.readByte());
+                j.setPriority(in.readInt());
+                j.setAttempts(in.readInt());
+                j.setEnqueuedTime(in.readLong());
+                j.setDequeuedTime(in.readLong());
+                j.setCommitedTime(in.readLong());
+                readValues(in, j);
+                jobs.put(id, j);
+                id = in.readInt();
+            }
+            readIds(in, delivered);
+            int nb = in.readInt();
+            int sum = (int) cis.getChecksum().getValue();
+            if (nb != jobs.size() || in.readInt() != sum) {
+                throw new IOException("Corrupted snapshot '" + f + "'");
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write a set of identifiers as their number followed by the identifiers.
+     *
+     * @param out the stream to write to
+     * @param ids the identifiers to write
+     * @throws IOException if an error occurred while writing
+     */
+    private static void writeIds(DataOutputStream out, int[] ids) throws IOException {
+        out.writeInt(ids.length);
+        for (int id : ids) {
+            out.writeInt(id);
+        }
+    }
+
+    /**
+     * Read a set of identifiers written by {@link #writeIds(DataOutputStream, int[])}.
+     *
+     * @param in  the stream to read from
+     * @param ids the set to add the identifiers to
+     * @throws IOException if an error occurred while reading
+     */
+    private static void readIds(DataInputStream in, TIntHashSet ids) throws IOException {
+        int nb = in.readInt();
+        if (nb < 0) {
+            throw new IOException("Corrupted set of identifiers");
+        }
+        for (int i = 0; i < nb; i++) {
+            ids.add(in.readInt());
+        }
+    }
+
+    /**
+     * Write the pending records and close the journal.
+     *
+     * @throws IOException if an error occurred while writing the pending records
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Write the key/value pairs of a job.
+     *
+     * @param out the stream to write to
+     * @param j   the job
+     * @throws IOException if an error occurred while writing
+     */
+    static void writeValues(DataOutputStream out, Job j) throws IOException {
+        out.writeInt(j.getKeys().size());
+        for (String k : j.getKeys()) {
+            writeString(out, k);
+            writeString(out, j.get(k));
+        }
+    }
+
+    /**
+     * Read key/value pairs written by {@link #writeValues(DataOutputStream, Job)}.
+     *
+     * @param in the stream to read from
+     * @param j  the job to put the pairs into
+     * @throws IOException if an error occurred while reading
+     */
+    static void readValues(DataInputStream in, Job j) throws IOException {
+        int nb = in.readInt();
+        for (int i = 0; i < nb; i++) {
+            String k = readString(in);
+            j.put(k, readString(in));
+        }
+    }
+
+    /**
+     * Write a string that may be longer than the limit of {@link DataOutputStream#writeUTF(String)}.
+     *
+     * @param out the stream to write to
+     * @param s   the string. May be {@code null}
+     * @throws IOException if an error occurred while writing
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] b = s.getBytes("UTF-8");
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    /**
+     * A buffer that exposes its content without copying it.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(64 * 1024);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * Framed records being built.
+     */
+    private static class Record {
+
+        private final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+
+        private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        private final DataOutputStream out = new DataOutputStream(payload);
+
+        private final CRC32 crc = new CRC32();
+
+        /**
+         * Start a record.
+         *
+         * @param type the type of the record
+         * @param id   the identifier of the job
+         * @throws IOException if an error occurred while writing
+         */
+        void begin(byte type, int id) throws IOException {
+            payload.reset();
+            out.writeByte(type);
+            out.writeInt(id);
+        }
+
+        /**
+         * Frame the current record.
+         *
+         * @throws IOException              if an error occurred while writing
+         * @throws IllegalArgumentException if the record is too large to be replayed
+         */
+        void end() throws IOException {
+            out.flush();
+            if (payload.size() > MAX_RECORD_SIZE) {
+                throw new IllegalArgumentException("Record of " + payload.size() + " bytes exceeds the limit of " + MAX_RECORD_SIZE + " bytes");
+            }
+            byte[] p = payload.toByteArray();
+            crc.reset();
+            crc.update(p);
+            DataOutputStream f = new DataOutputStream(frames);
+            f.writeInt(p.length);
+            f.writeInt((int) crc.getValue());
+            f.write(p);
+            f.flush();
+        }
+
+        int size() {
+            return frames.size();
+        }
+
+        void writeTo(ByteArrayOutputStream dst) {
+            try {
+                frames.writeTo(dst);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A dictionary of the keys used by the jobs.
+ * Each key is associated to an index, so a job stores its values in an array indexed by key
+ * instead of a map. The jobs of a campaign share a few keys, so the dictionary is bounded: once full,
+ * the jobs store the values of the other keys in a map.
+ * <p/>
+ * Each dispatcher has its own dictionary. The jobs outside of a dispatcher use a shared one.
+ * The keys are never removed. The dictionary is thread-safe, a lookup does not lock.
+ *
+ * @author Fabien Hermenier
+ */
+final class KeyDictionary {
+
+    /**
+     * The default maximum number of keys.
+     */
+    public static final int DEFAULT_CAPACITY = 32;
+
+    /**
+     * The dictionary of the jobs that are not in a dispatcher.
+     */
+    static final KeyDictionary SHARED = new KeyDictionary(DEFAULT_CAPACITY);
+
+    private final ConcurrentMap<String, Integer> indexes;
+
+    /**
+     * The keys, by index.
+     */
+    private final String[] keys;
+
+    /**
+     * The number of keys. Guarded by the dictionary.
+     */
+    private int size;
+
+    /**
+     * Make a new empty dictionary.
+     *
+     * @param capacity the maximum number of keys
+     */
+    KeyDictionary(int capacity) {
+        this.indexes = new ConcurrentHashMap<String, Integer>();
+        this.keys = new String[capacity];
+    }
+
+    /**
+     * Get the index of a key.
+     *
+     * @param k the key
+     * @return the index or {@code -1} if the key is not in the dictionary
+     */
+    int lookup(String k) {
+        Integer i = indexes.get(k);
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * Get the index of a key, adding the key to the dictionary if needed.
+     *
+     * @param k the key
+     * @return the index of the key. {@code -1} if the key is not in the dictionary and the dictionary is full
+     */
+    int intern(String k) {
+        Integer i = indexes.get(k);
+        if (i != null) {
+            return i;
+        }
+        synchronized (this) {
+            i = indexes.get(k);
+            if (i == null) {
+                if (size == keys.length) {
+                    return -1;
+                }
+                i = size++;
+                //The key must be visible before its index
+                keys[i] = k;
+                indexes.put(k, i);
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Get the key at a given index.
+     *
+     * @param i the index
+     * @return the key
+     */
+    String key(int i) {
+        return keys[i];
+    }
+}
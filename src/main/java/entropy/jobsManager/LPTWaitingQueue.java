@@ -0,0 +1,209 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A waiting queue that dequeues the jobs having the longest estimated duration first
+ * (Longest Processing Time first). This reduces the total duration of a campaign on
+ * a fixed number of workers as the longest jobs do not start last.
+ * <p/>
+ * The waiting jobs are grouped by class, in FIFO order. The class of a job and its estimated
+ * duration are provided by a {@link DurationEstimator}. When jobs are dequeued, the class having
+ * the longest estimated duration is selected using the current estimates, so the estimates
+ * refined by the commits apply to the jobs already waiting. The classes without history are
+ * selected first, to learn their duration as soon as possible.
+ * <p/>
+ * Adding a job is made in constant time. Dequeuing costs O(k) where k is the number of classes
+ * having waiting jobs, as each of them is estimated once per call. A class is forgotten once it has
+ * no waiting job anymore.
+ *
+ * @author Fabien Hermenier
+ * @see JobDispatcher#setWaitingQueue(WaitingQueue)
+ */
+public class LPTWaitingQueue implements WaitingQueue {
+
+    private final DurationEstimator estimator;
+
+    /**
+     * The waiting jobs of each class having waiting jobs, in the order the classes appeared.
+     */
+    private final Map<String, Ring> queues;
+
+    private int size;
+
+    /**
+     * Make a new queue.
+     *
+     * @param k the key that indicates the class of a job
+     */
+    public LPTWaitingQueue(String k) {
+        this(new DurationEstimator(k));
+    }
+
+    /**
+     * Make a new queue.
+     *
+     * @param e the estimator to use
+     */
+    public LPTWaitingQueue(DurationEstimator e) {
+        this.estimator = e;
+        this.queues = new LinkedHashMap<String, Ring>();
+    }
+
+    /**
+     * Get the estimator used to order the jobs.
+     * The dispatcher feeds it with the commited jobs.
+     *
+     * @return the estimator
+     */
+    public DurationEstimator getEstimator() {
+        return estimator;
+    }
+
+    @Override
+    public synchronized void offer(Job j) {
+        String c = estimator.classOf(j);
+        Ring q = queues.get(c);
+        if (q == null) {
+            q = new Ring();
+            queues.put(c, q);
+        }
+        q.offer(j.getId());
+        size++;
+    }
+
+    @Override
+    public synchronized int drainTo(int[] dst, int max) {
+        if (size == 0 || max <= 0) {
+            return 0;
+        }
+        //Estimate each class once
+        String[] cs = new String[queues.size()];
+        long[] ds = new long[cs.length];
+        int k = 0;
+        for (String c : queues.keySet()) {
+            long d = estimator.estimate(c);
+            cs[k] = c;
+            ds[k++] = d == DurationEstimator.UNKNOWN ? Long.MAX_VALUE : d;
+        }
+        int n = 0;
+        while (n < max && size > 0) {
+            int longest = -1;
+            for (int i = 0; i < k; i++) {
+                if (cs[i] != null && (longest < 0 || ds[i] > ds[longest])) {
+                    longest = i;
+                }
+            }
+            Ring q = queues.get(cs[longest]);
+            int nb = q.drainTo(dst, n, max - n);
+            if (q.isEmpty()) {
+                queues.remove(cs[longest]);
+                cs[longest] = null;
+            }
+            size -= nb;
+            n += nb;
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The identifiers are grouped by class.
+     */
+    @Override
+    public synchronized int[] toNativeArray() {
+        int[] res = new int[size];
+        int n = 0;
+        for (Ring q : queues.values()) {
+            n += q.copyTo(res, n);
+        }
+        return res;
+    }
+
+    /**
+     * A growable FIFO ring buffer of identifiers. Not thread-safe.
+     */
+    private static class Ring {
+
+        private int[] ids = new int[8];
+
+        private int head;
+
+        private int size;
+
+        void offer(int id) {
+            if (size == ids.length) {
+                int[] bigger = new int[ids.length << 1];
+                copyTo(bigger, 0);
+                ids = bigger;
+                head = 0;
+            }
+            ids[(head + size) & (ids.length - 1)] = id;
+            size++;
+        }
+
+        /**
+         * Remove the oldest identifiers.
+         *
+         * @param dst the array to store the identifiers in
+         * @param off the position of the first identifier in {@code dst}
+         * @param max the maximum number of identifiers to remove
+         * @return the number of identifiers removed
+         */
+        int drainTo(int[] dst, int off, int max) {
+            int nb = Math.min(max, size);
+            int first = Math.min(nb, ids.length - head);
+            System.arraycopy(ids, head, dst, off, first);
+            System.arraycopy(ids, 0, dst, off + first, nb - first);
+            head = (head + nb) & (ids.length - 1);
+            size -= nb;
+            return nb;
+        }
+
+        /**
+         * Copy the identifiers, from the oldest.
+         *
+         * @param dst the array to store the identifiers in
+         * @param off the position of the first identifier in {@code dst}
+         * @return the number of identifiers copied
+         */
+        int copyTo(int[] dst, int off) {
+            int first = Math.min(size, ids.length - head);
+            System.arraycopy(ids, head, dst, off, first);
+            System.arraycopy(ids, 0, dst, off + first, size - first);
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+}
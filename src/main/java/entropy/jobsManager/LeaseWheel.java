@@ -0,0 +1,113 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import gnu.trove.TIntArrayList;
+
+/**
+ * A hashed timer wheel to track the deadline of the leased jobs.
+ * The wheel is divided into buckets that cover one tick each. A job is
+ * put into the bucket of its deadline and returned when the wheel passes
+ * over this bucket, so scheduling and expiring a job are made in constant time.
+ * <p/>
+ * A bucket contains the jobs of every revolution of the wheel, so an expired job
+ * may have a deadline in the future. In that case, it must be scheduled again.
+ * Scheduling is thread-safe, advancing must be made by a single thread.
+ *
+ * @author Fabien Hermenier
+ */
+class LeaseWheel {
+
+    /**
+     * The number of buckets.
+     */
+    public static final int NB_BUCKETS = 512;
+
+    /**
+     * The duration of a tick in milliseconds.
+     */
+    private final long tick;
+
+    private final TIntArrayList[] buckets;
+
+    /**
+     * The last tick the wheel passed over.
+     */
+    private volatile long current;
+
+    /**
+     * Make a new wheel.
+     *
+     * @param tick the duration of a tick in milliseconds
+     * @param now  the current time
+     */
+    public LeaseWheel(long tick, long now) {
+        this.tick = tick;
+        this.current = now / tick;
+        this.buckets = new TIntArrayList[NB_BUCKETS];
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            buckets[i] = new TIntArrayList();
+        }
+    }
+
+    /**
+     * Get the duration of a tick.
+     *
+     * @return a duration in milliseconds
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Schedule a job.
+     * A deadline that was already passed over is moved to the next tick.
+     *
+     * @param id       the identifier of the job
+     * @param deadline the moment the lease of the job expires
+     */
+    public void schedule(int id, long deadline) {
+        long t = Math.max(deadline / tick, current + 1);
+        TIntArrayList b = buckets[(int) (t % NB_BUCKETS)];
+        synchronized (b) {
+            b.add(id);
+        }
+    }
+
+    /**
+     * Move the wheel up to the current time.
+     *
+     * @param now     the current time
+     * @param expired the list to store the jobs of the buckets the wheel passed over
+     */
+    public void advance(long now, TIntArrayList expired) {
+        long target = now / tick;
+        if (target - current > NB_BUCKETS) {
+            //Every bucket will be visited anyway
+            current = target - NB_BUCKETS;
+        }
+        while (current < target) {
+            TIntArrayList b = buckets[(int) ((current + 1) % NB_BUCKETS)];
+            synchronized (b) {
+                expired.add(b.toNativeArray());
+                b.clear();
+            }
+            current++;
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A job store that keeps the jobs in memory-mapped files, outside of the heap.
+ * <p/>
+ * The index file contains a fixed-size slot per identifier, with the state, the priority,
+ * the number of attempts and the timestamps of the job, and the location of its payload.
+ * The payloads, ie. the key/value pairs, are appended to the data file. Both files are
+ * mapped by chunks, when needed. So the heap used by the store does not depend on the number of jobs.
+ * <p/>
+ * The identifiers must be positive and should be dense as the index is addressed by identifier.
+ * The slots are protected by striped locks. Modifying the values of a job appends a new payload,
+ * the previous one is not reclaimed. So with {@link JobDispatcher.Retention#TOMBSTONE}, the slot
+ * only records the size of the evicted pairs and the space of their payload is not freed.
+ * The files are a scratch storage: they are truncated at instantiation. Use a journal to recover
+ * the jobs after a crash.
+ *
+ * @author Fabien Hermenier
+ * @see JobDispatcher#setJournal(File)
+ */
+public class MappedJobStore implements JobStore {
+
+    /**
+     * The size of a slot in the index.
+     */
+    private static final int SLOT_SIZE = 56;
+
+    private static final int STATE = 0;
+
+    private static final int PRIORITY = 4;
+
+    private static final int ATTEMPTS = 8;
+
+    private static final int PAYLOAD_LENGTH = 12;
+
+    private static final int ENQUEUED = 16;
+
+    private static final int DEQUEUED = 24;
+
+    private static final int COMMITED = 32;
+
+    private static final int PAYLOAD_OFFSET = 40;
+
+    private static final int EVICTED = 48;
+
+    /**
+     * The number of slots per chunk of the index, as a power of 2.
+     */
+    private static final int SLOTS_SHIFT = 16;
+
+    /**
+     * The size of a chunk of the data file. A payload cannot be larger.
+     */
+    public static final int DATA_CHUNK_SIZE = 1 << 26;
+
+    private static final int NB_LOCKS = 64;
+
+    private final RandomAccessFile indexFile;
+
+    private final RandomAccessFile dataFile;
+
+    /**
+     * The mapped chunks of the index. The array is never modified once published:
+     * a new chunk is published with a new array.
+     */
+    private volatile MappedByteBuffer[] indexChunks;
+
+    /**
+     * The mapped chunks of the data file, published like {@link #indexChunks}.
+     */
+    private volatile MappedByteBuffer[] dataChunks;
+
+    /**
+     * The end of the last payload.
+     */
+    private long dataEnd = 0;
+
+    private final Object[] locks;
+
+    private final AtomicInteger size;
+
+    /**
+     * The highest identifier ever stored.
+     */
+    private final AtomicInteger maxId;
+
+    /**
+     * The dictionary of the keys of the decoded jobs, the one of the last job put.
+     */
+    private volatile KeyDictionary keys = KeyDictionary.SHARED;
+
+    /**
+     * Make a new store.
+     *
+     * @param dir the directory of the files. Created if needed
+     * @throws IOException if an error occurred while creating the files
+     */
+    public MappedJobStore(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create the directory '" + dir + "'");
+        }
+        indexFile = new RandomAccessFile(new File(dir, "index.map"), "rw");
+        indexFile.setLength(0);
+        dataFile = new RandomAccessFile(new File(dir, "data.map"), "rw");
+        dataFile.setLength(0);
+        indexChunks = new MappedByteBuffer[0];
+        dataChunks = new MappedByteBuffer[0];
+        locks = new Object[NB_LOCKS];
+        for (int i = 0; i < NB_LOCKS; i++) {
+            locks[i] = new Object();
+        }
+        size = new AtomicInteger();
+        maxId = new AtomicInteger(-1);
+    }
+
+    private Object lock(int id) {
+        return locks[id & (NB_LOCKS - 1)];
+    }
+
+    /**
+     * Get the chunk of the index that contains the slot of a job.
+     *
+     * @param id the identifier of the job
+     * @return the chunk
+     */
+    private MappedByteBuffer indexChunk(int id) {
+        int c = id >>> SLOTS_SHIFT;
+        MappedByteBuffer[] chunks = indexChunks;
+        if (c < chunks.length && chunks[c] != null) {
+            return chunks[c];
+        }
+        synchronized (this) {
+            chunks = indexChunks;
+            if (c >= chunks.length || chunks[c] == null) {
+                long len = (long) SLOT_SIZE << SLOTS_SHIFT;
+                chunks = with(chunks, c, map(indexFile, c * len, len));
+                indexChunks = chunks;
+            }
+            return chunks[c];
+        }
+    }
+
+    /**
+     * Get the chunk of the data file that contains a position.
+     *
+     * @param pos the position
+     * @return the chunk
+     */
+    private MappedByteBuffer dataChunk(long pos) {
+        int c = (int) (pos / DATA_CHUNK_SIZE);
+        MappedByteBuffer[] chunks = dataChunks;
+        if (c < chunks.length && chunks[c] != null) {
+            return chunks[c];
+        }
+        synchronized (this) {
+            chunks = dataChunks;
+            if (c >= chunks.length || chunks[c] == null) {
+                chunks = with(chunks, c, map(dataFile, (long) c * DATA_CHUNK_SIZE, DATA_CHUNK_SIZE));
+                dataChunks = chunks;
+            }
+            return chunks[c];
+        }
+    }
+
+    /**
+     * Make a copy of an array of chunks that contains a new chunk.
+     * The copy is filled before being published, so a reader never sees a chunk that is not mapped.
+     *
+     * @param chunks the current chunks
+     * @param c      the index of the new chunk
+     * @param b      the new chunk
+     * @return the new array
+     */
+    private static MappedByteBuffer[] with(MappedByteBuffer[] chunks, int c, MappedByteBuffer b) {
+        MappedByteBuffer[] copy = new MappedByteBuffer[Math.max(chunks.length, c + 1)];
+        System.arraycopy(chunks, 0, copy, 0, chunks.length);
+        copy[c] = b;
+        return copy;
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile f, long pos, long len) {
+        try {
+            return f.getChannel().map(FileChannel.MapMode.READ_WRITE, pos, len);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to map the store", e);
+        }
+    }
+
+    /**
+     * Reserve space for a payload in the data file.
+     * A payload never spans two chunks.
+     *
+     * @param len the size of the payload
+     * @return the position of the payload
+     */
+    private synchronized long allocate(int len) {
+        if (dataEnd % DATA_CHUNK_SIZE + len > DATA_CHUNK_SIZE) {
+            dataEnd = (dataEnd / DATA_CHUNK_SIZE + 1) * DATA_CHUNK_SIZE;
+        }
+        long pos = dataEnd;
+        dataEnd += len;
+        return pos;
+    }
+
+    /**
+     * Serialize the key/value pairs of a job.
+     *
+     * @param j the job
+     * @return the payload of the job
+     */
+    private static byte[] encode(Job j) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bout);
+            Journal.writeValues(out, j);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (bout.size() > DATA_CHUNK_SIZE) {
+            throw new IllegalArgumentException("The values of job " + j.getId() + " are too large");
+        }
+        return bout.toByteArray();
+    }
+
+    /**
+     * Write a payload into the data file.
+     * The payload is published once its position is written in the slot of its job.
+     *
+     * @param p the payload
+     * @return the position of the payload
+     */
+    private long write(byte[] p) {
+        long pos = allocate(p.length);
+        ByteBuffer b = dataChunk(pos).duplicate();
+        b.position((int) (pos % DATA_CHUNK_SIZE));
+        b.put(p);
+        return pos;
+    }
+
+    private static int slot(int id) {
+        return (id & ((1 << SLOTS_SHIFT) - 1)) * SLOT_SIZE;
+    }
+
+    @Override
+    public void put(Job j) {
+        int id = j.getId();
+        if (id < 0) {
+            throw new IllegalArgumentException("Negative identifiers are not supported: " + id);
+        }
+        keys = j.getDictionary();
+        byte[] p = j.isEvicted() ? null : encode(j);
+        long pos = p == null ? 0 : write(p);
+        MappedByteBuffer b = indexChunk(id);
+        int off = slot(id);
+        boolean added;
+        synchronized (lock(id)) {
+            added = b.getInt(off + STATE) == Job.CREATED;
+            b.putInt(off + STATE, j.getState());
+            b.putInt(off + PRIORITY, j.getPriority());
+            writeTimes(b, off, j);
+            writePayload(b, off, j, p, pos);
+        }
+        if (added) {
+            size.incrementAndGet();
+        }
+        int m = maxId.get();
+        while (id > m && !maxId.compareAndSet(m, id)) {
+            m = maxId.get();
+        }
+    }
+
+    /**
+     * Write the number of attempts and the timestamps of a job into its slot.
+     *
+     * @param b   the chunk of the slot
+     * @param off the offset of the slot in the chunk
+     * @param j   the job
+     */
+    private static void writeTimes(MappedByteBuffer b, int off, Job j) {
+        b.putInt(off + ATTEMPTS, j.getAttempts());
+        b.putLong(off + ENQUEUED, j.getEnqueuedTime());
+        b.putLong(off + DEQUEUED, j.getDequeuedTime());
+        b.putLong(off + COMMITED, j.getCommitedTime());
+    }
+
+    /**
+     * Write the location of the payload of a job into its slot, or the size of its
+     * evicted key/value pairs.
+     *
+     * @param b   the chunk of the slot
+     * @param off the offset of the slot in the chunk
+     * @param j   the job
+     * @param p   the payload. {@code null} if the pairs were evicted
+     * @param pos the position of the payload
+     */
+    private static void writePayload(MappedByteBuffer b, int off, Job j, byte[] p, long pos) {
+        b.putLong(off + PAYLOAD_OFFSET, pos);
+        b.putInt(off + PAYLOAD_LENGTH, p == null ? 0 : p.length);
+        b.putInt(off + EVICTED, j.getEvictedSize());
+    }
+
+    @Override
+    public Job get(int id) {
+        if (id < 0 || id > maxId.get()) {
+            return null;
+        }
+        MappedByteBuffer b = indexChunk(id);
+        int off = slot(id);
+        Job j = new Job(id, keys);
+        long pos;
+        int len;
+        int evicted;
+        synchronized (lock(id)) {
+            int st = b.getInt(off + STATE);
+            if (st == Job.CREATED) {
+                return null;
+            }
+            j.setState(st);
+            j.setPriority(b.getInt(off + PRIORITY));
+            j.setAttempts(b.getInt(off + ATTEMPTS));
+            j.setEnqueuedTime(b.getLong(off + ENQUEUED));
+            j.setDequeuedTime(b.getLong(off + DEQUEUED));
+            j.setCommitedTime(b.getLong(off + COMMITED));
+            pos = b.getLong(off + PAYLOAD_OFFSET);
+            len = b.getInt(off + PAYLOAD_LENGTH);
+            evicted = b.getInt(off + EVICTED);
+        }
+        if (evicted >= 0) {
+            j.setEvictedSize(evicted);
+            return j;
+        }
+        byte[] p = new byte[len];
+        ByteBuffer d = dataChunk(pos).duplicate();
+        d.position((int) (pos % DATA_CHUNK_SIZE));
+        d.get(p);
+        try {
+            Journal.readValues(new DataInputStream(new ByteArrayInputStream(p)), j);
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupted payload for job " + id, e);
+        }
+        return j;
+    }
+
+    @Override
+    public int getState(int id) {
+        if (id < 0 || id > maxId.get()) {
+            return Job.CREATED;
+        }
+        MappedByteBuffer b = indexChunk(id);
+        synchronized (lock(id)) {
+            return b.getInt(slot(id) + STATE);
+        }
+    }
+
+    @Override
+    public boolean compareAndSetState(Job j, int expect, int update) {
+        int id = j.getId();
+        if (id < 0 || id > maxId.get()) {
+            return false;
+        }
+        MappedByteBuffer b = indexChunk(id);
+        int off = slot(id);
+        synchronized (lock(id)) {
+            if (b.getInt(off + STATE) != expect) {
+                return false;
+            }
+            b.putInt(off + STATE, update);
+        }
+        j.setState(update);
+        return true;
+    }
+
+    @Override
+    public void update(Job j, boolean values) {
+        int id = j.getId();
+        byte[] p = values && !j.isEvicted() ? encode(j) : null;
+        long pos = p == null ? 0 : write(p);
+        MappedByteBuffer b = indexChunk(id);
+        int off = slot(id);
+        synchronized (lock(id)) {
+            writeTimes(b, off, j);
+            if (values) {
+                writePayload(b, off, j, p, pos);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     * The identifiers are sorted.
+     */
+    @Override
+    public int[] ids() {
+        int[] res = new int[size.get()];
+        int n = 0;
+        int max = maxId.get();
+        for (int id = 0; id <= max; id++) {
+            if (getState(id) != Job.CREATED) {
+                if (n == res.length) {
+                    int[] bigger = new int[res.length * 2 + 1];
+                    System.arraycopy(res, 0, bigger, 0, n);
+                    res = bigger;
+                }
+                res[n++] = id;
+            }
+        }
+        if (n == res.length) {
+            return res;
+        }
+        int[] copy = new int[n];
+        System.arraycopy(res, 0, copy, 0, n);
+        return copy;
+    }
+
+    /**
+     * Close the files. The mapped chunks are released once they are garbage collected.
+     *
+     * @throws IOException if an error occurred while closing the files
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        indexChunks = new MappedByteBuffer[0];
+        dataChunks = new MappedByteBuffer[0];
+        indexFile.close();
+        dataFile.close();
+    }
+}
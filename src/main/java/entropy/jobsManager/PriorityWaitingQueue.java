@@ -0,0 +1,168 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A waiting queue that dequeues the jobs having the highest priority first.
+ * Jobs having the same priority are dequeued in their insertion order.
+ * <p/>
+ * The queue is a binary heap over primitive arrays. Each entry is a key that combines
+ * the priority of the job with its insertion rank, and the identifier of the job.
+ * Adding or removing a job is made in O(log n), under the lock of the queue.
+ *
+ * @author Fabien Hermenier
+ * @see Job#setPriority(int)
+ */
+public class PriorityWaitingQueue implements WaitingQueue {
+
+    /**
+     * The default initial capacity.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * The keys of the entries, ordered as a max-heap.
+     */
+    private long[] keys;
+
+    /**
+     * The identifier of the job of each entry.
+     */
+    private int[] ids;
+
+    private int size;
+
+    /**
+     * The insertion rank of the next job.
+     */
+    private int rank;
+
+    /**
+     * Make a new queue with a default initial capacity.
+     */
+    public PriorityWaitingQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Make a new queue.
+     *
+     * @param capacity the initial capacity
+     */
+    public PriorityWaitingQueue(int capacity) {
+        keys = new long[Math.max(1, capacity)];
+        ids = new int[keys.length];
+    }
+
+    /**
+     * Make the key of a job.
+     * The priority is in the upper 32 bits so it prevails. The lower 32 bits
+     * are decreasing with the insertion rank to favor the oldest jobs.
+     *
+     * @param priority the priority of the job
+     * @return the key
+     */
+    private long makeKey(int priority) {
+        return ((long) priority << 32) | (0xFFFFFFFFL - (rank++ & 0xFFFFFFFFL));
+    }
+
+    @Override
+    public synchronized void offer(Job j) {
+        if (size == keys.length) {
+            long[] biggerKeys = new long[keys.length << 1];
+            int[] biggerIds = new int[keys.length << 1];
+            System.arraycopy(keys, 0, biggerKeys, 0, size);
+            System.arraycopy(ids, 0, biggerIds, 0, size);
+            keys = biggerKeys;
+            ids = biggerIds;
+        }
+        long k = makeKey(j.getPriority());
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] >= k) {
+                break;
+            }
+            keys[i] = keys[parent];
+            ids[i] = ids[parent];
+            i = parent;
+        }
+        keys[i] = k;
+        ids[i] = j.getId();
+    }
+
+    @Override
+    public synchronized int drainTo(int[] dst, int max) {
+        int n = 0;
+        while (n < max && size > 0) {
+            dst[n++] = ids[0];
+            size--;
+            if (size > 0) {
+                siftDown(keys[size], ids[size]);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Put an entry at the root of the heap and move it down to its position.
+     *
+     * @param k  the key of the entry
+     * @param id the identifier of the entry
+     */
+    private void siftDown(long k, int id) {
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < size && keys[right] > keys[child]) {
+                child = right;
+            }
+            if (k >= keys[child]) {
+                break;
+            }
+            keys[i] = keys[child];
+            ids[i] = ids[child];
+            i = child;
+        }
+        keys[i] = k;
+        ids[i] = id;
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The identifiers are in the order of the heap, not in the dequeue order.
+     */
+    @Override
+    public synchronized int[] toNativeArray() {
+        int[] res = new int[size];
+        System.arraycopy(ids, 0, res, 0, size);
+        return res;
+    }
+}
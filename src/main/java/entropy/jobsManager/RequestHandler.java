@@ -17,15 +17,23 @@ package entropy.jobsManager;/*
  *      along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 
 /**
  * The handler to communicate with all the Job Handler.
@@ -44,18 +52,65 @@ import java.util.Map;
  * </tr>
  * <tr>
  * <td><b>GET /?dequeue</b></td>
- * <td>Dequeue the first waiting job</td>
+ * <td>Dequeue the first waiting job. With the param <b>w=ms</b>, the request waits up to
+ * <b>ms</b> milliseconds for a job to be enqueued if there is no waiting job</td>
+ * </tr>
+ * <tr>
+ * <td><b>GET /?a=dequeueBatch&n=N</b></td>
+ * <td>Dequeue at most N waiting jobs. The jobs are sent in one message. The param
+ * <b>w</b> is supported</td>
+ * </tr>
+ * <tr>
+ * <td><b>GET /?a=renew&j=id&t=attempt</b></td>
+ * <td>Renew the lease of the running job ID, dequeued at its attempt number <b>attempt</b></td>
+ * </tr>
+ * <tr>
+ * <td><b>GET /?a=fail&j=id&t=attempt</b></td>
+ * <td>Report that the running job ID, dequeued at its attempt number <b>attempt</b>, cannot be computed</td>
  * </tr>
  * <tr>
  * <td><b>POST /?commit=id/b></td>
  * <td>Commit the running job ID</td>
  * </tr>
+ * <tr>
+ * <td><b>POST /?a=commitBatch</b></td>
+ * <td>Commit the running jobs sent in one message. The response contains the number of commited jobs</td>
+ * </tr>
  * </table>
+ * <p/>
+ * The jobs are encoded in JSON by default. A handler may ask for the dequeued jobs in
+ * another encoding using the <b>Accept</b> header and send the commited jobs in another
+ * encoding using the <b>Content-Type</b> header. The supported encodings are
+ * {@link JSONJobCodec} and {@link BinaryJobCodec}.
+ * <p/>
+ * The dequeued jobs are compressed if the <b>Accept-Encoding</b> header of the request allows it,
+ * and the commited jobs may be compressed using gzip or deflate, as indicated by the
+ * <b>Content-Encoding</b> header of the request.
  *
  * @author Fabien Hermenier
  */
 public class RequestHandler extends AbstractHandler {
 
+    /**
+     * The maximum number of jobs that can be dequeued in one request.
+     */
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * The maximum duration in milliseconds a dequeue request can wait for a job.
+     */
+    public static final long MAX_WAIT = 300000;
+
+    /**
+     * The default maximum size in bytes of the content of a commit request.
+     */
+    public static final long DEFAULT_MAX_COMMIT_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * The request attribute that stores the moment a waiting dequeue request expires.
+     */
+    private static final String DEADLINE = "entropy.jobsManager.deadline";
+
     /**
      * The job dispatcher.
      */
@@ -66,6 +121,21 @@ public class RequestHandler extends AbstractHandler {
      */
     private HTMLReporter reporter;
 
+    /**
+     * The default codec.
+     */
+    private final JobCodec json = new JSONJobCodec();
+
+    /**
+     * The other supported codecs.
+     */
+    private final JobCodec[] codecs = {new BinaryJobCodec()};
+
+    /**
+     * The maximum size in bytes of the content of a commit request.
+     */
+    private volatile long maxCommitSize = DEFAULT_MAX_COMMIT_SIZE;
+
     /**
      * Make a new RequestHandler that will manage the job for a specific dispatcher.
      *
@@ -93,6 +163,26 @@ public class RequestHandler extends AbstractHandler {
         reporter = r;
     }
 
+    /**
+     * Set the maximum size of the content of a commit request.
+     * A larger request is rejected with a
+     * {@value javax.servlet.http.HttpServletResponse#SC_REQUEST_ENTITY_TOO_LARGE} status code.
+     *
+     * @param b a size in bytes
+     */
+    public void setMaxCommitSize(long b) {
+        this.maxCommitSize = b;
+    }
+
+    /**
+     * Get the maximum size of the content of a commit request.
+     *
+     * @return a size in bytes
+     */
+    public long getMaxCommitSize() {
+        return maxCommitSize;
+    }
+
     /**
      * Handle the request of the client and make the appropriate response.
      * The response is using a UTF-8 charset. If the URI of the request is unknown, then
@@ -120,7 +210,7 @@ public class RequestHandler extends AbstractHandler {
                     handled = true;
                 } else if (action != null) {
                     if (action.equals("status")) {
-                        response.getWriter().println(master.getWaitings().size() + "/" + master.getRunnings().size() + "/" + master.getComitted().size());
+                        response.getWriter().println(master.getNbWaitings() + "/" + master.getNbRunnings() + "/" + master.getNbCommited());
                         response.setStatus(HttpServletResponse.SC_OK);
                         handled = true;
                     } else if (action.equals("stop")) {
@@ -130,6 +220,15 @@ public class RequestHandler extends AbstractHandler {
                     } else if (action.equals("dequeue")) {
                         this.handleDequeueRequest(request, response);
                         handled = true;
+                    } else if (action.equals("dequeueBatch")) {
+                        this.handleBatchDequeueRequest(request, response);
+                        handled = true;
+                    } else if (action.equals("renew")) {
+                        this.handleRenewRequest(request, response);
+                        handled = true;
+                    } else if (action.equals("fail")) {
+                        this.handleFailRequest(request, response);
+                        handled = true;
                     } else {
                         response.getWriter().println("Unsupported action '" + action + "'");
                         response.setStatus(HttpServletResponse.SC_NOT_IMPLEMENTED);
@@ -147,9 +246,12 @@ public class RequestHandler extends AbstractHandler {
                 } else {
                     JobDispatcher.getLogger().debug("Unhandled request: " + method + " " + request.getRequestURI());
                 }
-            } else if (method.equals("POST") && action.equals("commit")) {
+            } else if (method.equals("POST") && "commit".equals(action)) {
                 this.handleCommitRequest(request, response);
                 handled = true;
+            } else if (method.equals("POST") && "commitBatch".equals(action)) {
+                this.handleBatchCommitRequest(request, response);
+                handled = true;
             }
 
 
@@ -165,6 +267,7 @@ public class RequestHandler extends AbstractHandler {
      * Handle a dequeue request.
      * If there is a job in the waiting queue, then it is sended to the handler and the response
      * status code is equals to {@value javax.servlet.http.HttpServletResponse#SC_OK}. Otherwise
+     * the request may wait for a job (see {@link #park(javax.servlet.http.HttpServletRequest)}), then
      * the status code of the response is {@value javax.servlet.http.HttpServletResponse#SC_GONE}.
      *
      * @param r        the complete request of the client
@@ -174,39 +277,418 @@ public class RequestHandler extends AbstractHandler {
     public void handleDequeueRequest(HttpServletRequest r, HttpServletResponse response) throws IOException {
         Job j = master.dequeue();
         if (j != null) {
+            send(r, response, Collections.singletonList(j), false);
+        } else if (!park(r)) {
+            JobDispatcher.getLogger().debug("No more waiting jobs");
+            response.setStatus(HttpServletResponse.SC_GONE);
+        }
+    }
+
+    /**
+     * Handle a batch dequeue request.
+     * The parameter <b>n</b> indicates the maximum number of jobs to dequeue. It is
+     * bounded by {@link #MAX_BATCH_SIZE}. If there is at least one job in the waiting queue,
+     * then the dequeued jobs are sent as a JSON array and the response status code is
+     * {@value javax.servlet.http.HttpServletResponse#SC_OK}. Otherwise the request may wait for
+     * a job (see {@link #park(javax.servlet.http.HttpServletRequest)}), then the status code of the
+     * response is {@value javax.servlet.http.HttpServletResponse#SC_GONE}.
+     *
+     * @param r        the complete request of the client
+     * @param response the response to send to the client.
+     * @throws java.io.IOException if an error occurred while writing the response to the client.
+     */
+    public void handleBatchDequeueRequest(HttpServletRequest r, HttpServletResponse response) throws IOException {
+        int n;
+        try {
+            n = Integer.parseInt(r.getParameter("n"));
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if (n <= 0) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        List<Job> js = master.dequeue(Math.min(n, MAX_BATCH_SIZE));
+        if (!js.isEmpty()) {
+            send(r, response, js, true);
+        } else if (!park(r)) {
+            JobDispatcher.getLogger().debug("No more waiting jobs");
+            response.setStatus(HttpServletResponse.SC_GONE);
+        }
+    }
+
+    /**
+     * Get the codec to encode the jobs sent to a client.
+     *
+     * @param r the request of the client
+     * @return the first supported codec mentioned in the <b>Accept</b> header, the JSON codec otherwise
+     */
+    private JobCodec accepted(HttpServletRequest r) {
+        String accept = r.getHeader("Accept");
+        if (accept != null) {
+            for (String t : accept.split(",")) {
+                JobCodec c = codec(t);
+                if (c != null) {
+                    return c;
+                }
+            }
+        }
+        return json;
+    }
+
+    /**
+     * Send dequeued jobs to a client.
+     * The jobs are encoded using the codec accepted by the client, and compressed if
+     * the client accepts it.
+     *
+     * @param r        the request of the client
+     * @param response the response
+     * @param js       the jobs to send
+     * @param batch    {@code true} to send a list of jobs, {@code false} to send a single job
+     * @throws IOException if an error occurred while writing the response
+     */
+    private void send(HttpServletRequest r, HttpServletResponse response, List<Job> js, boolean batch) throws IOException {
+        JobCodec c = accepted(r);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(c.getContentType());
+        response.addHeader("Vary", "Accept-Encoding");
+        String enc = Compression.accepted(r.getHeader("Accept-Encoding"));
+        if (enc == null) {
+            write(c, js, batch, response.getOutputStream());
+            return;
+        }
+        response.setHeader("Content-Encoding", enc);
+        Deflater d = Compression.deflater(enc);
+        try {
+            DeflaterOutputStream out = Compression.compress(response.getOutputStream(), enc, d);
+            write(c, js, batch, out);
+            out.finish();
+        } finally {
+            d.end();
+        }
+    }
+
+    /**
+     * Encode the jobs of a response.
+     *
+     * @param c     the codec
+     * @param js    the jobs
+     * @param batch {@code true} to encode a list of jobs, {@code false} to encode a single job
+     * @param out   the stream to write to
+     * @throws IOException if an error occurred while writing
+     */
+    private static void write(JobCodec c, List<Job> js, boolean batch, OutputStream out) throws IOException {
+        if (batch) {
+            c.write(js, out);
+        } else {
+            c.write(js.get(0), out);
+        }
+    }
+
+    /**
+     * Get the codec to decode the jobs sent by a client.
+     *
+     * @param r the request of the client
+     * @return the codec associated to the content type of the request, the JSON codec otherwise.
+     *         The JSON codec uses the charset of the request
+     */
+    private JobCodec provided(HttpServletRequest r) {
+        JobCodec c = codec(r.getContentType());
+        if (c == null || c == json) {
+            String cs = r.getCharacterEncoding();
+            return cs == null || cs.equalsIgnoreCase("UTF-8") ? json : new JSONJobCodec(cs);
+        }
+        return c;
+    }
+
+    /**
+     * Get the codec associated to a content type.
+     *
+     * @param type the content type, may have parameters
+     * @return the codec or {@code null} if the content type is not supported
+     */
+    private JobCodec codec(String type) {
+        if (type != null) {
+            int idx = type.indexOf(';');
+            String t = (idx < 0 ? type : type.substring(0, idx)).trim();
+            if (t.equalsIgnoreCase(json.getContentType())) {
+                return json;
+            }
+            for (JobCodec c : codecs) {
+                if (t.equalsIgnoreCase(c.getContentType())) {
+                    return c;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Suspend a dequeue request until a job is enqueued or the request expires.
+     * The parameter <b>w</b> indicates the maximum duration of the wait in milliseconds. It is
+     * bounded by {@link #MAX_WAIT}. The request is suspended using a continuation so no thread is
+     * held during the wait. Once resumed, the request is handled again and may be suspended
+     * again for the remaining duration if another request took the job.
+     *
+     * @param r the request
+     * @return {@code true} if the request was suspended, {@code false} if it must be answered now
+     */
+    private boolean park(HttpServletRequest r) {
+        String w = r.getParameter("w");
+        if (w == null) {
+            return false;
+        }
+        Continuation c = ContinuationSupport.getContinuation(r);
+        if (c.isExpired()) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Long deadline = (Long) r.getAttribute(DEADLINE);
+        if (deadline == null) {
+            try {
+                deadline = now + Math.min(Long.parseLong(w), MAX_WAIT);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            r.setAttribute(DEADLINE, deadline);
+        }
+        if (deadline <= now) {
+            return false;
+        }
+        c.setTimeout(deadline - now);
+        return master.park(c);
+    }
+
+    /**
+     * Handle a renew request.
+     * The parameter <b>t</b> is the number of attempts of the job when it was dequeued.
+     * If the job is still running for this attempt, its lease is renewed and the response status code is
+     * {@value javax.servlet.http.HttpServletResponse#SC_OK}. Otherwise, the job is not assigned
+     * to the handler anymore and the status code of the response is
+     * {@value javax.servlet.http.HttpServletResponse#SC_GONE}.
+     *
+     * @param r        the complete request of the client
+     * @param response the response to send to the client.
+     */
+    public void handleRenewRequest(HttpServletRequest r, HttpServletResponse response) {
+        int id;
+        int attempt;
+        try {
+            id = Integer.parseInt(r.getParameter("j"));
+            attempt = Integer.parseInt(r.getParameter("t"));
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if (master.renew(id, attempt)) {
+            response.setStatus(HttpServletResponse.SC_OK);
+        } else {
+            response.setStatus(HttpServletResponse.SC_GONE);
+        }
+    }
+
+    /**
+     * Handle a failure report, sent when a handler is unable to compute a job.
+     * The parameter <b>t</b> is the number of attempts of the job when it was dequeued.
+     * If the job is still running for this attempt, it is requeued or failed and the response status code is
+     * {@value javax.servlet.http.HttpServletResponse#SC_OK}. Otherwise, the job is not assigned
+     * to the handler anymore and the status code of the response is
+     * {@value javax.servlet.http.HttpServletResponse#SC_GONE}.
+     *
+     * @param r        the complete request of the client
+     * @param response the response to send to the client.
+     * @see JobDispatcher#fail(int, int)
+     */
+    public void handleFailRequest(HttpServletRequest r, HttpServletResponse response) {
+        int id;
+        int attempt;
+        try {
+            id = Integer.parseInt(r.getParameter("j"));
+            attempt = Integer.parseInt(r.getParameter("t"));
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if (master.fail(id, attempt)) {
             response.setStatus(HttpServletResponse.SC_OK);
-            response.getWriter().print(j.toJSON());
-            response.setContentType("text/json");
         } else {
-            JobDispatcher.getLogger().debug("No more waiting jobs");
             response.setStatus(HttpServletResponse.SC_GONE);
         }
     }
 
     /**
      * Handle a commit request.
-     * The request must be using the POST method.
+     * The request must be using the POST method and its content is a job encoded
+     * according to the content type of the request. The job is decoded while the content is read.
+     * The response status code is {@value javax.servlet.http.HttpServletResponse#SC_REQUEST_ENTITY_TOO_LARGE}
+     * if the content exceeds {@link #getMaxCommitSize()} or the values of the job are too large to be journaled,
+     * {@value javax.servlet.http.HttpServletResponse#SC_UNSUPPORTED_MEDIA_TYPE} if its encoding is not supported,
+     * {@value javax.servlet.http.HttpServletResponse#SC_BAD_REQUEST} if it is malformed and
+     * {@value javax.servlet.http.HttpServletResponse#SC_SERVICE_UNAVAILABLE} if the commit cannot be made durable,
+     * so the handler must commit the job again, and {@value javax.servlet.http.HttpServletResponse#SC_GONE}
+     * if the job is not running for the attempt it was dequeued with anymore, so it must not be commited again.
      *
      * @param request  the complete request of the client
      * @param response the response to send to the client.
      * @throws java.io.IOException if an error occurred while writing the response to the client.
      */
     public void handleCommitRequest(HttpServletRequest request, HttpServletResponse response) throws IOException {
-        response.setStatus(HttpServletResponse.SC_OK);
-        StringBuilder b = new StringBuilder();
-        String line = request.getReader().readLine();
-        while (line != null) {
-            b.append(line);
-            line = request.getReader().readLine();
-        }
-        //System.err.println(b.toString());
-        Job j = Job.fromJSON(b.toString());
-        int id = Integer.parseInt(request.getParameter("j"));
-        Map<String, String> values = new HashMap<String, String>();
-        for (Map.Entry<String, String[]> e : request.getParameterMap().entrySet()) {
-            values.put(e.getKey(), e.getValue()[0]);
-        }
-        //System.err.println(j);
-        master.commit(j);
+        List<Job> js = decode(request, response, false);
+        if (js != null) {
+            commit(js, response, false);
+        }
+    }
+
+    /**
+     * Handle a batch commit request.
+     * The request must be using the POST method and its content is a list of jobs encoded
+     * according to the content type of the request. The limits of
+     * {@link #handleCommitRequest(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)}
+     * apply. The content of the response is the number of commited jobs, as the jobs
+     * that are not running for the attempt they were dequeued with anymore are ignored.
+     *
+     * @param request  the complete request of the client
+     * @param response the response to send to the client.
+     * @throws java.io.IOException if an error occurred while writing the response to the client.
+     */
+    public void handleBatchCommitRequest(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        List<Job> js = decode(request, response, true);
+        if (js != null) {
+            commit(js, response, true);
+        }
+    }
+
+    /**
+     * Commit decoded jobs and set the status of the response accordingly.
+     * The status is {@value javax.servlet.http.HttpServletResponse#SC_GONE} if none of the jobs
+     * was commited. Otherwise, the response to a batch commit contains the number of commited jobs.
+     *
+     * @param js       the jobs
+     * @param response the response to the commit request
+     * @param batch    {@code true} for a batch commit request
+     * @throws IOException if an error occurred while writing the response
+     */
+    private void commit(List<Job> js, HttpServletResponse response, boolean batch) throws IOException {
+        int nb;
+        try {
+            nb = master.commit(js);
+        } catch (IOException e) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        if (nb == 0) {
+            response.setStatus(HttpServletResponse.SC_GONE);
+        } else {
+            response.setStatus(HttpServletResponse.SC_OK);
+            if (batch) {
+                response.setContentType("text/plain");
+                response.getWriter().print(nb);
+            }
+        }
+    }
+
+    /**
+     * Decode the jobs in the content of a commit request.
+     * The content is bounded by its declared length and {@link #getMaxCommitSize()}. A compressed
+     * content is bounded by {@link #getMaxCommitSize()} once decompressed too.
+     *
+     * @param request  the request
+     * @param response the response to the request. Its status is set if the jobs cannot be decoded
+     * @param batch    {@code true} if the content is a list of jobs, {@code false} for a single job
+     * @return the decoded jobs, {@code null} if the content is too large, malformed or using an unsupported encoding
+     * @throws IOException if an error occurred while getting the content
+     */
+    private List<Job> decode(HttpServletRequest request, HttpServletResponse response, boolean batch) throws IOException {
+        long max = maxCommitSize;
+        long len = request.getContentLength();
+        if (len > max) {
+            response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return null;
+        }
+        String enc = request.getHeader("Content-Encoding");
+        if (!Compression.isSupported(enc)) {
+            response.setStatus(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            return null;
+        }
+        InputStream in = new BoundedInputStream(request.getInputStream(), len >= 0 ? len : max);
+        JobCodec c = provided(request);
+        Inflater inf = Compression.inflater(enc);
+        try {
+            if (inf != null) {
+                in = new BoundedInputStream(Compression.decompress(in, enc, inf), max);
+            }
+            return batch ? c.readAll(in) : Collections.singletonList(c.read(in));
+        } catch (TooLargeException e) {
+            response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        } catch (IOException e) {
+            JobDispatcher.getLogger().debug("Malformed commit request: " + e.getMessage());
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        } catch (RuntimeException e) {
+            JobDispatcher.getLogger().debug("Malformed commit request: " + e.getMessage());
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        } finally {
+            if (inf != null) {
+                inf.end();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Signal a request content larger than accepted.
+     */
+    private static class TooLargeException extends IOException {
+        public TooLargeException(String msg) {
+            super(msg);
+        }
+    }
+
+    /**
+     * A stream that fails when more than a given number of bytes are read.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        public BoundedInputStream(InputStream in, long max) {
+            super(in);
+            this.remaining = max;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                consume(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, (int) Math.min(len, remaining + 1));
+            if (n > 0) {
+                consume(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long s = super.skip(Math.min(n, remaining + 1));
+            consume(s);
+            return s;
+        }
+
+        private void consume(long n) throws TooLargeException {
+            remaining -= n;
+            if (remaining < 0) {
+                throw new TooLargeException("Content too large");
+            }
+        }
     }
 }
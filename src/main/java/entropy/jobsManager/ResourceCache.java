@@ -0,0 +1,310 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe cache of resources, bounded by the total size of the cached contents and
+ * optionally by the number of cached resources.
+ * When the cache is full, the least recently used resources are evicted.
+ * <p/>
+ * Concurrent misses for the same resource are coalesced: the resource is loaded once
+ * and every caller gets the loaded content.
+ *
+ * @author Fabien Hermenier
+ * @see JobHandler#getResourceCache()
+ */
+public class ResourceCache {
+
+    /**
+     * Load the content of a resource on a cache miss.
+     */
+    public interface Loader {
+
+        /**
+         * Load a resource.
+         *
+         * @param name the name of the resource
+         * @return the content of the resource, {@code null} if the resource does not exist
+         * @throws IOException if an error occurred while loading the resource
+         */
+        byte[] load(String name) throws IOException;
+    }
+
+    /**
+     * The cached resources, in access order.
+     */
+    private final LinkedHashMap<String, byte[]> entries;
+
+    /**
+     * The loadings in progress.
+     */
+    private final ConcurrentMap<String, FutureTask<byte[]>> loadings;
+
+    private final long capacity;
+
+    /**
+     * The maximum number of cached resources.
+     */
+    private final int maxEntries;
+
+    /**
+     * The total size of the cached contents. Guarded by {@code this}.
+     */
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Make a new cache.
+     *
+     * @param c the maximum total size of the cached contents, in bytes
+     */
+    public ResourceCache(long c) {
+        this(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Make a new cache bounded by a number of resources too.
+     *
+     * @param c  the maximum total size of the cached contents, in bytes
+     * @param nb the maximum number of cached resources
+     */
+    public ResourceCache(long c, int nb) {
+        if (c < 0) {
+            throw new IllegalArgumentException("The capacity must be positive");
+        }
+        if (nb < 0) {
+            throw new IllegalArgumentException("The maximum number of resources must be positive");
+        }
+        this.capacity = c;
+        this.maxEntries = nb;
+        this.entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+        this.loadings = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+    }
+
+    /**
+     * Get a resource, loading it on a cache miss.
+     * A resource larger than the capacity of the cache is not cached.
+     *
+     * @param name the name of the resource
+     * @param l    the loader to use on a cache miss
+     * @return the content of the resource, {@code null} if the resource does not exist
+     * @throws IOException if an error occurred while loading the resource
+     */
+    public byte[] get(final String name, final Loader l) throws IOException {
+        byte[] content = lookup(name);
+        if (content != null) {
+            return content;
+        }
+        FutureTask<byte[]> f = new FutureTask<byte[]>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return l.load(name);
+            }
+        });
+        FutureTask<byte[]> prev = loadings.putIfAbsent(name, f);
+        if (prev == null) {
+            try {
+                f.run();
+                content = result(f);
+                if (content != null) {
+                    put(name, content);
+                }
+            } finally {
+                loadings.remove(name, f);
+            }
+            return content;
+        }
+        return result(prev);
+    }
+
+    /**
+     * Get a cached resource.
+     * The counters are not updated.
+     *
+     * @param name the name of the resource
+     * @return the content of the resource, {@code null} if it is not cached
+     */
+    public synchronized byte[] getIfPresent(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Get a cached resource and update the hit or miss counter.
+     *
+     * @param name the name of the resource
+     * @return the content of the resource, {@code null} if it is not cached
+     */
+    byte[] lookup(String name) {
+        byte[] content = getIfPresent(name);
+        if (content != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return content;
+    }
+
+    /**
+     * Remove a resource from the cache.
+     *
+     * @param name the name of the resource
+     */
+    public synchronized void invalidate(String name) {
+        byte[] content = entries.remove(name);
+        if (content != null) {
+            size -= content.length;
+        }
+    }
+
+    /**
+     * Remove all the resources from the cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Get the maximum total size of the cached contents.
+     *
+     * @return a size in bytes
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the maximum number of cached resources.
+     *
+     * @return a positive number. {@link Integer#MAX_VALUE} if the number of resources is not bounded
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Get the total size of the cached contents.
+     *
+     * @return a size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Get the number of cached resources.
+     *
+     * @return a positive number
+     */
+    public synchronized int getNbEntries() {
+        return entries.size();
+    }
+
+    /**
+     * Get the number of requested resources that were cached.
+     *
+     * @return a positive number
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of requested resources that were not cached.
+     * Coalesced misses are counted once per caller.
+     *
+     * @return a positive number
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of resources evicted to bound the cache.
+     *
+     * @return a positive number
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Cache a resource, then evict the least recently used resources if needed.
+     *
+     * @param name    the name of the resource
+     * @param content its content
+     */
+    synchronized void put(String name, byte[] content) {
+        if (content.length > capacity || maxEntries == 0) {
+            return;
+        }
+        byte[] prev = entries.put(name, content);
+        size += content.length;
+        if (prev != null) {
+            size -= prev.length;
+        }
+        Iterator<Map.Entry<String, byte[]>> ite = entries.entrySet().iterator();
+        while (size > capacity || entries.size() > maxEntries) {
+            size -= ite.next().getValue().length;
+            ite.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wait for the result of a loading.
+     *
+     * @param f the loading
+     * @return the loaded content
+     * @throws IOException if the loading failed or if the thread was interrupted
+     */
+    private static byte[] result(FutureTask<byte[]> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new IOException(t.getMessage(), t);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An append-only file to store the key/value pairs of the commited jobs outside of the heap.
+ * Each entry is made of its length and the pairs. The entries are read using their position,
+ * kept by the evicted job. The file is truncated at instantiation.
+ *
+ * @author Fabien Hermenier
+ */
+class SpillFile {
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    /**
+     * The end of the last entry.
+     */
+    private long end = 0;
+
+    /**
+     * Make a new spill file.
+     *
+     * @param f the file to use
+     * @throws IOException if the file cannot be created
+     */
+    public SpillFile(File f) throws IOException {
+        file = new RandomAccessFile(f, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+    }
+
+    /**
+     * Append the key/value pairs of a job.
+     *
+     * @param j the job
+     * @return the position of the entry
+     * @throws IOException if an error occurred while writing
+     */
+    public long write(Job j) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeInt(0);
+        Journal.writeValues(out, j);
+        out.flush();
+        ByteBuffer b = ByteBuffer.wrap(bout.toByteArray());
+        b.putInt(0, b.remaining() - 4);
+        long pos;
+        synchronized (this) {
+            pos = end;
+            end += b.remaining();
+        }
+        long p = pos;
+        while (b.hasRemaining()) {
+            p += channel.write(b, p);
+        }
+        return pos;
+    }
+
+    /**
+     * Restore the key/value pairs of an evicted job.
+     *
+     * @param j the evicted job
+     * @return a copy of the job with its key/value pairs
+     * @throws IOException if an error occurred while reading
+     */
+    public Job load(Job j) throws IOException {
+        long pos = j.getSpillOffset();
+        ByteBuffer len = ByteBuffer.allocate(4);
+        read(len, pos);
+        ByteBuffer b = ByteBuffer.allocate(len.getInt(0));
+        read(b, pos + 4);
+        Job c = j.copyHeader();
+        Journal.readValues(new DataInputStream(new ByteArrayInputStream(b.array())), c);
+        return c;
+    }
+
+    private void read(ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            int nb = channel.read(b, pos);
+            if (nb < 0) {
+                throw new IOException("Truncated spill file");
+            }
+            pos += nb;
+        }
+    }
+
+    /**
+     * Close the file.
+     *
+     * @throws IOException if an error occurred while closing the file
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,208 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * The configuration of the HTTP transport of a {@link JobHandler}.
+ * The defaults suit short request/response bursts: the connections are kept alive
+ * between the bursts and reused, so the handlers do not churn connections on the dispatcher.
+ * <p/>
+ * The transport always uses non-blocking connections with TCP_NODELAY enabled. The HTTP client
+ * does not pipeline requests: the concurrent requests use distinct connections, bounded
+ * by {@link #getMaxConnectionsPerAddress()}, and the requests exceeding this bound are queued.
+ *
+ * @author Fabien Hermenier
+ * @see JobHandler#JobHandler(String, int, long, TransportConfig)
+ */
+public class TransportConfig {
+
+    private int maxConnectionsPerAddress = 16;
+
+    private long idleTimeout = 60000;
+
+    private int connectTimeout = 10000;
+
+    private int maxThreads = 16;
+
+    private int requestBufferSize = 16 * 1024;
+
+    private int responseBufferSize = 32 * 1024;
+
+    private int maxRetries = 3;
+
+    /**
+     * Get the maximum number of connections to the dispatcher.
+     *
+     * @return a number of connections. {@code 16} by default
+     */
+    public int getMaxConnectionsPerAddress() {
+        return maxConnectionsPerAddress;
+    }
+
+    /**
+     * Set the maximum number of connections to the dispatcher.
+     *
+     * @param n a strictly positive number of connections
+     */
+    public void setMaxConnectionsPerAddress(int n) {
+        this.maxConnectionsPerAddress = n;
+    }
+
+    /**
+     * Get the duration an idle connection is kept alive.
+     *
+     * @return a duration in milliseconds. {@code 60000} by default
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set the duration an idle connection is kept alive.
+     * It should exceed the usual delay between two requests so the connections are reused.
+     *
+     * @param ms a duration in milliseconds
+     */
+    public void setIdleTimeout(long ms) {
+        this.idleTimeout = ms;
+    }
+
+    /**
+     * Get the maximum duration to establish a connection.
+     *
+     * @return a duration in milliseconds. {@code 10000} by default
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Set the maximum duration to establish a connection.
+     *
+     * @param ms a duration in milliseconds
+     */
+    public void setConnectTimeout(int ms) {
+        this.connectTimeout = ms;
+    }
+
+    /**
+     * Get the maximum number of threads of the client, that parse the responses and run the callbacks.
+     *
+     * @return a number of threads. {@code 16} by default
+     */
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * Set the maximum number of threads of the client.
+     *
+     * @param n a strictly positive number of threads
+     */
+    public void setMaxThreads(int n) {
+        this.maxThreads = n;
+    }
+
+    /**
+     * Get the size of the buffers for the content of the requests.
+     *
+     * @return a size in bytes. {@code 16384} by default
+     */
+    public int getRequestBufferSize() {
+        return requestBufferSize;
+    }
+
+    /**
+     * Set the size of the buffers for the content of the requests.
+     *
+     * @param b a size in bytes
+     */
+    public void setRequestBufferSize(int b) {
+        this.requestBufferSize = b;
+    }
+
+    /**
+     * Get the size of the buffers for the content of the responses.
+     *
+     * @return a size in bytes. {@code 32768} by default
+     */
+    public int getResponseBufferSize() {
+        return responseBufferSize;
+    }
+
+    /**
+     * Set the size of the buffers for the content of the responses.
+     *
+     * @param b a size in bytes
+     */
+    public void setResponseBufferSize(int b) {
+        this.responseBufferSize = b;
+    }
+
+    /**
+     * Get the number of times a request is retried when its connection fails.
+     *
+     * @return a positive number. {@code 3} by default
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Set the number of times a request is retried when its connection fails.
+     *
+     * @param n a positive number
+     */
+    public void setMaxRetries(int n) {
+        this.maxRetries = n;
+    }
+
+    /**
+     * Configure a client that is not started yet.
+     *
+     * @param c the client to configure
+     */
+    void configure(HttpClient c) {
+        c.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        c.setMaxConnectionsPerAddress(maxConnectionsPerAddress);
+        c.setIdleTimeout(idleTimeout);
+        c.setConnectTimeout(connectTimeout);
+        c.setMaxRetries(maxRetries);
+        c.setRequestBufferSize(requestBufferSize);
+        c.setResponseBufferSize(responseBufferSize);
+        QueuedThreadPool pool = new QueuedThreadPool();
+        pool.setMaxThreads(maxThreads);
+        pool.setDaemon(true);
+        pool.setName("JobHandler-client");
+        c.setThreadPool(pool);
+    }
+
+    @Override
+    public String toString() {
+        return "maxConnectionsPerAddress=" + maxConnectionsPerAddress
+                + ", idleTimeout=" + idleTimeout
+                + ", connectTimeout=" + connectTimeout
+                + ", maxThreads=" + maxThreads
+                + ", requestBufferSize=" + requestBufferSize
+                + ", responseBufferSize=" + responseBufferSize
+                + ", maxRetries=" + maxRetries;
+    }
+}
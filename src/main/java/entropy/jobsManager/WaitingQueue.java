@@ -0,0 +1,65 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The interface to specify the order the waiting jobs of a JobDispatcher are dequeued in.
+ * Implementations must be thread-safe.
+ *
+ * @author Fabien Hermenier
+ * @see JobDispatcher#setWaitingQueue(WaitingQueue)
+ */
+public interface WaitingQueue {
+
+    /**
+     * Add a waiting job.
+     *
+     * @param j the job to add
+     */
+    void offer(Job j);
+
+    /**
+     * Remove the next jobs to dequeue.
+     *
+     * @param dst the array to store the identifier of the removed jobs in
+     * @param max the maximum number of jobs to remove
+     * @return the number of jobs removed and stored at the beginning of {@code dst}
+     */
+    int drainTo(int[] dst, int max);
+
+    /**
+     * Get the number of waiting jobs.
+     *
+     * @return a positive integer
+     */
+    int size();
+
+    /**
+     * Check if there is no waiting job.
+     *
+     * @return {@code true} if the queue is empty
+     */
+    boolean isEmpty();
+
+    /**
+     * Get a copy of the identifier of the waiting jobs.
+     *
+     * @return an array that may be empty
+     */
+    int[] toNativeArray();
+}
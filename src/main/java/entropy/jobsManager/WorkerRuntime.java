@@ -0,0 +1,247 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A worker that computes jobs using several threads.
+ * The threads share one {@link JobHandler}, so one connection pool and one resource cache,
+ * and one {@link JobPipeline} that prefetches the jobs and commits them in background.
+ * Each thread takes a job, computes it using a {@link JobProcessor}, then commits it. A job the processor
+ * fails to compute is reported to the dispatcher, which requeues it.
+ * <p/>
+ * The worker stops once the dispatcher has no more jobs to compute or on {@link #shutdown()}.
+ * A shutdown is graceful: no more jobs are dequeued, but the jobs being computed and the prefetched
+ * jobs are computed and commited before the worker terminates.
+ *
+ * @author Fabien Hermenier
+ * @see JobProcessor
+ */
+public class WorkerRuntime {
+
+    /**
+     * The delay in milliseconds before taking a job again after a communication error.
+     */
+    private static final long RETRY_DELAY = 1000;
+
+    private final JobHandler handler;
+
+    private final JobProcessor processor;
+
+    private final JobPipeline pipeline;
+
+    private final Thread[] threads;
+
+    /**
+     * The number of threads still running.
+     */
+    private final AtomicInteger alive;
+
+    /**
+     * Released once the threads are stopped and the pending commits are done.
+     */
+    private final CountDownLatch terminated;
+
+    private final AtomicLong nbProcessed = new AtomicLong();
+
+    private final AtomicLong nbFailures = new AtomicLong();
+
+    private volatile boolean stopping;
+
+    /**
+     * Make a new worker using one thread per available processor.
+     *
+     * @param h the handler to communicate with the dispatcher
+     * @param p the processor to compute the jobs
+     */
+    public WorkerRuntime(JobHandler h, JobProcessor p) {
+        this(h, p, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Make a new worker.
+     *
+     * @param h          the handler to communicate with the dispatcher
+     * @param p          the processor to compute the jobs
+     * @param nbThreads  the number of computing threads
+     */
+    public WorkerRuntime(JobHandler h, JobProcessor p, int nbThreads) {
+        if (nbThreads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.handler = h;
+        this.processor = p;
+        this.pipeline = new JobPipeline(h, Math.max(JobPipeline.DEFAULT_MAX_DEPTH, 2 * nbThreads), nbThreads);
+        this.threads = new Thread[nbThreads];
+        this.alive = new AtomicInteger(nbThreads);
+        this.terminated = new CountDownLatch(1);
+        for (int i = 0; i < nbThreads; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "worker-" + i);
+        }
+    }
+
+    /**
+     * Get the pipeline that prefetches and commits the jobs.
+     *
+     * @return the pipeline
+     */
+    public JobPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Start the computing threads.
+     */
+    public void start() {
+        for (Thread t : threads) {
+            t.start();
+        }
+    }
+
+    /**
+     * Stop dequeuing jobs. The jobs being computed and the prefetched jobs are computed
+     * and commited before the worker terminates.
+     */
+    public void shutdown() {
+        stopping = true;
+        pipeline.drain();
+    }
+
+    /**
+     * Wait for the worker to terminate.
+     *
+     * @param ms the maximum duration to wait, in milliseconds
+     * @return {@code true} if the worker terminated, {@code false} if the duration expired
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public boolean awaitTermination(long ms) throws InterruptedException {
+        return terminated.await(ms, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Compute jobs until the dispatcher has no more jobs to compute.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting. The worker is then shutdown
+     */
+    public void run() throws InterruptedException {
+        start();
+        try {
+            terminated.await();
+        } catch (InterruptedException e) {
+            shutdown();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the number of jobs computed and commited.
+     *
+     * @return a positive number
+     */
+    public long getNbProcessed() {
+        return nbProcessed.get();
+    }
+
+    /**
+     * Get the number of jobs that the processor failed to compute.
+     * These jobs were reported to the dispatcher.
+     *
+     * @return a positive number
+     */
+    public long getNbFailures() {
+        return nbFailures.get();
+    }
+
+    /**
+     * The loop of a computing thread.
+     */
+    private void work() {
+        try {
+            while (true) {
+                Job j;
+                try {
+                    j = pipeline.take();
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    JobDispatcher.getLogger().error("Unable to get a job: " + e.getMessage(), e);
+                    if (stopping) {
+                        break;
+                    }
+                    try {
+                        Thread.sleep(RETRY_DELAY);
+                    } catch (InterruptedException ex) {
+                        break;
+                    }
+                    continue;
+                }
+                if (j == null) {
+                    break;
+                }
+                try {
+                    processor.process(j, handler);
+                } catch (Exception e) {
+                    nbFailures.incrementAndGet();
+                    JobDispatcher.getLogger().error("Unable to compute job " + j.getId() + ": " + e.getMessage(), e);
+                    try {
+                        pipeline.fail(j);
+                    } catch (Exception ex) {
+                        JobDispatcher.getLogger().error("Unable to report the failure of job " + j.getId() + ": " + ex.getMessage(), ex);
+                    }
+                    continue;
+                }
+                try {
+                    pipeline.commit(j);
+                    nbProcessed.incrementAndGet();
+                } catch (Exception e) {
+                    JobDispatcher.getLogger().error("Unable to commit jobs: " + e.getMessage(), e);
+                }
+            }
+        } finally {
+            if (alive.decrementAndGet() == 0) {
+                terminate();
+            }
+        }
+    }
+
+    /**
+     * Commit the remaining jobs once all the threads are stopped.
+     */
+    private void terminate() {
+        try {
+            List<Job> left = pipeline.close();
+            if (!left.isEmpty()) {
+                JobDispatcher.getLogger().warn(left.size() + " prefetched job(s) not computed, the dispatcher requeues them once their lease expires");
+            }
+        } catch (Exception e) {
+            JobDispatcher.getLogger().error("Unable to commit the last jobs: " + e.getMessage(), e);
+        } finally {
+            terminated.countDown();
+        }
+    }
+}
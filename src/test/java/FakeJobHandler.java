@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import entropy.jobsManager.Job;
+import entropy.jobsManager.JobHandler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * A job handler that answers without a dispatcher.
+ * The dequeue requests complete immediately, in the calling thread, unless a delay is set.
+ *
+ * @author Fabien Hermenier
+ */
+public class FakeJobHandler extends JobHandler {
+
+    private int next = 0;
+
+    private final int nbJobs;
+
+    final List<Integer> commited = new ArrayList<Integer>();
+
+    final List<Integer> failed = new ArrayList<Integer>();
+
+    /**
+     * The jobs the fake dispatcher refuses to commit, as if they were not running anymore.
+     */
+    final Set<Integer> rejected = new HashSet<Integer>();
+
+    int maxRequested = 0;
+
+    boolean failNextCommit = false;
+
+    boolean failNextDequeue = false;
+
+    /**
+     * The duration of a dequeue request, in milliseconds. When positive, the request
+     * completes in another thread.
+     */
+    long dequeueDelay = 0;
+
+    public FakeJobHandler(int nbJobs) throws Exception {
+        super("localhost");
+        this.nbJobs = nbJobs;
+    }
+
+    @Override
+    public Future<List<Job>> dequeueAsync(int max, final Callback<List<Job>> cb) {
+        final List<Job> js = new ArrayList<Job>();
+        synchronized (this) {
+            if (failNextDequeue) {
+                failNextDequeue = false;
+                cb.failed(new IOException("failure"));
+                return null;
+            }
+            maxRequested = Math.max(max, maxRequested);
+            while (js.size() < max && next < nbJobs) {
+                js.add(new Job(next++));
+            }
+        }
+        if (dequeueDelay <= 0) {
+            cb.completed(js);
+        } else {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(dequeueDelay);
+                    } catch (InterruptedException e) {
+                        cb.failed(e);
+                        return;
+                    }
+                    cb.completed(js);
+                }
+            }.start();
+        }
+        return null;
+    }
+
+    @Override
+    public Future<Boolean> commitAsync(Job j, final Callback<Boolean> cb) {
+        List<Job> l = new ArrayList<Job>();
+        l.add(j);
+        commitAsync(l, new Callback<Integer>() {
+            @Override
+            public void completed(Integer nb) {
+                cb.completed(nb > 0);
+            }
+
+            @Override
+            public void failed(Throwable t) {
+                cb.failed(t);
+            }
+        });
+        return null;
+    }
+
+    @Override
+    public Future<Integer> commitAsync(Collection<Job> js, Callback<Integer> cb) {
+        boolean fail;
+        int nb = 0;
+        synchronized (this) {
+            fail = failNextCommit;
+            failNextCommit = false;
+            if (!fail) {
+                nb = accept(js);
+            }
+        }
+        if (fail) {
+            cb.failed(new IOException("failure"));
+        } else {
+            cb.completed(nb);
+        }
+        return null;
+    }
+
+    @Override
+    public Future<Boolean> failAsync(Job j, Callback<Boolean> cb) {
+        synchronized (this) {
+            failed.add(j.getId());
+        }
+        cb.completed(Boolean.TRUE);
+        return null;
+    }
+
+    @Override
+    public synchronized int commit(Collection<Job> js) {
+        return accept(js);
+    }
+
+    /**
+     * Commit the jobs that are not rejected.
+     *
+     * @param js the jobs
+     * @return the number of commited jobs
+     */
+    private int accept(Collection<Job> js) {
+        int nb = 0;
+        for (Job j : js) {
+            if (!rejected.contains(j.getId())) {
+                commited.add(j.getId());
+                nb++;
+            }
+        }
+        return nb;
+    }
+}
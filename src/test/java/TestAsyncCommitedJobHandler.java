@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import entropy.jobsManager.AsyncCommitedJobHandler;
+import entropy.jobsManager.CommitedJobHandler;
+import entropy.jobsManager.Job;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Unit tests for {@link AsyncCommitedJobHandler}.
+ *
+ * @author Fabien Hermenier
+ */
+@Test
+public class TestAsyncCommitedJobHandler {
+
+    public void testCloseWithAFullQueueTimesOut() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> delivered = new ArrayList<Integer>();
+        AsyncCommitedJobHandler h = new AsyncCommitedJobHandler(new CommitedJobHandler() {
+            @Override
+            public void jobCommited(Job j) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                synchronized (delivered) {
+                    delivered.add(j.getId());
+                }
+            }
+        }, 1, AsyncCommitedJobHandler.Policy.BLOCK, null, 1);
+        h.jobCommited(new Job(1));
+        //Wait for the consumer to take the first job, so the second one fills the queue
+        while (h.getPendings() > 0) {
+            Thread.sleep(10);
+        }
+        h.jobCommited(new Job(2));
+        long st = System.currentTimeMillis();
+        Assert.assertFalse(h.close(200));
+        Assert.assertTrue(System.currentTimeMillis() - st < 2000);
+        release.countDown();
+        Assert.assertTrue(h.close(5000));
+        Assert.assertEquals(delivered.size(), 2);
+    }
+}
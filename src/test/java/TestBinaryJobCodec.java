@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import entropy.jobsManager.BinaryJobCodec;
+import entropy.jobsManager.Job;
+import entropy.jobsManager.JobCodec;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for {@link BinaryJobCodec}.
+ *
+ * @author Fabien Hermenier
+ */
+@Test
+public class TestBinaryJobCodec {
+
+    public void testRoundTrip() throws IOException {
+        JobCodec c = new BinaryJobCodec();
+        Job j = new Job(54);
+        j.put("foo", "bar");
+        j.put("q", "\u00e9t\u00e9");
+        j.setPriority(-3);
+        Job j2 = new Job(300000);
+        j2.put("foo", "baz");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        c.write(Arrays.asList(j, j2, new Job(0)), out);
+        List<Job> l = c.readAll(new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertEquals(l.size(), 3);
+        Assert.assertEquals(l.get(0).getId(), 54);
+        Assert.assertEquals(l.get(0).get("foo"), "bar");
+        Assert.assertEquals(l.get(0).get("q"), "\u00e9t\u00e9");
+        Assert.assertEquals(l.get(0).getPriority(), -3);
+        Assert.assertEquals(l.get(0).getEnqueuedTime(), j.getEnqueuedTime());
+        Assert.assertEquals(l.get(1).getId(), 300000);
+        Assert.assertEquals(l.get(1).get("foo"), "baz");
+        Assert.assertTrue(l.get(2).getKeys().isEmpty());
+
+        out.reset();
+        c.write(j2, out);
+        Assert.assertEquals(c.read(new ByteArrayInputStream(out.toByteArray())).get("foo"), "baz");
+
+        out.reset();
+        c.write(Collections.<Job>emptyList(), out);
+        Assert.assertTrue(c.readAll(new ByteArrayInputStream(out.toByteArray())).isEmpty());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testTruncated() throws IOException {
+        JobCodec c = new BinaryJobCodec();
+        Job j = new Job(1);
+        j.put("foo", "bar");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        c.write(j, out);
+        byte[] b = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+        c.read(new ByteArrayInputStream(b));
+    }
+
+    /**
+     * The lengths announce 2^26 keys of 2^26 bytes but the message is truncated.
+     */
+    @Test(expectedExceptions = IOException.class)
+    public void testLargeLengths() throws IOException {
+        byte[] max = {(byte) 0x80, (byte) 0x80, (byte) 0x80, 0x20};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(max);
+        out.write(max);
+        out.write(new byte[]{'a', 'b'});
+        new BinaryJobCodec().readAll(new ByteArrayInputStream(out.toByteArray()));
+    }
+}
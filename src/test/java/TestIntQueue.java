@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import entropy.jobsManager.IntQueue;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Unit tests for {@link IntQueue}.
+ *
+ * @author Fabien Hermenier
+ */
+@Test
+public class TestIntQueue {
+
+    public void testFIFO() {
+        IntQueue q = new IntQueue();
+        Assert.assertTrue(q.isEmpty());
+        for (int i = 0; i < 10; i++) {
+            q.offer(i);
+        }
+        Assert.assertEquals(q.size(), 10);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(q.poll(), i);
+        }
+        Assert.assertTrue(q.isEmpty());
+    }
+
+    public void testGrowth() {
+        IntQueue q = new IntQueue();
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 3 * IntQueue.INITIAL_CAPACITY; round++) {
+            q.offer(next++);
+            q.offer(next++);
+            Assert.assertEquals(q.poll(), expected++);
+        }
+        Assert.assertEquals(q.size(), 3 * IntQueue.INITIAL_CAPACITY);
+        int[] content = q.toNativeArray();
+        Assert.assertEquals(content.length, 3 * IntQueue.INITIAL_CAPACITY);
+        for (int v : content) {
+            Assert.assertEquals(v, expected++);
+        }
+        for (int v : content) {
+            Assert.assertEquals(q.poll(), v);
+        }
+        Assert.assertTrue(q.isEmpty());
+    }
+
+    public void testLaps() {
+        IntQueue q = new IntQueue();
+        int expected = 0;
+        int next = 0;
+        for (int round = 0; round < 10 * IntQueue.INITIAL_CAPACITY; round++) {
+            for (int i = 0; i < 7; i++) {
+                q.offer(next++);
+            }
+            for (int i = 0; i < 7; i++) {
+                Assert.assertEquals(q.poll(), expected++);
+            }
+        }
+        Assert.assertTrue(q.isEmpty());
+        Assert.assertEquals(q.toNativeArray().length, 0);
+    }
+
+    @Test(expectedExceptions = NoSuchElementException.class)
+    public void testPollEmpty() {
+        new IntQueue().poll();
+    }
+
+    public void testConcurrentAccesses() throws InterruptedException {
+        final IntQueue q = new IntQueue();
+        final int nbPerProducer = 50000;
+        final int nbThreads = 4;
+        final AtomicIntegerArray seen = new AtomicIntegerArray(nbPerProducer * nbThreads);
+        Thread[] threads = new Thread[nbThreads * 2];
+        for (int t = 0; t < nbThreads; t++) {
+            final int from = t * nbPerProducer;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < nbPerProducer; i++) {
+                        q.offer(from + i);
+                    }
+                }
+            };
+            threads[nbThreads + t] = new Thread() {
+                public void run() {
+                    int[] buf = new int[16];
+                    int nb = 0;
+                    while (nb < nbPerProducer) {
+                        int n = q.drainTo(buf, Math.min(buf.length, nbPerProducer - nb));
+                        for (int i = 0; i < n; i++) {
+                            seen.incrementAndGet(buf[i]);
+                        }
+                        nb += n;
+                    }
+                }
+            };
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertTrue(q.isEmpty());
+        for (int i = 0; i < seen.length(); i++) {
+            Assert.assertEquals(seen.get(i), 1);
+        }
+    }
+}
@@ -17,8 +17,15 @@
  *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import entropy.jobsManager.Job;
+import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
 /**
  * @author Fabien Hermenier
  */
@@ -36,4 +43,47 @@ public class TestJob {
         System.out.println(buf);*/
 
     }
+
+    public void testValues() {
+        Job j = new Job(1);
+        Assert.assertTrue(j.getKeys().isEmpty());
+        j.put("foo", "bar");
+        j.put("baz", "5");
+        j.put("foo", "bar2");
+        Assert.assertEquals(j.get("foo"), "bar2");
+        Assert.assertEquals(j.get("baz"), "5");
+        Assert.assertNull(j.get("unknown"));
+        Assert.assertEquals(j.getKeys(), new HashSet<String>(Arrays.asList("foo", "baz")));
+        j.put("baz", null);
+        Assert.assertEquals(j.getKeys().size(), 1);
+        Iterator<String> ite = j.getKeys().iterator();
+        Assert.assertEquals(ite.next(), "foo");
+        ite.remove();
+        Assert.assertFalse(ite.hasNext());
+        Assert.assertNull(j.get("foo"));
+        //Keys of other jobs do not leak
+        Job j2 = new Job(2);
+        Assert.assertTrue(j2.getKeys().isEmpty());
+    }
+
+    public void testJSON() {
+        Job j = new Job(54);
+        j.put("foo", "bar");
+        j.put("q", "a\"b");
+        j.setPriority(3);
+        Job j2 = Job.fromJSON(j.toJSON());
+        Assert.assertEquals(j2.getId(), 54);
+        Assert.assertEquals(j2.get("foo"), "bar");
+        Assert.assertEquals(j2.get("q"), "a\"b");
+        Assert.assertEquals(j2.getPriority(), 3);
+        Assert.assertEquals(j2.getKeys().size(), 2);
+
+        List<Job> l = Job.fromJSONArray(Job.toJSON(Arrays.asList(j, new Job(55))));
+        Assert.assertEquals(l.size(), 2);
+        Assert.assertEquals(l.get(0).get("foo"), "bar");
+        Assert.assertTrue(l.get(1).getKeys().isEmpty());
+
+        Job j3 = Job.fromJSON("{\"id\":7,\"values\":{\"k\":\"v\"}}");
+        Assert.assertEquals(j3.get("k"), "v");
+    }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import entropy.jobsManager.Job;
+import entropy.jobsManager.JobPipeline;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Unit tests for {@link JobPipeline}.
+ *
+ * @author Fabien Hermenier
+ */
+@Test
+public class TestJobPipeline {
+
+    public void testAllJobsProcessed() throws Exception {
+        FakeJobHandler h = new FakeJobHandler(50);
+        JobPipeline p = new JobPipeline(h, 4);
+        Job j = p.take();
+        int nb = 0;
+        while (j != null) {
+            nb++;
+            p.commit(j);
+            j = p.take();
+        }
+        p.close();
+        Assert.assertEquals(nb, 50);
+        Assert.assertEquals(h.commited.size(), 50);
+        Assert.assertTrue(p.getDepth() >= 1 && p.getDepth() <= 4);
+        Assert.assertTrue(h.maxRequested <= 4);
+    }
+
+    public void testRejectedCommitIsNotRetried() throws Exception {
+        FakeJobHandler h = new FakeJobHandler(3);
+        h.rejected.add(0);
+        JobPipeline p = new JobPipeline(h);
+        Job j = p.take();
+        while (j != null) {
+            p.commit(j);
+            j = p.take();
+        }
+        p.close();
+        Assert.assertEquals(p.getNbRejected(), 1);
+        Assert.assertEquals(h.commited.size(), 2);
+        Assert.assertFalse(h.commited.contains(0));
+    }
+
+    public void testFailedCommitIsRetried() throws Exception {
+        FakeJobHandler h = new FakeJobHandler(3);
+        JobPipeline p = new JobPipeline(h);
+        h.failNextCommit = true;
+        p.commit(p.take());
+        try {
+            p.take();
+            Assert.fail("The failure should have been reported");
+        } catch (IOException e) {
+            //Expected
+        }
+        Job j = p.take();
+        while (j != null) {
+            p.commit(j);
+            j = p.take();
+        }
+        p.close();
+        //Job 0 was sent again with job 1
+        Assert.assertEquals(h.commited.size(), 3);
+        Assert.assertEquals(h.commited.get(0).intValue(), 0);
+    }
+
+    /**
+     * The jobs of a dequeue request in flight when draining must still be taken.
+     */
+    public void testDrainWaitsForTheFetchInFlight() throws Exception {
+        FakeJobHandler h = new FakeJobHandler(5);
+        h.dequeueDelay = 100;
+        JobPipeline p = new JobPipeline(h);
+        Assert.assertEquals(p.take().getId(), 0);
+        //The next job is being fetched
+        p.drain();
+        Job j = p.take();
+        Assert.assertNotNull(j);
+        Assert.assertEquals(j.getId(), 1);
+        Assert.assertNull(p.take());
+        Assert.assertTrue(p.close().isEmpty());
+    }
+
+    public void testCloseHandsBackTheBufferedJobs() throws Exception {
+        FakeJobHandler h = new FakeJobHandler(5);
+        h.dequeueDelay = 100;
+        JobPipeline p = new JobPipeline(h);
+        Job j = p.take();
+        p.commit(j);
+        List<Job> left = p.close();
+        Assert.assertEquals(left.size(), 1);
+        Assert.assertEquals(left.get(0).getId(), 1);
+        Assert.assertNull(p.take());
+        Assert.assertEquals(h.commited.size(), 1);
+    }
+
+    public void testDepthScalesWithTheConsumers() throws Exception {
+        FakeJobHandler h = new FakeJobHandler(100);
+        Assert.assertEquals(new JobPipeline(h, 16).getDepth(), 1);
+        Assert.assertEquals(new JobPipeline(h, 16, 4).getDepth(), 4);
+        Assert.assertEquals(new JobPipeline(h, 2, 4).getDepth(), 2);
+    }
+
+    public void testFailureIsReported() throws Exception {
+        FakeJobHandler h = new FakeJobHandler(2);
+        JobPipeline p = new JobPipeline(h);
+        Job j = p.take();
+        p.fail(j);
+        p.commit(p.take());
+        Assert.assertNull(p.take());
+        p.close();
+        Assert.assertEquals(h.failed.size(), 1);
+        Assert.assertEquals(h.failed.get(0).intValue(), 0);
+        Assert.assertEquals(h.commited.size(), 1);
+    }
+
+    /**
+     * A job computed after a failed request must be commited anyway.
+     */
+    public void testCommitAfterFailedRequest() throws Exception {
+        FakeJobHandler h = new FakeJobHandler(2);
+        JobPipeline p = new JobPipeline(h);
+        Job j = p.take();
+        h.failNextDequeue = true;
+        //Make the pipeline fetch the next job
+        p.take();
+        try {
+            p.commit(j);
+            Assert.fail("The failure should have been reported");
+        } catch (IOException e) {
+            //Expected
+        }
+        Assert.assertEquals(h.commited.size(), 1);
+        Assert.assertEquals(h.commited.get(0).intValue(), j.getId());
+        p.close();
+    }
+}
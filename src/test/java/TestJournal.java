@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import entropy.jobsManager.CommitedJobHandler;
+import entropy.jobsManager.Job;
+import entropy.jobsManager.JobDispatcher;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for the recovery of a {@link JobDispatcher} from its journal.
+ *
+ * @author Fabien Hermenier
+ */
+@Test
+public class TestJournal {
+
+    private static final CommitedJobHandler NOP = new CommitedJobHandler() {
+        @Override
+        public void jobCommited(Job j) {
+        }
+    };
+
+    private static File makeDirectory() throws IOException {
+        File d = File.createTempFile("journal", "");
+        Assert.assertTrue(d.delete());
+        Assert.assertTrue(d.mkdir());
+        d.deleteOnExit();
+        return d;
+    }
+
+    public void testRecovery() throws IOException {
+        File dir = makeDirectory();
+        JobDispatcher d = new JobDispatcher(JobDispatcher.DEFAULT_PORT, ".", NOP);
+        Assert.assertEquals(d.setJournal(dir), 0);
+        for (int i = 0; i < 10; i++) {
+            Job j = new Job(i);
+            j.put("in", Integer.toString(i));
+            d.enqueue(j);
+        }
+        List<Job> running = d.dequeue(4);
+        Assert.assertEquals(running.size(), 4);
+        for (Job j : running.subList(0, 2)) {
+            j.put("out", "res" + j.getId());
+        }
+        Assert.assertEquals(d.commit(running.subList(0, 2)), 2);
+        d.stopServer();
+
+        JobDispatcher d2 = new JobDispatcher(JobDispatcher.DEFAULT_PORT, ".", NOP);
+        Assert.assertEquals(d2.setJournal(dir), 10);
+        Assert.assertEquals(d2.getNbCommited(), 2);
+        Assert.assertEquals(d2.getNbRunnings(), 0);
+        Assert.assertEquals(d2.getNbWaitings(), 8);
+        for (Job j : running.subList(0, 2)) {
+            Job r = d2.getJob(j.getId());
+            Assert.assertEquals(r.get("out"), "res" + j.getId());
+            Assert.assertEquals(r.get("in"), Integer.toString(j.getId()));
+        }
+        Assert.assertEquals(d2.getJob(running.get(2).getId()).getAttempts(), 1);
+        d2.stopServer();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+    }
+
+    public void testRecoveryFromSnapshot() throws IOException {
+        File dir = makeDirectory();
+        JobDispatcher d = new JobDispatcher(JobDispatcher.DEFAULT_PORT, ".", NOP);
+        d.setJournal(dir);
+        for (int i = 0; i < 100; i++) {
+            d.enqueue(new Job(i));
+        }
+        List<Job> running = d.dequeue(30);
+        Assert.assertEquals(d.commit(running.subList(0, 10)), 10);
+        Assert.assertEquals(d.snapshot(), 100);
+        for (int i = 100; i < 120; i++) {
+            d.enqueue(new Job(i));
+        }
+        Assert.assertEquals(d.commit(running.subList(10, 20)), 10);
+        Assert.assertEquals(d.snapshot(), 120);
+        Assert.assertEquals(d.commit(running.subList(20, 25)), 5);
+        d.stopServer();
+        int nbSnapshots = 0;
+        for (File f : dir.listFiles()) {
+            if (f.getName().startsWith("snapshot-")) {
+                nbSnapshots++;
+            }
+        }
+        Assert.assertEquals(nbSnapshots, 1);
+
+        JobDispatcher d2 = new JobDispatcher(JobDispatcher.DEFAULT_PORT, ".", NOP);
+        Assert.assertEquals(d2.setJournal(dir), 120);
+        Assert.assertEquals(d2.getNbCommited(), 25);
+        Assert.assertEquals(d2.getNbWaitings(), 95);
+        Assert.assertEquals(d2.getJob(running.get(29).getId()).getAttempts(), 1);
+        d2.stopServer();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+    }
+
+    public void testCommitRejectedWhenNotDurable() throws IOException {
+        File dir = makeDirectory();
+        JobDispatcher d = new JobDispatcher(JobDispatcher.DEFAULT_PORT, ".", NOP);
+        d.setJournal(dir);
+        d.enqueue(new Job(0));
+        Job j = d.dequeue();
+        //Closes the journal
+        d.stopServer();
+        try {
+            d.commit(j);
+            Assert.fail("The commit cannot be durable");
+        } catch (IOException e) {
+            //Expected
+        }
+        Assert.assertEquals(d.getNbCommited(), 0);
+        Assert.assertEquals(d.getNbRunnings(), 1);
+        Assert.assertEquals(d.getRunnings().size(), 1);
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+    }
+
+    /**
+     * A handler that records the delivered jobs. It may fail for the jobs having a "fail" value.
+     */
+    private static class Recorder implements CommitedJobHandler {
+
+        private final List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+
+        private final boolean failing;
+
+        Recorder(boolean failing) {
+            this.failing = failing;
+        }
+
+        @Override
+        public void jobCommited(Job j) {
+            if (failing && j.get("fail") != null) {
+                throw new IllegalStateException("Delivery failure");
+            }
+            delivered.add(j.getId());
+        }
+
+        void await(int nb) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (delivered.size() < nb && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Assert.assertEquals(delivered.size(), nb);
+        }
+    }
+
+    public void testUndeliveredJobsAreDeliveredAgain() throws IOException, InterruptedException {
+        File dir = makeDirectory();
+        Recorder r1 = new Recorder(true);
+        JobDispatcher d = new JobDispatcher(JobDispatcher.DEFAULT_PORT, ".", r1);
+        d.setRetention(JobDispatcher.Retention.TOMBSTONE, null);
+        d.setJournal(dir);
+        //Any identifier can be recorded as delivered
+        int[] ids = {-7, 1, 2, Integer.MAX_VALUE, 4, 2000000000};
+        for (int id : ids) {
+            d.enqueue(new Job(id));
+        }
+        List<Job> running = d.dequeue(6);
+        running.get(1).put("fail", "true");
+        Assert.assertEquals(d.commit(running.subList(0, 3)), 3);
+        r1.await(2);
+        //The deliveries made before the snapshot are recorded by the snapshot
+        d.snapshot();
+        running.get(4).put("fail", "true");
+        Assert.assertEquals(d.commit(running.subList(3, 6)), 3);
+        r1.await(4);
+        d.stopServer();
+
+        Recorder r2 = new Recorder(false);
+        JobDispatcher d2 = new JobDispatcher(JobDispatcher.DEFAULT_PORT, ".", r2);
+        d2.setRetention(JobDispatcher.Retention.TOMBSTONE, null);
+        Assert.assertEquals(d2.setJournal(dir), 6);
+        Assert.assertEquals(d2.getNbCommited(), 6);
+        //Only the failed deliveries are made again
+        d2.stopServer();
+        Collections.sort(r2.delivered);
+        Assert.assertEquals(r2.delivered.size(), 2);
+        Assert.assertTrue(r2.delivered.contains(running.get(1).getId()));
+        Assert.assertTrue(r2.delivered.contains(running.get(4).getId()));
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+    }
+
+    /**
+     * The jobs enqueued while snapshots are written must all be recovered.
+     */
+    public void testSnapshotDuringEnqueues() throws Exception {
+        File dir = makeDirectory();
+        final JobDispatcher d = new JobDispatcher(JobDispatcher.DEFAULT_PORT, ".", NOP);
+        d.setJournal(dir);
+        final int nb = 5000;
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < nb; i++) {
+                    d.enqueue(new Job(i));
+                }
+            }
+        };
+        t.start();
+        while (t.isAlive()) {
+            d.snapshot();
+        }
+        t.join();
+        d.stopServer();
+
+        JobDispatcher d2 = new JobDispatcher(JobDispatcher.DEFAULT_PORT, ".", NOP);
+        Assert.assertEquals(d2.setJournal(dir), nb);
+        Assert.assertEquals(d2.getNbWaitings(), nb);
+        d2.stopServer();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+    }
+}
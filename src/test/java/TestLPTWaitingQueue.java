@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import entropy.jobsManager.DurationEstimator;
+import entropy.jobsManager.Job;
+import entropy.jobsManager.LPTWaitingQueue;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link LPTWaitingQueue} and {@link DurationEstimator}.
+ *
+ * @author Fabien Hermenier
+ */
+@Test
+public class TestLPTWaitingQueue {
+
+    private static Job makeJob(int id, String type) {
+        Job j = new Job(id);
+        j.put("type", type);
+        return j;
+    }
+
+    private static Job makeComputedJob(String type, long dequeued, long commited) {
+        return Job.fromJSON("{\"id\":0,\"values\":{\"type\":\"" + type + "\"},\"dequeuedTime\":" + dequeued
+                + ",\"commitedTime\":" + commited + "}");
+    }
+
+    public void testEstimator() {
+        DurationEstimator e = new DurationEstimator("type");
+        Assert.assertEquals(e.estimate("a"), DurationEstimator.UNKNOWN);
+        e.record(makeComputedJob("a", 100, 130));
+        e.record(makeComputedJob("a", 200, 250));
+        //Not computed, ignored
+        e.record(makeComputedJob("a", 0, 250));
+        Assert.assertEquals(e.estimate("a"), 40);
+        e.record("b", 7);
+        Assert.assertEquals(e.estimate("b"), 7);
+        Assert.assertEquals(e.classOf(new Job(1)), "");
+        Assert.assertEquals(e.classOf(makeJob(1, "b")), "b");
+    }
+
+    public void testLongestFirst() {
+        LPTWaitingQueue q = new LPTWaitingQueue("type");
+        q.getEstimator().record("short", 10);
+        q.getEstimator().record("long", 100);
+        String[] types = {"short", "long", "unknown"};
+        for (int i = 0; i < 30; i++) {
+            q.offer(makeJob(i, types[i % 3]));
+        }
+        Assert.assertEquals(q.size(), 30);
+        int[] buf = new int[30];
+        //Spans several classes in a single call
+        int[] tail = new int[15];
+        Assert.assertEquals(q.drainTo(buf, 15), 15);
+        Assert.assertEquals(q.drainTo(tail, 15), 15);
+        System.arraycopy(tail, 0, buf, 15, 15);
+        Assert.assertTrue(q.isEmpty());
+        for (int i = 0; i < 10; i++) {
+            //Unknown durations first, then the longest. FIFO inside a class
+            Assert.assertEquals(buf[i], 3 * i + 2);
+            Assert.assertEquals(buf[10 + i], 3 * i + 1);
+            Assert.assertEquals(buf[20 + i], 3 * i);
+        }
+    }
+
+    public void testRefinedEstimates() {
+        LPTWaitingQueue q = new LPTWaitingQueue("type");
+        for (int i = 0; i < 4; i++) {
+            q.offer(makeJob(i, i % 2 == 0 ? "a" : "b"));
+        }
+        int[] buf = new int[4];
+        //Same estimate, the oldest class first
+        Assert.assertEquals(q.drainTo(buf, 1), 1);
+        Assert.assertEquals(buf[0], 0);
+        q.getEstimator().record("a", 10);
+        q.getEstimator().record("b", 100);
+        Assert.assertEquals(q.drainTo(buf, 4), 3);
+        Assert.assertEquals(buf[0], 1);
+        Assert.assertEquals(buf[1], 3);
+        Assert.assertEquals(buf[2], 2);
+        Assert.assertEquals(q.drainTo(buf, 4), 0);
+    }
+
+    public void testManyClasses() {
+        LPTWaitingQueue q = new LPTWaitingQueue("type");
+        for (int i = 0; i < 5000; i++) {
+            q.offer(makeJob(i, "c" + i));
+            q.getEstimator().record("c" + i, i);
+        }
+        Assert.assertEquals(q.toNativeArray().length, 5000);
+        int[] buf = new int[100];
+        int last = Integer.MAX_VALUE;
+        int nb = 0;
+        while (!q.isEmpty()) {
+            int n = q.drainTo(buf, buf.length);
+            for (int i = 0; i < n; i++) {
+                Assert.assertTrue(buf[i] < last);
+                last = buf[i];
+            }
+            nb += n;
+        }
+        Assert.assertEquals(nb, 5000);
+    }
+}
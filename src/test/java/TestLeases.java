@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import entropy.jobsManager.CommitedJobHandler;
+import entropy.jobsManager.Job;
+import entropy.jobsManager.JobDispatcher;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for the leases of the running jobs in a {@link JobDispatcher}.
+ *
+ * @author Fabien Hermenier
+ */
+@Test
+public class TestLeases {
+
+    private static final CommitedJobHandler NOP = new CommitedJobHandler() {
+        @Override
+        public void jobCommited(Job j) {
+        }
+    };
+
+    private static void awaitWaitings(JobDispatcher d, int nb) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (d.getNbWaitings() != nb && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(d.getNbWaitings(), nb);
+    }
+
+    public void testExpiredLeaseIsRequeued() throws InterruptedException {
+        JobDispatcher d = new JobDispatcher(JobDispatcher.DEFAULT_PORT, ".", NOP);
+        d.setLeaseDuration(50);
+        d.enqueue(new Job(0));
+        Job j = d.dequeue();
+        Assert.assertEquals(j.getAttempts(), 1);
+        Assert.assertTrue(d.renew(0, 1));
+        awaitWaitings(d, 1);
+        Assert.assertEquals(d.getNbRunnings(), 0);
+        Assert.assertFalse(d.renew(0, 1));
+        Assert.assertEquals(d.dequeue().getAttempts(), 2);
+        d.stopServer();
+    }
+
+    public void testStaleAttemptIsRejected() throws InterruptedException, IOException {
+        JobDispatcher d = new JobDispatcher(JobDispatcher.DEFAULT_PORT, ".", NOP);
+        d.setLeaseDuration(50);
+        d.enqueue(new Job(0));
+        //The copy a first handler computes
+        Job first = Job.fromJSON(d.dequeue().toJSON());
+        awaitWaitings(d, 1);
+        Job second = Job.fromJSON(d.dequeue().toJSON());
+        Assert.assertEquals(second.getAttempts(), 2);
+        Assert.assertFalse(d.renew(0, first.getAttempts()));
+        Assert.assertTrue(d.renew(0, second.getAttempts()));
+
+        first.put("out", "first");
+        Assert.assertEquals(d.commit(Collections.singletonList(first)), 0);
+        Assert.assertEquals(d.getNbRunnings(), 1);
+        second.put("out", "second");
+        Assert.assertEquals(d.commit(Collections.singletonList(second)), 1);
+        Assert.assertEquals(d.getJob(0).get("out"), "second");
+        Assert.assertEquals(d.getNbCommited(), 1);
+        d.stopServer();
+    }
+
+    public void testFailedAfterMaxAttempts() throws InterruptedException {
+        JobDispatcher d = new JobDispatcher(JobDispatcher.DEFAULT_PORT, ".", NOP);
+        d.setLeaseDuration(50);
+        d.setMaxAttempts(2);
+        d.enqueue(new Job(0));
+        d.enqueue(new Job(1));
+        List<Job> js = d.dequeue(2);
+        Assert.assertEquals(js.size(), 2);
+        awaitWaitings(d, 2);
+        Assert.assertEquals(d.dequeue(2).size(), 2);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (d.getNbFailed() != 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(d.getNbFailed(), 2);
+        Assert.assertEquals(d.getNbWaitings(), 0);
+        Assert.assertEquals(d.getNbRunnings(), 0);
+        Assert.assertEquals(d.getFailed().size(), 2);
+        d.stopServer();
+    }
+
+    public void testReportedFailureIsRequeued() {
+        JobDispatcher d = new JobDispatcher(JobDispatcher.DEFAULT_PORT, ".", NOP);
+        d.setMaxAttempts(2);
+        d.enqueue(new Job(0));
+        Job j = d.dequeue();
+        Assert.assertFalse(d.fail(0, j.getAttempts() + 1));
+        Assert.assertTrue(d.fail(0, j.getAttempts()));
+        Assert.assertFalse(d.fail(0, j.getAttempts()));
+        Assert.assertEquals(d.getNbWaitings(), 1);
+        Assert.assertEquals(d.getNbRunnings(), 0);
+        j = d.dequeue();
+        Assert.assertEquals(j.getAttempts(), 2);
+        Assert.assertTrue(d.fail(0, 2));
+        Assert.assertEquals(d.getNbFailed(), 1);
+        Assert.assertEquals(d.getNbWaitings(), 0);
+        d.stopServer();
+    }
+}
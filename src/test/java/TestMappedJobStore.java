@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import entropy.jobsManager.CommitedJobHandler;
+import entropy.jobsManager.Job;
+import entropy.jobsManager.JobDispatcher;
+import entropy.jobsManager.MappedJobStore;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Unit tests for {@link MappedJobStore}.
+ *
+ * @author Fabien Hermenier
+ */
+@Test
+public class TestMappedJobStore {
+
+    public void testDispatchWithMappedStore() throws IOException {
+        File dir = File.createTempFile("store", "");
+        Assert.assertTrue(dir.delete());
+        JobDispatcher d = new JobDispatcher(JobDispatcher.DEFAULT_PORT, ".", new CommitedJobHandler() {
+            @Override
+            public void jobCommited(Job j) {
+            }
+        });
+        MappedJobStore s = new MappedJobStore(dir);
+        d.setJobStore(s);
+        //Spans several chunks of the index
+        for (int i = 0; i < 200000; i += 7) {
+            Job j = new Job(i);
+            j.put("in", "value" + i);
+            d.enqueue(j);
+        }
+        Assert.assertEquals(s.size(), 28572);
+        Assert.assertEquals(d.getJob(700).get("in"), "value700");
+        Assert.assertNull(d.getJob(701));
+        List<Job> running = d.dequeue(10);
+        Assert.assertEquals(running.size(), 10);
+        Assert.assertEquals(d.getRunnings().size(), 10);
+        for (Job j : running) {
+            j.put("out", "res" + j.getId());
+        }
+        Assert.assertEquals(d.commit(running), 10);
+        Assert.assertEquals(d.commit(running), 0);
+        for (Job j : running) {
+            Job c = d.getJob(j.getId());
+            Assert.assertEquals(c.get("in"), "value" + j.getId());
+            Assert.assertEquals(c.get("out"), "res" + j.getId());
+            Assert.assertEquals(c.getAttempts(), 1);
+        }
+        Assert.assertEquals(d.getComitted().size(), 10);
+        Assert.assertEquals(d.getWaitings().size(), 28562);
+        d.stopServer();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    public void testTombstone() throws Exception {
+        File dir = File.createTempFile("store", "");
+        Assert.assertTrue(dir.delete());
+        JobDispatcher d = new JobDispatcher(JobDispatcher.DEFAULT_PORT, ".", new CommitedJobHandler() {
+            @Override
+            public void jobCommited(Job j) {
+            }
+        });
+        MappedJobStore s = new MappedJobStore(dir);
+        d.setJobStore(s);
+        d.setRetention(JobDispatcher.Retention.TOMBSTONE, null);
+        for (int i = 0; i < 5; i++) {
+            Job j = new Job(i);
+            j.put("in", "value" + i);
+            d.enqueue(j);
+        }
+        List<Job> running = d.dequeue(2);
+        for (Job j : running) {
+            j.put("out", "res");
+        }
+        Assert.assertEquals(d.commit(running), 2);
+        for (Job j : running) {
+            //Wait for the delivery
+            Job c = d.getJob(j.getId());
+            for (int n = 0; n < 100 && !c.isEvicted(); n++) {
+                Thread.sleep(50);
+                c = d.getJob(j.getId());
+            }
+            Assert.assertTrue(c.isEvicted());
+            Assert.assertEquals(c.getEvictedSize(), "in".length() + ("value" + j.getId()).length() + "out".length() + "res".length());
+            Assert.assertNull(c.get("in"));
+            Assert.assertEquals(c.getCommitedTime(), j.getCommitedTime());
+        }
+        Job w = d.getJob(4);
+        Assert.assertFalse(w.isEvicted());
+        Assert.assertEquals(w.get("in"), "value4");
+        d.stopServer();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import entropy.jobsManager.Job;
+import entropy.jobsManager.PriorityWaitingQueue;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+/**
+ * Unit tests for {@link PriorityWaitingQueue}.
+ *
+ * @author Fabien Hermenier
+ */
+@Test
+public class TestPriorityWaitingQueue {
+
+    private static Job makeJob(int id, int priority) {
+        Job j = new Job(id);
+        j.setPriority(priority);
+        return j;
+    }
+
+    public void testPriorityOrder() {
+        PriorityWaitingQueue q = new PriorityWaitingQueue(2);
+        Random rnd = new Random(12);
+        for (int i = 0; i < 5000; i++) {
+            q.offer(makeJob(i, rnd.nextInt(200) - 100));
+        }
+        Assert.assertEquals(q.size(), 5000);
+        int[] buf = new int[7];
+        int last = Integer.MAX_VALUE;
+        int nb = 0;
+        rnd = new Random(12);
+        int[] priorities = new int[5000];
+        for (int i = 0; i < priorities.length; i++) {
+            priorities[i] = rnd.nextInt(200) - 100;
+        }
+        while (!q.isEmpty()) {
+            int n = q.drainTo(buf, buf.length);
+            for (int i = 0; i < n; i++) {
+                Assert.assertTrue(priorities[buf[i]] <= last);
+                last = priorities[buf[i]];
+            }
+            nb += n;
+        }
+        Assert.assertEquals(nb, 5000);
+    }
+
+    public void testFIFOForSamePriority() {
+        PriorityWaitingQueue q = new PriorityWaitingQueue();
+        for (int i = 0; i < 100; i++) {
+            q.offer(makeJob(i, i % 2));
+        }
+        int[] buf = new int[100];
+        Assert.assertEquals(q.drainTo(buf, 100), 100);
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals(buf[i], 2 * i + 1);
+            Assert.assertEquals(buf[50 + i], 2 * i);
+        }
+    }
+}
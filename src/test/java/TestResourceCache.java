@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import entropy.jobsManager.ResourceCache;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link ResourceCache}.
+ *
+ * @author Fabien Hermenier
+ */
+@Test
+public class TestResourceCache {
+
+    /**
+     * Load resources having a size equals to the number in their name.
+     */
+    private static class SizedLoader implements ResourceCache.Loader {
+
+        final AtomicInteger nbLoads = new AtomicInteger();
+
+        @Override
+        public byte[] load(String name) throws IOException {
+            nbLoads.incrementAndGet();
+            return new byte[Integer.parseInt(name)];
+        }
+    }
+
+    public void testLRUEviction() throws IOException {
+        ResourceCache c = new ResourceCache(10);
+        SizedLoader l = new SizedLoader();
+        c.get("4", l);
+        c.get("3", l);
+        c.get("4", l);
+        Assert.assertEquals(c.getSize(), 7);
+        c.get("2", l);
+        Assert.assertEquals(c.getNbEntries(), 3);
+        c.get("1", l);
+        Assert.assertEquals(c.getNbEntries(), 4);
+        Assert.assertEquals(c.getSize(), 10);
+        c.get("4", l); //4 is now the most recently used
+        c.get("5", l); //evict 3 then 2
+        Assert.assertNull(c.getIfPresent("3"));
+        Assert.assertNull(c.getIfPresent("2"));
+        Assert.assertNotNull(c.getIfPresent("4"));
+        Assert.assertEquals(c.getSize(), 10);
+        Assert.assertEquals(c.getEvictions(), 2);
+        Assert.assertEquals(c.getHits(), 2);
+        Assert.assertEquals(c.getMisses(), 5);
+
+        //Too large to be cached
+        Assert.assertEquals(c.get("11", l).length, 11);
+        Assert.assertNull(c.getIfPresent("11"));
+        Assert.assertEquals(c.getSize(), 10);
+
+        c.clear();
+        Assert.assertEquals(c.getSize(), 0);
+        Assert.assertEquals(c.getNbEntries(), 0);
+    }
+
+    public void testBoundedNumberOfEntries() throws IOException {
+        ResourceCache c = new ResourceCache(Long.MAX_VALUE, 2);
+        SizedLoader l = new SizedLoader();
+        c.get("1", l);
+        c.get("2", l);
+        c.get("1", l);
+        c.get("3", l); //evict 2
+        Assert.assertEquals(c.getNbEntries(), 2);
+        Assert.assertNull(c.getIfPresent("2"));
+        Assert.assertNotNull(c.getIfPresent("1"));
+        Assert.assertEquals(c.getEvictions(), 1);
+    }
+
+    public void testSingleFlight() throws Exception {
+        final ResourceCache c = new ResourceCache(100);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger nbLoads = new AtomicInteger();
+        final ResourceCache.Loader slow = new ResourceCache.Loader() {
+            @Override
+            public byte[] load(String name) throws IOException {
+                nbLoads.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+                return new byte[5];
+            }
+        };
+        final AtomicInteger nbOk = new AtomicInteger();
+        Thread[] ts = new Thread[8];
+        for (int i = 0; i < ts.length; i++) {
+            ts[i] = new Thread() {
+                public void run() {
+                    try {
+                        if (c.get("rc", slow).length == 5) {
+                            nbOk.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        //Detected as nbOk is not incremented
+                    }
+                }
+            };
+            ts[i].start();
+        }
+        Thread.sleep(200);
+        release.countDown();
+        for (Thread t : ts) {
+            t.join();
+        }
+        Assert.assertEquals(nbOk.get(), ts.length);
+        Assert.assertEquals(nbLoads.get(), 1);
+        Assert.assertEquals(c.getNbEntries(), 1);
+    }
+
+    public void testMissingResourceNotCached() throws IOException {
+        ResourceCache c = new ResourceCache(100);
+        ResourceCache.Loader l = new ResourceCache.Loader() {
+            @Override
+            public byte[] load(String name) {
+                return null;
+            }
+        };
+        Assert.assertNull(c.get("foo", l));
+        Assert.assertEquals(c.getNbEntries(), 0);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+import entropy.jobsManager.Job;
+import entropy.jobsManager.JobHandler;
+import entropy.jobsManager.JobProcessor;
+import entropy.jobsManager.WorkerRuntime;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link WorkerRuntime}.
+ *
+ * @author Fabien Hermenier
+ */
+@Test
+public class TestWorkerRuntime {
+
+    public void testComputeAllJobs() throws Exception {
+        FakeJobHandler h = new FakeJobHandler(200);
+        final Set<String> threads = new HashSet<String>();
+        WorkerRuntime w = new WorkerRuntime(h, new JobProcessor() {
+            @Override
+            public void process(Job j, JobHandler h) throws Exception {
+                synchronized (threads) {
+                    threads.add(Thread.currentThread().getName());
+                }
+                if (j.getId() % 50 == 0) {
+                    throw new Exception("Failure");
+                }
+                j.put("result", Integer.toString(j.getId() * 2));
+                Thread.sleep(1);
+            }
+        }, 4);
+        w.run();
+        Assert.assertEquals(w.getNbFailures(), 4);
+        Assert.assertEquals(w.getNbProcessed(), 196);
+        Assert.assertEquals(h.commited.size(), 196);
+        Assert.assertTrue(threads.size() > 1);
+    }
+
+    public void testGracefulShutdown() throws Exception {
+        FakeJobHandler h = new FakeJobHandler(Integer.MAX_VALUE);
+        WorkerRuntime w = new WorkerRuntime(h, new JobProcessor() {
+            @Override
+            public void process(Job j, JobHandler h) throws Exception {
+                Thread.sleep(2);
+            }
+        }, 3);
+        w.start();
+        Thread.sleep(100);
+        w.shutdown();
+        Assert.assertTrue(w.awaitTermination(5000));
+        //Every taken job was computed and commited
+        Assert.assertEquals(h.commited.size(), w.getNbProcessed());
+        Assert.assertEquals(w.getPipeline().getNbBuffered(), 0);
+    }
+}
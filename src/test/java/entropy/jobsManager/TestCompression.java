@@ -0,0 +1,121 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Unit tests for {@link Compression}.
+ *
+ * @author Fabien Hermenier
+ */
+@Test
+public class TestCompression {
+
+    private static byte[] content() {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            b.append("job ").append(i).append('\n');
+        }
+        return b.toString().getBytes();
+    }
+
+    private static byte[] compress(byte[] b, String enc) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        Deflater d = Compression.deflater(enc);
+        try {
+            DeflaterOutputStream out = Compression.compress(bout, enc, d);
+            out.write(b, 0, 10);
+            out.write(b[10]);
+            out.write(b, 11, b.length - 11);
+            out.finish();
+        } finally {
+            d.end();
+        }
+        return bout.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int nb = in.read(buf);
+        while (nb >= 0) {
+            bout.write(buf, 0, nb);
+            nb = in.read(buf);
+        }
+        return bout.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] b, String enc) throws IOException {
+        Inflater inf = Compression.inflater(enc);
+        try {
+            return readAll(Compression.decompress(new ByteArrayInputStream(b), enc, inf));
+        } finally {
+            inf.end();
+        }
+    }
+
+    private static void assertSame(byte[] a, byte[] b) {
+        Assert.assertEquals(a.length, b.length);
+        for (int i = 0; i < a.length; i++) {
+            Assert.assertEquals(a[i], b[i]);
+        }
+    }
+
+    public void testRoundTrip() throws IOException {
+        byte[] b = content();
+        assertSame(decompress(compress(b, Compression.GZIP), Compression.GZIP), b);
+        assertSame(decompress(compress(b, Compression.DEFLATE), Compression.DEFLATE), b);
+        Assert.assertNull(Compression.inflater(null));
+        Assert.assertNull(Compression.inflater("identity"));
+    }
+
+    /**
+     * The gzip streams must be readable by the standard ones, and the other way around.
+     */
+    public void testStandardGzip() throws IOException {
+        byte[] b = content();
+        assertSame(readAll(new GZIPInputStream(new ByteArrayInputStream(compress(b, Compression.GZIP)))), b);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(bout);
+        out.write(b);
+        out.close();
+        assertSame(decompress(bout.toByteArray(), "x-gzip"), b);
+    }
+
+    @Test(expectedExceptions = ZipException.class)
+    public void testCorruptTrailer() throws IOException {
+        byte[] c = compress(content(), Compression.GZIP);
+        c[c.length - 6]++;
+        decompress(c, Compression.GZIP);
+    }
+}
@@ -0,0 +1,63 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for the replay of a {@link Journal}.
+ *
+ * @author Fabien Hermenier
+ */
+@Test
+public class TestJournalReplay {
+
+    public void testDequeuesOfTheSameMillisecond() throws IOException {
+        File dir = File.createTempFile("journal", "");
+        Assert.assertTrue(dir.delete());
+        Journal jn = new Journal(dir);
+        Assert.assertTrue(jn.replay().isEmpty());
+        jn.open();
+        Job j = new Job(1);
+        j.setEnqueuedTime(1000);
+        jn.logEnqueue(j);
+        List<Job> js = Collections.singletonList(j);
+        j.setDequeuedTime(2000);
+        j.incrementAttempts();
+        jn.logDequeue(js);
+        jn.logRequeue(1);
+        j.incrementAttempts();
+        jn.sync(jn.logDequeue(js));
+        jn.close();
+
+        List<Job> res = new Journal(dir).replay();
+        Assert.assertEquals(res.size(), 1);
+        Assert.assertEquals(res.get(0).getAttempts(), 2);
+        Assert.assertEquals(res.get(0).getDequeuedTime(), 2000);
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,77 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Iterator;
+
+/**
+ * Unit tests for {@link KeyDictionary} and the jobs using it.
+ *
+ * @author Fabien Hermenier
+ */
+@Test
+public class TestKeyDictionary {
+
+    public void testBounded() {
+        KeyDictionary d = new KeyDictionary(2);
+        Assert.assertEquals(d.intern("a"), 0);
+        Assert.assertEquals(d.intern("b"), 1);
+        Assert.assertEquals(d.intern("a"), 0);
+        Assert.assertEquals(d.intern("c"), -1);
+        Assert.assertEquals(d.lookup("c"), -1);
+        Assert.assertEquals(d.key(1), "b");
+    }
+
+    public void testJobOutsideOfTheDictionary() {
+        Job j = new Job(1, new KeyDictionary(1));
+        j.put("a", "1");
+        j.put("b", "2");
+        j.put("c", "3");
+        Assert.assertEquals(j.get("a"), "1");
+        Assert.assertEquals(j.get("b"), "2");
+        Assert.assertEquals(j.get("c"), "3");
+        Assert.assertEquals(j.getKeys().size(), 3);
+        j.put("b", null);
+        Assert.assertNull(j.get("b"));
+        Assert.assertEquals(j.getKeys().size(), 2);
+        Iterator<String> ite = j.getKeys().iterator();
+        Assert.assertEquals(ite.next(), "a");
+        Assert.assertEquals(ite.next(), "c");
+        ite.remove();
+        Assert.assertFalse(ite.hasNext());
+        Assert.assertNull(j.get("c"));
+        Assert.assertEquals(j.getKeys().size(), 1);
+    }
+
+    public void testRebind() {
+        Job j = new Job(1, new KeyDictionary(1));
+        j.put("a", "1");
+        j.put("b", "2");
+        KeyDictionary d = new KeyDictionary(4);
+        j.rebind(d);
+        Assert.assertTrue(j.getDictionary() == d);
+        Assert.assertEquals(d.lookup("a"), 0);
+        Assert.assertEquals(d.lookup("b"), 1);
+        Assert.assertEquals(j.get("a"), "1");
+        Assert.assertEquals(j.get("b"), "2");
+        Assert.assertEquals(j.getKeys().size(), 2);
+    }
+}
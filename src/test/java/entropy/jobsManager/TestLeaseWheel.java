@@ -0,0 +1,88 @@
+package entropy.jobsManager;/*
+ * Copyright (c) Fabien Hermenier
+ *
+ *        This file is part of Entropy.
+ *
+ *        Entropy is free software: you can redistribute it and/or modify
+ *        it under the terms of the GNU Lesser General Public License as published by
+ *        the Free Software Foundation, either version 3 of the License, or
+ *        (at your option) any later version.
+ *
+ *        Entropy is distributed in the hope that it will be useful,
+ *        but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *        MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *        GNU Lesser General Public License for more details.
+ *
+ *        You should have received a copy of the GNU Lesser General Public License
+ *        along with Entropy.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import gnu.trove.TIntArrayList;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link LeaseWheel}.
+ *
+ * @author Fabien Hermenier
+ */
+@Test
+public class TestLeaseWheel {
+
+    private static void assertExpired(TIntArrayList expired, int id) {
+        Assert.assertEquals(expired.size(), 1);
+        Assert.assertEquals(expired.get(0), id);
+    }
+
+    public void testExpiration() {
+        LeaseWheel w = new LeaseWheel(10, 0);
+        w.schedule(1, 25);
+        w.schedule(2, 12);
+        TIntArrayList expired = new TIntArrayList();
+        w.advance(9, expired);
+        Assert.assertEquals(expired.size(), 0);
+        w.advance(15, expired);
+        assertExpired(expired, 2);
+        expired.clear();
+        w.advance(30, expired);
+        assertExpired(expired, 1);
+        expired.clear();
+        w.advance(100, expired);
+        Assert.assertEquals(expired.size(), 0);
+    }
+
+    public void testPastDeadline() {
+        LeaseWheel w = new LeaseWheel(10, 100);
+        //Already passed over, so moved to the next tick
+        w.schedule(1, 50);
+        TIntArrayList expired = new TIntArrayList();
+        w.advance(105, expired);
+        Assert.assertEquals(expired.size(), 0);
+        w.advance(110, expired);
+        assertExpired(expired, 1);
+    }
+
+    public void testNextRevolution() {
+        LeaseWheel w = new LeaseWheel(10, 0);
+        long deadline = 10 * (LeaseWheel.NB_BUCKETS + 3);
+        w.schedule(1, deadline);
+        TIntArrayList expired = new TIntArrayList();
+        //The bucket of the deadline is reached one revolution early
+        w.advance(30, expired);
+        assertExpired(expired, 1);
+        expired.clear();
+        w.schedule(1, deadline);
+        w.advance(deadline, expired);
+        assertExpired(expired, 1);
+    }
+
+    public void testLongPause() {
+        LeaseWheel w = new LeaseWheel(1, 0);
+        for (int i = 0; i < 100; i++) {
+            w.schedule(i, i * 7);
+        }
+        TIntArrayList expired = new TIntArrayList();
+        w.advance(1000000, expired);
+        Assert.assertEquals(expired.size(), 100);
+    }
+}